@@ -0,0 +1,85 @@
+package fr.vergne.parsing.layer;
+
+import java.io.IOException;
+
+/**
+ * A {@link ComposableLayer} is a {@link Layer} which provides the methods
+ * used by composite {@link Layer}s to work with their sub-{@link Layer}s
+ * without building their contents: it can be matched at a given position,
+ * its content can be written in a shared {@link Appendable} or measured, and
+ * its modifications are notified through {@link ChangeListener}s.<br/>
+ * <br/>
+ * These methods are not part of {@link Layer}, so the existing
+ * implementations of {@link Layer} remain valid: a composite {@link Layer}
+ * can still use them as sub-{@link Layer}s, in which case it relies on their
+ * content, their regex and their {@link ContentListener}s instead.
+ * 
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ * 
+ */
+public interface ComposableLayer extends Layer {
+
+	/**
+	 * This method tells how much of a content this {@link Layer} can consume
+	 * from a given position, without modifying its own content. A composite
+	 * {@link Layer} should match its sub-{@link Layer}s one after the other,
+	 * each of them taking its first match, rather than using its complete
+	 * regex. Consequently, a {@link Layer} can reject a content which fits its
+	 * regex, because it does not backtrack to try other matches of its sub-
+	 * {@link Layer}s.
+	 * 
+	 * @param content
+	 *            the content to match
+	 * @param offset
+	 *            the position where this {@link Layer} should start
+	 * @return the position where this {@link Layer} ends, -1 if it cannot
+	 *         start at this position
+	 */
+	public int match(CharSequence content, int offset);
+
+	/**
+	 * This method should write the current content of this {@link Layer} at
+	 * the end of the given {@link Appendable}. At the opposite of
+	 * {@link #getInputStream()}, the content is provided as characters, so no
+	 * encoding is needed, and composite {@link Layer}s can write the content of
+	 * their sub-{@link Layer}s directly in the same {@link Appendable}.
+	 * Combined with {@link #getContentLength()}, it allows to build the
+	 * complete content in a single buffer of the right size.<br/>
+	 * <br/>
+	 * Notice that, if some content is missing, the content available before
+	 * the missing part may have been written already when the
+	 * {@link NoContentException} is thrown.
+	 * 
+	 * @param appendable
+	 *            the {@link Appendable} to write the content in
+	 * @throws IOException
+	 *             if the {@link Appendable} fails to store the content
+	 * @throws NoContentException
+	 *             when no content is available
+	 */
+	public void appendTo(Appendable appendable) throws IOException,
+			NoContentException;
+
+	/**
+	 * 
+	 * @return the number of characters of the current content of this
+	 *         {@link Layer}
+	 * @throws NoContentException
+	 *             when no content is available
+	 */
+	public int getContentLength() throws NoContentException;
+
+	/**
+	 * 
+	 * @param listener
+	 *            the listener to add
+	 */
+	public void addChangeListener(ChangeListener listener);
+
+	/**
+	 * 
+	 * @param listener
+	 *            the listener to remove
+	 */
+	public void removeChangeListener(ChangeListener listener);
+}
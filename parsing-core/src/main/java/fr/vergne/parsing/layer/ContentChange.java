@@ -0,0 +1,143 @@
+package fr.vergne.parsing.layer;
+
+import fr.vergne.parsing.layer.Layer.ChangeListener;
+
+/**
+ * A {@link ContentChange} describes a modification of the content of a
+ * {@link Layer}, as notified to its {@link ChangeListener}s: the characters
+ * between {@link #getOffset()} and {@link #getOffset()} +
+ * {@link #getOldLength()} in the previous content have been replaced by the
+ * characters between {@link #getOffset()} and {@link #getOffset()} +
+ * {@link #getNewLength()} in the current content. A {@link ContentChange}
+ * does not store any piece of content: if it is needed, it is retrieved from
+ * the {@link Layer} only when requested, through {@link #getNewContent()}.
+ * Consequently, it should be requested before the {@link Layer} is modified
+ * again.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+public final class ContentChange {
+
+	private final Layer layer;
+	private final int offset;
+	private final int oldLength;
+	private final int newLength;
+
+	/**
+	 *
+	 * @param layer
+	 *            the {@link Layer} which has been modified
+	 * @param offset
+	 *            the position of the modification in the content of the
+	 *            {@link Layer}
+	 * @param oldLength
+	 *            the number of characters replaced
+	 * @param newLength
+	 *            the number of characters replacing them
+	 */
+	public ContentChange(Layer layer, int offset, int oldLength, int newLength) {
+		if (layer == null) {
+			throw new NullPointerException("No layer provided");
+		} else if (offset < 0 || oldLength < 0 || newLength < 0) {
+			throw new IllegalArgumentException("Negative values are forbidden: "
+					+ offset + ", " + oldLength + ", " + newLength);
+		} else {
+			this.layer = layer;
+			this.offset = offset;
+			this.oldLength = oldLength;
+			this.newLength = newLength;
+		}
+	}
+
+	/**
+	 *
+	 * @return the {@link Layer} which has been modified
+	 */
+	public Layer getLayer() {
+		return layer;
+	}
+
+	/**
+	 *
+	 * @return the position of the first character modified
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 *
+	 * @return the number of characters which have been replaced
+	 */
+	public int getOldLength() {
+		return oldLength;
+	}
+
+	/**
+	 *
+	 * @return the number of characters which replace them
+	 */
+	public int getNewLength() {
+		return newLength;
+	}
+
+	/**
+	 *
+	 * @return the characters which replace the old ones, retrieved from the
+	 *         current content of the {@link Layer}
+	 */
+	public String getNewContent() {
+		return layer.getContent().substring(offset, offset + newLength);
+	}
+
+	/**
+	 * This method provides the same {@link ContentChange} but for a
+	 * {@link Layer} containing the modified one, like a composite
+	 * {@link Layer} notifying the modification of one of its sub-
+	 * {@link Layer}s.
+	 *
+	 * @param container
+	 *            the {@link Layer} containing the modified one
+	 * @param start
+	 *            the position of the modified {@link Layer} in the content of
+	 *            the container
+	 * @return the {@link ContentChange} of the container
+	 */
+	public ContentChange shift(Layer container, int start) {
+		return new ContentChange(container, start + offset, oldLength,
+				newLength);
+	}
+
+	/**
+	 * This method coalesces two successive {@link ContentChange}s of the same
+	 * {@link Layer} into a single one, which covers both. This allows to
+	 * notify a single {@link ContentChange} for a burst of modifications.
+	 *
+	 * @param first
+	 *            the first {@link ContentChange}
+	 * @param second
+	 *            the {@link ContentChange} which happened after the first one
+	 * @return a {@link ContentChange} equivalent to both
+	 */
+	public static ContentChange merge(ContentChange first, ContentChange second) {
+		if (first.layer != second.layer) {
+			throw new IllegalArgumentException(
+					"Changes of different layers cannot be merged: "
+							+ first.layer + " and " + second.layer);
+		} else {
+			int start = Math.min(first.offset, second.offset);
+			int end = Math.max(first.offset + first.newLength, second.offset
+					+ second.oldLength);
+			int oldEnd = end - first.newLength + first.oldLength;
+			int newEnd = end + second.newLength - second.oldLength;
+			return new ContentChange(first.layer, start, oldEnd - start,
+					newEnd - start);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return layer + "[" + offset + "+" + oldLength + "->" + newLength + "]";
+	}
+}
@@ -0,0 +1,21 @@
+package fr.vergne.parsing.layer;
+
+/**
+ * A {@link Copyable} {@link Layer} exposes its {@link #clone()} method
+ * publicly, so its clones can be requested directly rather than by finding
+ * the method through reflection. It is particularly relevant for the
+ * {@link Layer}s used as templates, which are cloned to generate each new
+ * occurrence. A {@link Copyable} class which extends another one should
+ * override {@link #clone()} to return an instance of its own class.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+public interface Copyable {
+
+	/**
+	 *
+	 * @return an independent copy of this instance, with the same content
+	 */
+	public Object clone();
+}
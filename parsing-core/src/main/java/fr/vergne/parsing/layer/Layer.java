@@ -106,6 +106,29 @@ public interface Layer {
 		public void contentSet(String newContent);
 	}
 
+	/**
+	 * A {@link ChangeListener} is notified of the same modifications than a
+	 * {@link ContentListener}, but through a {@link ContentChange} which tells
+	 * which part of the content has been modified instead of providing the
+	 * whole new content. Thus, notifying it does not require to build the new
+	 * content, which makes it the listener to use for composite {@link Layer}
+	 * s which need to know when one of their sub-{@link Layer}s is modified.
+	 * 
+	 * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+	 * 
+	 */
+	public static interface ChangeListener {
+
+		/**
+		 * This method is called just after the modification of the content.
+		 * Thus, the content is already changed when this method is called.
+		 * 
+		 * @param change
+		 *            the description of the modification
+		 */
+		public void contentChanged(ContentChange change);
+	}
+
 	@SuppressWarnings("serial")
 	public static class NoContentException extends RuntimeException {
 		public NoContentException() {
@@ -1,25 +1,45 @@
 package fr.vergne.parsing.layer.exception;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
 import fr.vergne.parsing.layer.Layer;
+import fr.vergne.parsing.layer.util.TextPosition;
 
+/**
+ * A {@link ParsingException} tells that a content cannot be parsed by a
+ * {@link Layer}. Many of them are thrown and caught while parsing, for
+ * instance each time an alternative of a choice does not fit, so they are
+ * made cheap: their message is formatted only when {@link #getMessage()} is
+ * called, and the ones created while the layers parse (see
+ * {@link #setStackless(boolean)}) do not fill in their stack trace. The layers
+ * fill it in through {@link #materialize()} when the exception escapes to the
+ * caller.
+ * 
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ * 
+ */
 @SuppressWarnings("serial")
 public class ParsingException extends IllegalArgumentException {
 
-	private final String regex;
+	private static final ThreadLocal<Boolean> isStackless = new ThreadLocal<Boolean>();
+	private final transient Layer parent;
+	private final transient Layer blocker;
+	private String regex;
 	private final String content;
 	private final int start;
 	private final int end;
+	private String message;
+	private transient TextPosition position;
 
 	public ParsingException(String regex, String content) {
 		this(regex, content, null);
 	}
 
 	public ParsingException(String regex, String content, Throwable cause) {
-		super(
-				"Incompatible regex "
-						+ (regex == null ? "(empty)" : "\""
-								+ formatRegex(regex) + "\"")
-						+ " for content \"" + format(content) + "\"", cause);
+		super(null, cause);
+		this.parent = null;
+		this.blocker = null;
 		this.regex = regex;
 		this.content = content;
 		this.start = 0;
@@ -33,26 +53,101 @@ public class ParsingException extends IllegalArgumentException {
 
 	public ParsingException(Layer parent, Layer blocker, String content,
 			int start, int end, Throwable cause) {
-		super((blocker == null ? "Nothing expected" : "Unable to parse "
-				+ format(blocker.toString()))
-				+ " for "
-				+ format(parent.toString())
-				+ " from "
-				+ formatStart(content, start)
-				+ ": \""
-				+ format(content.substring(start, end)) + "\"", cause);
-		this.regex = blocker == null ? null : blocker.getRegex();
-		this.content = content;
-		this.start = start;
-		this.end = end;
+		super(null, cause);
+		if (start < 0 || end > content.length() || start > end) {
+			throw new StringIndexOutOfBoundsException("Invalid range [" + start
+					+ ";" + end + "] for a content of " + content.length()
+					+ " characters");
+		} else {
+			this.parent = parent;
+			this.blocker = blocker;
+			this.content = content;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	@Override
+	public String getMessage() {
+		if (message == null) {
+			if (parent == null) {
+				message = "Incompatible regex "
+						+ (regex == null ? "(empty)" : "\""
+								+ formatRegex(regex) + "\"")
+						+ " for content \"" + format(content) + "\"";
+			} else {
+				message = (blocker == null ? "Nothing expected"
+						: "Unable to parse " + format(blocker.toString()))
+						+ " for "
+						+ format(parent.toString())
+						+ " from "
+						+ getTextPosition().format(start)
+						+ ": \""
+						+ format(content.substring(start, end)) + "\"";
+			}
+		} else {
+			// reuse the formatted one
+		}
+		return message;
+	}
+
+	/**
+	 * While {@link #setStackless(boolean)} is set to <code>true</code> in the
+	 * current thread, the {@link ParsingException}s are created without stack
+	 * trace.
+	 */
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		if (Boolean.TRUE.equals(isStackless.get())) {
+			return this;
+		} else {
+			return super.fillInStackTrace();
+		}
+	}
+
+	/**
+	 * This method tells whether the {@link ParsingException}s created in the
+	 * current thread should fill in their stack trace. It is used by the
+	 * layers while they parse a content, because most of the
+	 * {@link ParsingException}s are then caught to try something else, so
+	 * their stack trace would never be used.
+	 * 
+	 * @param stackless
+	 *            <code>true</code> to create the {@link ParsingException}s
+	 *            without stack trace, <code>false</code> to fill it in as
+	 *            usual
+	 */
+	public static void setStackless(boolean stackless) {
+		if (stackless) {
+			isStackless.set(true);
+		} else {
+			isStackless.remove();
+		}
+	}
+
+	/**
+	 * This method fills in the stack trace of this {@link ParsingException}
+	 * and of its {@link ParsingException} causes if it has not been done at
+	 * their creation. It should be called once the exception escapes the
+	 * parsing, so the caller gets a usable stack trace.
+	 * 
+	 * @return this {@link ParsingException}
+	 */
+	public ParsingException materialize() {
+		Throwable exception = this;
+		while (exception instanceof ParsingException) {
+			if (exception.getStackTrace().length == 0) {
+				exception.fillInStackTrace();
+			} else {
+				// already filled in
+			}
+			exception = exception.getCause();
+		}
+		return this;
 	}
 
 	public static String formatStart(String content, int start) {
-		String prefix = content.substring(0, start);
-		prefix = prefix.replaceAll("(\n\r?)|(\r\n?)", "\n");
-		int line = prefix.replaceAll("[^\n]", "").length() + 1;
-		int position = prefix.replaceAll(".*\n", "").length() + 1;
-		return "(" + line + "," + position + ")";
+		return new TextPosition(content).format(start);
 	}
 
 	public static String formatRegex(String regex) {
@@ -71,10 +166,46 @@ public class ParsingException extends IllegalArgumentException {
 		return string;
 	}
 
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		getMessage();
+		getRegex();
+		out.defaultWriteObject();
+	}
+
 	public String getRegex() {
+		if (regex == null && blocker != null) {
+			regex = blocker.getRegex();
+		} else {
+			// no regex or already retrieved
+		}
 		return regex;
 	}
 
+	/**
+	 * The {@link TextPosition} is created once, when requested. A
+	 * {@link ParsingException} caused by another one on the same content
+	 * reuses its {@link TextPosition}, so the lines are indexed only once for
+	 * all the levels of {@link Layer}s which rethrow on the same content.
+	 * 
+	 * @return the {@link TextPosition} of the content, which allows to
+	 *         translate {@link #getStart()} and {@link #getEnd()} into lines
+	 *         and columns
+	 */
+	public TextPosition getTextPosition() {
+		if (position == null) {
+			Throwable cause = getCause();
+			if (cause instanceof ParsingException
+					&& ((ParsingException) cause).content == content) {
+				position = ((ParsingException) cause).getTextPosition();
+			} else {
+				position = new TextPosition(content);
+			}
+		} else {
+			// reuse the existing one
+		}
+		return position;
+	}
+
 	public String getContent() {
 		return content;
 	}
@@ -4,15 +4,26 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
 
 import fr.vergne.ioutils.StringUtils;
+import fr.vergne.parsing.layer.ComposableLayer;
+import fr.vergne.parsing.layer.ContentChange;
 import fr.vergne.parsing.layer.Layer;
+import fr.vergne.parsing.layer.exception.ParsingException;
 import fr.vergne.parsing.layer.util.Any;
+import fr.vergne.parsing.layer.util.LayerProxy;
+import fr.vergne.parsing.layer.util.Newline;
+import fr.vergne.parsing.regex.PatternRegex;
+import fr.vergne.parsing.regex.Regex;
+import fr.vergne.parsing.regex.RegexEngine;
+import fr.vergne.parsing.regex.RegexNode;
 
-public abstract class AbstractLayer implements Layer {
+public abstract class AbstractLayer implements ComposableLayer {
 
 	/**
 	 * {@link Layer}s are used in other layers to build tree structures.
@@ -23,12 +34,84 @@ public abstract class AbstractLayer implements Layer {
 	 * considered to be a generic ".*". Notice that this limit is the number of
 	 * time we call the same {@link Layer}, not the number of layer. Thus, as
 	 * long as it is not recursive, a really deep structure is completely
-	 * browsed.
+	 * browsed.<br/>
+	 * <br/>
+	 * This value is read each time the regex of a root {@link Layer} starts to
+	 * be built (see {@link RegexContext}), so changing it impacts only the next
+	 * calls to {@link #getRegex()}.
 	 */
 	public static int recursivityDepth = 10;
-	private static final Charset ENCODING = Charset.forName("UTF-8");
-	private static final Map<Class<?>, Integer> calls = new HashMap<Class<?>, Integer>();
+	/**
+	 * The {@link ParsingEngine} used to split the content of composite
+	 * {@link Layer}s among their sub-{@link Layer}s. This value is read each
+	 * time the content of a root {@link Layer} starts to be set (see
+	 * {@link ParseContext}), so changing it impacts only the next calls to
+	 * {@link #setContent(String)}.
+	 */
+	public static ParsingEngine parsingEngine = ParsingEngine.REGEX;
+	/**
+	 * The maximal number of matches memoized by
+	 * {@link ParsingEngine#PACKRAT} during a parsing. Once reached, the least
+	 * recently used ones are forgotten. Like {@link #parsingEngine}, this value
+	 * is read each time the content of a root {@link Layer} starts to be set.
+	 */
+	public static int memoCapacity = 100000;
+	/**
+	 * The {@link RegexEngine} used by default to match the regex of the
+	 * {@link Layer}s. A {@link Layer} can use a specific one through
+	 * {@link #setRegexEngine(RegexEngine)}, in which case it is also used by
+	 * its sub-{@link Layer}s when it parses its content (see
+	 * {@link #getRegexEngine()}). The regex which are not supported by the
+	 * {@link RegexEngine}, like the lookarounds of {@link Newline} for
+	 * {@link RegexEngine#AUTOMATON}, are matched with
+	 * {@link RegexEngine#PATTERN}.
+	 */
+	public static RegexEngine regexEngine = RegexEngine.PATTERN;
+	/**
+	 * If <code>true</code>, the composite {@link Layer}s do not fill their
+	 * sub-{@link Layer}s when their content is set, but only check it and
+	 * record where the content of each sub-{@link Layer} starts and ends. A
+	 * sub-{@link Layer} is filled the first time it is requested through its
+	 * parent, like with {@link Suite#get(int)}, the iteration of a
+	 * {@link Loop}, {@link Choice#getCurrent()} or {@link Option#getOption()}
+	 * , so a big content of which only a few parts are read does not build
+	 * the {@link Layer}s of the other parts. Consequently, a sub-{@link Layer}
+	 * should always be requested through its parent rather than through a
+	 * reference kept elsewhere, which is not filled until then. The check
+	 * relies on the regex of the sub-{@link Layer}s (or on
+	 * {@link ComposableLayer#match(CharSequence, int)} with {@link ParsingEngine#DESCENT}
+	 * and {@link ParsingEngine#PACKRAT}), so a recursive {@link Layer} which
+	 * is deeper than {@link #recursivityDepth} may throw its
+	 * {@link ParsingException} only when it is filled.<br/>
+	 * <br/>
+	 * Like {@link #parsingEngine}, this value is read each time the content
+	 * of a root {@link Layer} starts to be set, as well as each time a
+	 * sub-{@link Layer} is filled.
+	 */
+	public static boolean lazyMaterialization = false;
+	/**
+	 * The encoding used to translate the content of the {@link Layer}s into
+	 * bytes and back.
+	 */
+	protected static final Charset ENCODING = Charset.forName("UTF-8");
+	/**
+	 * The maximal number of {@link Pattern}s kept by {@link #compile(String)},
+	 * and of {@link Regex}s kept by {@link #compile(RegexEngine, String)} for
+	 * each {@link RegexEngine}. Once reached, the cache is emptied before to
+	 * store new ones.
+	 */
+	static final int PATTERNS_LIMIT = 1000;
+	private static final ConcurrentMap<String, Pattern> patterns = new ConcurrentHashMap<String, Pattern>();
+	private static final ConcurrentMap<RegexEngine, ConcurrentMap<String, Regex>> regexes = new ConcurrentHashMap<RegexEngine, ConcurrentMap<String, Regex>>();
 	private final Collection<ContentListener> listeners = new HashSet<ContentListener>();
+	private final Collection<ChangeListener> changeListeners = new HashSet<ChangeListener>();
+	private int changesLevel = 0;
+	private ContentChange pendingChange = null;
+	private RegexEngine layerRegexEngine = null;
+	private RegexNode regexNode = null;
+	private String regex = null;
+	private boolean isRegexTruncated = false;
+	private int regexDepth = 0;
 
 	@Override
 	public void addContentListener(ContentListener listener) {
@@ -40,77 +123,619 @@ public abstract class AbstractLayer implements Layer {
 		listeners.remove(listener);
 	}
 
+	@Override
+	public void addChangeListener(ChangeListener listener) {
+		changeListeners.add(listener);
+	}
+
+	@Override
+	public void removeChangeListener(ChangeListener listener) {
+		changeListeners.remove(listener);
+	}
+
+	/**
+	 * This method calls {@link ComposableLayer#appendTo(Appendable)} if the
+	 * {@link Layer} is a {@link ComposableLayer}. Otherwise, it appends the
+	 * content returned by {@link Layer#getContent()}.
+	 * 
+	 * @param layer
+	 *            the {@link Layer} to write
+	 * @param appendable
+	 *            the {@link Appendable} to write the content in
+	 * @throws IOException
+	 *             if the {@link Appendable} fails to store the content
+	 * @throws NoContentException
+	 *             when no content is available
+	 */
+	public static void appendTo(Layer layer, Appendable appendable)
+			throws IOException {
+		if (layer instanceof ComposableLayer) {
+			((ComposableLayer) layer).appendTo(appendable);
+		} else {
+			String content = layer.getContent();
+			if (content == null) {
+				throw new NoContentException();
+			} else {
+				appendable.append(content);
+			}
+		}
+	}
+
+	/**
+	 * This method calls {@link ComposableLayer#getContentLength()} if the
+	 * {@link Layer} is a {@link ComposableLayer}. Otherwise, it measures the
+	 * content returned by {@link Layer#getContent()}.
+	 * 
+	 * @param layer
+	 *            the {@link Layer} to measure
+	 * @return the number of characters of the content of the {@link Layer}
+	 * @throws NoContentException
+	 *             when no content is available
+	 */
+	public static int getContentLength(Layer layer) {
+		if (layer instanceof ComposableLayer) {
+			return ((ComposableLayer) layer).getContentLength();
+		} else {
+			String content = layer.getContent();
+			if (content == null) {
+				throw new NoContentException();
+			} else {
+				return content.length();
+			}
+		}
+	}
+
+	/**
+	 * This method calls {@link ComposableLayer#match(CharSequence, int)} if
+	 * the {@link Layer} is a {@link ComposableLayer}. Otherwise, it matches
+	 * the complete regex of the {@link Layer}, like with
+	 * {@link ParsingEngine#REGEX}.
+	 * 
+	 * @param layer
+	 *            the {@link Layer} to match
+	 * @param content
+	 *            the content to match
+	 * @param offset
+	 *            the position where the {@link Layer} should start
+	 * @return the position where the {@link Layer} ends, -1 if it cannot
+	 *         start at this position
+	 */
+	public static int match(Layer layer, CharSequence content, int offset) {
+		if (layer instanceof ComposableLayer) {
+			return ((ComposableLayer) layer).match(content, offset);
+		} else {
+			ParseContext context = ParseContext.current();
+			RegexEngine engine = context == null ? regexEngine : context
+					.getRegexEngine();
+			return compile(engine, layer.getRegex()).lookingAt(content,
+					offset);
+		}
+	}
+
+	/**
+	 * This method calls
+	 * {@link ComposableLayer#addChangeListener(ChangeListener)} if the
+	 * {@link Layer} is a {@link ComposableLayer}. Otherwise, the
+	 * {@link ChangeListener} is notified through a {@link ContentListener},
+	 * each modification being a replacement of the whole content.
+	 * 
+	 * @param layer
+	 *            the {@link Layer} to listen
+	 * @param listener
+	 *            the listener to add
+	 */
+	public static void addChangeListener(Layer layer, ChangeListener listener) {
+		if (layer instanceof ComposableLayer) {
+			((ComposableLayer) layer).addChangeListener(listener);
+		} else {
+			layer.addContentListener(new ChangeListenerAdapter(layer,
+					listener));
+		}
+	}
+
+	/**
+	 * This method removes a listener added through
+	 * {@link #addChangeListener(Layer, ChangeListener)}.
+	 * 
+	 * @param layer
+	 *            the {@link Layer} listened
+	 * @param listener
+	 *            the listener to remove
+	 */
+	public static void removeChangeListener(Layer layer,
+			ChangeListener listener) {
+		if (layer instanceof ComposableLayer) {
+			((ComposableLayer) layer).removeChangeListener(listener);
+		} else {
+			layer.removeContentListener(new ChangeListenerAdapter(layer,
+					listener));
+		}
+	}
+
+	/**
+	 * A {@link ChangeListenerAdapter} notifies a {@link ChangeListener} of the
+	 * modifications of a {@link Layer} which is not a {@link ComposableLayer}.
+	 * It remembers the length of the content to describe each modification.
+	 * Two adapters of the same {@link ChangeListener} on the same {@link Layer}
+	 * are equal, so a new one can be used to remove the one added.
+	 */
+	private static class ChangeListenerAdapter implements ContentListener {
+
+		private final Layer layer;
+		private final ChangeListener listener;
+		private int length;
+
+		public ChangeListenerAdapter(Layer layer, ChangeListener listener) {
+			this.layer = layer;
+			this.listener = listener;
+			String content = layer.getContent();
+			this.length = content == null ? 0 : content.length();
+		}
+
+		@Override
+		public void contentSet(String newContent) {
+			int oldLength = length;
+			length = newContent.length();
+			listener.contentChanged(new ContentChange(layer, 0, oldLength,
+					length));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj instanceof ChangeListenerAdapter) {
+				ChangeListenerAdapter adapter = (ChangeListenerAdapter) obj;
+				return adapter.layer == layer && adapter.listener == listener;
+			} else {
+				return false;
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(layer) * 31
+					+ System.identityHashCode(listener);
+		}
+	}
+
 	@Override
 	public final void setContent(String content) {
 		if (content == null) {
 			throw new NullPointerException("No content has been provided.");
 		} else {
-			setInternalContent(content);
-			fireContentUpdate(content);
+			try {
+				parse(content);
+			} catch (ParsingException e) {
+				if (ParseContext.current() == null) {
+					throw e.materialize();
+				} else {
+					throw e;
+				}
+			}
+		}
+	}
+
+	private void parse(String content) {
+		ParseContext context = ParseContext.open();
+		try {
+			context.start(content, layerRegexEngine);
+			if (!isListened()) {
+				setInternalContent(content);
+			} else {
+				int oldLength = getCurrentLength();
+				setInternalContent(content);
+				fireContentChange(new ContentChange(this, 0, oldLength,
+						content.length()), content);
+			}
+		} finally {
+			context.close();
+		}
+	}
+
+	/**
+	 * This method sets the content of a sub-{@link Layer} during the parsing
+	 * of its parent, as requested by
+	 * {@link ParseContext#setContent(Layer, CharSequence, int, int)}. The
+	 * content is not copied but given as a part of the source, through
+	 * {@link #setInternalContent(String, int, int)}.
+	 * 
+	 * @param source
+	 *            the {@link String} the content is part of
+	 * @param start
+	 *            the position of the content in the source
+	 * @param end
+	 *            the position where the content ends in the source
+	 */
+	final void setContent(String source, int start, int end) {
+		ParseContext context = ParseContext.open();
+		try {
+			context.start(source, layerRegexEngine);
+			if (!isListened()) {
+				setInternalContent(source, start, end);
+			} else {
+				int oldLength = getCurrentLength();
+				setInternalContent(source, start, end);
+				fireContentChange(new ContentChange(this, 0, oldLength, end
+						- start), null);
+			}
+		} finally {
+			context.close();
 		}
 	}
 
 	/**
-	 * This method allows to notify the {@link ContentListener}s registered
-	 * through
-	 * {@link #addContentListener(fr.vergne.parsing.layer.Layer.ContentListener)}
-	 * that the content of the {@link Layer} has changed. If you plan to call
-	 * {@link #getContent()} in order to generate the argument of this method,
-	 * prefer to call {@link #fireContentUpdate()} to call it only if necessary.
+	 * This method allows a composite {@link Layer} implementing
+	 * {@link #setInternalContent(String, int, int)} to give a part of its
+	 * source to one of its sub-{@link Layer}s without copying it. It can be
+	 * called while the content of this {@link Layer} is set, as well as later
+	 * to fill a sub-{@link Layer} with {@link #lazyMaterialization}.
 	 * 
-	 * @param newContent
-	 *            the new content of this {@link Layer}
+	 * @param sublayer
+	 *            the sub-{@link Layer} to set
+	 * @param source
+	 *            the source received by this {@link Layer}
+	 * @param start
+	 *            the position of the content of the sub-{@link Layer} in the
+	 *            source
+	 * @param end
+	 *            the position where the content of the sub-{@link Layer}
+	 *            ends in the source
 	 */
-	protected void fireContentUpdate(String newContent) {
-		for (ContentListener listener : listeners) {
-			listener.contentSet(newContent);
+	protected void setSubContent(Layer sublayer, String source, int start,
+			int end) {
+		try {
+			ParseContext context = ParseContext.open();
+			try {
+				context.start(source, layerRegexEngine);
+				context.setContent(sublayer, source, start, end);
+			} finally {
+				context.close();
+			}
+		} catch (ParsingException e) {
+			if (ParseContext.current() == null) {
+				throw e.materialize();
+			} else {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return <code>true</code> if the sub-{@link Layer}s should be filled
+	 *         only when requested (see {@link #lazyMaterialization})
+	 */
+	protected boolean isLazy() {
+		ParseContext context = ParseContext.open();
+		try {
+			return context.isLazy();
+		} finally {
+			context.close();
 		}
 	}
 
 	/**
-	 * This method is equivalent to {@link #fireContentUpdate(String)}, excepted
-	 * that:
-	 * <ul>
-	 * <li>the content is retrieved from {@link #getContent()}</li>
-	 * <li>nothing is done if no listener is registered</li>
-	 * </ul>
-	 * Consequently, this method is more suited to cases where the content is
-	 * not build yet: if no listeners is registered, then no content will be
-	 * generated.
+	 * 
+	 * @return the {@link ParsingEngine} to use in
+	 *         {@link #setInternalContent(String)}
+	 */
+	protected ParsingEngine getParsingEngine() {
+		ParseContext context = ParseContext.open();
+		try {
+			return context.getEngine();
+		} finally {
+			context.close();
+		}
+	}
+
+	@Override
+	public final int match(CharSequence content, int offset) {
+		ParseContext context = ParseContext.current();
+		if (context == null) {
+			return matchContent(content, offset);
+		} else {
+			return context.memoize(this, content, offset);
+		}
+	}
+
+	/**
+	 * This method implements {@link #match(CharSequence, int)}, which may
+	 * reuse its previous results when {@link ParsingEngine#PACKRAT} is used.
+	 * By default, a {@link Layer} is matched with its complete regex, like
+	 * with the {@link ParsingEngine#REGEX} engine. Composite {@link Layer}s
+	 * should override this method to match their sub-{@link Layer}s one after
+	 * the other instead.
+	 * 
+	 * @param content
+	 *            the content to match
+	 * @param offset
+	 *            the position where the match should start
+	 * @return the position where the match ends, -1 if there is no match
+	 */
+	protected int matchContent(CharSequence content, int offset) {
+		return compileRegex(getRegex()).lookingAt(content, offset);
+	}
+
+	/**
+	 * The results of {@link #match(CharSequence, int)} memoized by
+	 * {@link ParsingEngine#PACKRAT} are identified by this key and the
+	 * position of the match. By default, it is the {@link Layer} itself, but
+	 * {@link Layer}s which always match the same way can return the same key
+	 * to share their results.
+	 * 
+	 * @return the key identifying the matches of this {@link Layer}
+	 */
+	protected Object getMemoKey() {
+		return this;
+	}
+
+	private int getCurrentLength() {
+		try {
+			return getContentLength();
+		} catch (NoContentException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * 
+	 * @return <code>true</code> if some listeners are registered on this
+	 *         {@link Layer}, <code>false</code> otherwise, in which case there
+	 *         is no need to compute the {@link ContentChange}s to notify
+	 */
+	protected boolean isListened() {
+		return !listeners.isEmpty() || !changeListeners.isEmpty();
+	}
+
+	/**
+	 * This method allows to notify the listeners registered through
+	 * {@link #addChangeListener(ChangeListener)} and
+	 * {@link #addContentListener(ContentListener)} that a part of the content
+	 * of the {@link Layer} has changed. The {@link ChangeListener}s receive
+	 * the {@link ContentChange} as is, while the new content is built for the
+	 * {@link ContentListener}s only if some are registered. If the arguments
+	 * are costly to compute, check {@link #isListened()} before.<br/>
+	 * <br/>
+	 * Between {@link #beginChanges()} and {@link #endChanges()}, the
+	 * {@link ContentChange}s are not notified but merged, so a single one is
+	 * notified for the whole burst of modifications.
+	 * 
+	 * @param offset
+	 *            the position of the modification in the content of this
+	 *            {@link Layer}
+	 * @param oldLength
+	 *            the number of characters replaced
+	 * @param newLength
+	 *            the number of characters replacing them
 	 */
-	protected void fireContentUpdate() {
-		if (listeners.isEmpty()) {
-			// do not do anything
+	protected void fireContentChange(int offset, int oldLength, int newLength) {
+		fireContentChange(new ContentChange(this, offset, oldLength,
+				newLength), null);
+	}
+
+	private void fireContentChange(ContentChange change, String newContent) {
+		if (!isListened()) {
+			// nobody to notify
+		} else if (changesLevel > 0) {
+			pendingChange = pendingChange == null ? change : ContentChange
+					.merge(pendingChange, change);
 		} else {
-			String newContent = getContent();
-			for (ContentListener listener : listeners) {
-				listener.contentSet(newContent);
+			for (ChangeListener listener : changeListeners) {
+				listener.contentChanged(change);
 			}
+			if (listeners.isEmpty()) {
+				// no need to build the content
+			} else {
+				if (newContent == null) {
+					newContent = getContent();
+				} else {
+					// use the one provided
+				}
+				for (ContentListener listener : listeners) {
+					listener.contentSet(newContent);
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method starts a burst of modifications, which ends at the next call
+	 * of {@link #endChanges()}. Until then, the {@link ContentChange}s passed
+	 * to {@link #fireContentChange(int, int, int)} are merged instead of being
+	 * notified. Bursts can be nested, in which case the notification occurs at
+	 * the end of the outermost one.
+	 */
+	protected void beginChanges() {
+		changesLevel++;
+	}
+
+	/**
+	 * This method ends a burst of modifications started with
+	 * {@link #beginChanges()}, notifying a single {@link ContentChange}
+	 * covering all the modifications of the burst, if any.
+	 */
+	protected void endChanges() {
+		changesLevel--;
+		if (changesLevel == 0 && pendingChange != null) {
+			ContentChange change = pendingChange;
+			pendingChange = null;
+			fireContentChange(change, null);
+		} else {
+			// still in a burst or nothing to notify
 		}
 	}
 
 	protected abstract void setInternalContent(String content);
 
+	/**
+	 * This method is called instead of {@link #setInternalContent(String)}
+	 * when this {@link Layer} is parsed as part of another one. Rather than a
+	 * copy of its content, it receives a content containing it, usually the
+	 * content of the root {@link Layer}, called the source, with the
+	 * positions of its own content in it. By
+	 * default, the content is copied and given to
+	 * {@link #setInternalContent(String)}, but a {@link Layer} can override
+	 * this method to keep the positions instead, and to give parts of the
+	 * source to its own sub-{@link Layer}s (see
+	 * {@link ParseContext#setContent(Layer, CharSequence, int, int)}), so the
+	 * source is shared rather than copied at each level.
+	 * 
+	 * @param source
+	 *            the content containing the one of this {@link Layer}
+	 * @param start
+	 *            the position of the content of this {@link Layer} in the
+	 *            source
+	 * @param end
+	 *            the position where the content of this {@link Layer} ends in
+	 *            the source
+	 */
+	protected void setInternalContent(String source, int start, int end) {
+		setInternalContent(source.substring(start, end));
+	}
+
+	/**
+	 * This method tells this {@link Layer}, which keeps the same content, that
+	 * its content is now found in another source, starting at the given
+	 * position. The {@link Layer} refers to the new source from now on, so the
+	 * previous one can be released, while its content is not parsed again. By
+	 * default, nothing is done and <code>false</code> is returned, meaning
+	 * that the {@link Layer} should be parsed again to use the new source.
+	 *
+	 * @param source
+	 *            the new source, which contains the content of this
+	 *            {@link Layer}
+	 * @param start
+	 *            the position of the content of this {@link Layer} in the new
+	 *            source
+	 * @return <code>true</code> if this {@link Layer} now refers to the new
+	 *         source, <code>false</code> if it should be parsed again
+	 */
+	protected boolean relocate(String source, int start) {
+		return false;
+	}
+
+	/**
+	 * This method calls {@link #relocate(String, int)} on any {@link Layer}
+	 * supporting it, including the ones wrapped in a {@link LayerProxy}.
+	 *
+	 * @param layer
+	 *            the {@link Layer} to relocate
+	 * @param source
+	 *            the new source, which contains the content of the
+	 *            {@link Layer}
+	 * @param start
+	 *            the position of the content of the {@link Layer} in the new
+	 *            source
+	 * @return <code>true</code> if the {@link Layer} now refers to the new
+	 *         source, <code>false</code> if it should be parsed again
+	 */
+	protected static boolean relocate(Layer layer, String source, int start) {
+		if (layer instanceof AbstractLayer) {
+			return ((AbstractLayer) layer).relocate(source, start);
+		} else if (layer instanceof LayerProxy) {
+			return relocate(((LayerProxy<?>) layer).getLayer(), source, start);
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * The regex of a {@link Layer} is built once and reused for the next calls
+	 * of this method. A {@link Layer} is not supposed to change its regex, so
+	 * the regex kept is the one built the first time. The only exception is
+	 * for recursive {@link Layer}s, which have their regex truncated (see
+	 * {@link #recursivityDepth}): the regex built for the {@link Layer} itself
+	 * is kept, but the regex built for it as part of another {@link Layer} is
+	 * not, because it depends on this other {@link Layer}.
+	 */
 	@Override
 	public final String getRegex() {
-		synchronized (calls) {
-			Class<? extends AbstractLayer> clazz = getClass();
-			int value = calls.containsKey(clazz) ? calls.get(clazz) : 0;
-			if (value >= recursivityDepth) {
-				return new Any().getRegex();
+		RegexNode node = getRegexNode();
+		if (node != regexNode) {
+			return node.toString();
+		} else if (regex == null) {
+			regex = node.toString();
+			return regex;
+		} else {
+			return regex;
+		}
+	}
+
+	/**
+	 * This method provides the same regex than {@link #getRegex()}, but as a
+	 * {@link RegexNode}. This is the method to use to build the regex of a
+	 * composite {@link Layer}, so the regex of its sub-{@link Layer}s are not
+	 * copied at each level of the composition.
+	 * 
+	 * @return the {@link RegexNode} representing this {@link Layer}
+	 */
+	public final RegexNode getRegexNode() {
+		RegexContext context = RegexContext.open();
+		try {
+			boolean isRoot = context.isRoot();
+			if (regexNode != null
+					&& (!isRegexTruncated || isRoot
+							&& regexDepth == context.getRecursivityDepth())) {
+				return regexNode;
 			} else {
-				calls.put(clazz, value + 1);
-				String regex = buildRegex();
-				if (value == 0) {
-					calls.remove(clazz);
+				Class<? extends AbstractLayer> clazz = getClass();
+				if (context.enter(clazz)) {
+					int truncations = context.getTruncations();
+					RegexNode built;
+					try {
+						built = buildRegexNode();
+					} finally {
+						context.exit(clazz);
+					}
+					boolean isTruncated = context.getTruncations() != truncations;
+					if (!isTruncated || isRoot) {
+						regexNode = built;
+						regex = null;
+						isRegexTruncated = isTruncated;
+						regexDepth = context.getRecursivityDepth();
+					} else {
+						// depends on the context, don't keep it
+					}
+					return built;
 				} else {
-					calls.put(clazz, value);
+					return new Any().getRegexNode();
 				}
-				return regex;
 			}
+		} finally {
+			context.close();
 		}
 	}
 
+	/**
+	 * 
+	 * @param layer
+	 *            a {@link Layer}
+	 * @return the {@link RegexNode} of the {@link Layer}, built from its
+	 *         {@link #getRegex()} if it is not an {@link AbstractLayer}
+	 */
+	protected static RegexNode toRegexNode(Layer layer) {
+		if (layer instanceof AbstractLayer) {
+			return ((AbstractLayer) layer).getRegexNode();
+		} else {
+			return RegexNode.literal(layer.getRegex());
+		}
+	}
+
+	/**
+	 * This method allows a clone of this {@link Layer} to reuse the regex
+	 * already built by this {@link Layer}, avoiding to build it again. It
+	 * should be used only for clones, which have the same regex.
+	 * 
+	 * @param clone
+	 *            the clone of this {@link Layer}
+	 */
+	protected void shareRegex(AbstractLayer clone) {
+		clone.layerRegexEngine = layerRegexEngine;
+		clone.regexNode = regexNode;
+		clone.regex = regex;
+		clone.isRegexTruncated = isRegexTruncated;
+		clone.regexDepth = regexDepth;
+	}
+
 	/**
 	 * This method should provide the complete regular expression which
 	 * represents this {@link Layer}. However, capturing parenthesis are
@@ -122,21 +747,241 @@ public abstract class AbstractLayer implements Layer {
 	 */
 	protected abstract String buildRegex();
 
+	/**
+	 * This method provides the same regex than {@link #buildRegex()}, but as a
+	 * {@link RegexNode}. By default, it wraps the result of
+	 * {@link #buildRegex()}, but composite {@link Layer}s should override it
+	 * to compose the {@link RegexNode}s of their sub-{@link Layer}s (see
+	 * {@link #toRegexNode(Layer)}).
+	 * 
+	 * @return the {@link RegexNode} representing this {@link Layer}
+	 */
+	protected RegexNode buildRegexNode() {
+		return RegexNode.literal(buildRegex());
+	}
+
+	/**
+	 * This method provides the {@link Pattern} corresponding to the given
+	 * regex. Compiling a regex is costly, especially for composite
+	 * {@link Layer}s which have big regex, and the same regex are used again and
+	 * again by similar {@link Layer}s (e.g. the occurrences of a {@link Loop}).
+	 * Thus, the {@link Pattern}s are compiled once and shared between all the
+	 * {@link Layer}s asking for the same regex. The {@link Layer}s should
+	 * store the {@link Pattern}s they use rather than calling this method each
+	 * time they need it. This method can be called by several threads at the
+	 * same time, in which case they all get the same {@link Pattern}.
+	 * 
+	 * @param regex
+	 *            the regex to compile
+	 * @return the {@link Pattern} of this regex
+	 */
+	protected static Pattern compile(String regex) {
+		Pattern pattern = patterns.get(regex);
+		if (pattern == null) {
+			pattern = Pattern.compile(regex);
+			if (patterns.size() >= PATTERNS_LIMIT) {
+				patterns.clear();
+			} else {
+				// still some space
+			}
+			Pattern existing = patterns.putIfAbsent(regex, pattern);
+			pattern = existing == null ? pattern : existing;
+		} else {
+			// reuse the existing one
+		}
+		return pattern;
+	}
+
+	/**
+	 * This method compiles a regex with a given {@link RegexEngine}. Like
+	 * with {@link #compile(String)}, the {@link Regex}s are compiled once and
+	 * shared between all the {@link Layer}s asking for the same regex with the
+	 * same {@link RegexEngine}. If the {@link RegexEngine} does not support
+	 * the regex, it is compiled with {@link RegexEngine#PATTERN}.
+	 * 
+	 * @param engine
+	 *            the {@link RegexEngine} to use
+	 * @param regex
+	 *            the regex to compile
+	 * @return the {@link Regex} of this regex
+	 */
+	protected static Regex compile(RegexEngine engine, String regex) {
+		ConcurrentMap<String, Regex> compiled = regexes.get(engine);
+		if (compiled == null) {
+			compiled = new ConcurrentHashMap<String, Regex>();
+			ConcurrentMap<String, Regex> existing = regexes.putIfAbsent(
+					engine, compiled);
+			compiled = existing == null ? compiled : existing;
+		} else {
+			// reuse the existing one
+		}
+		Regex result = compiled.get(regex);
+		if (result == null) {
+			if (engine == RegexEngine.PATTERN) {
+				result = new PatternRegex(compile(regex));
+			} else {
+				try {
+					result = engine.compile(regex);
+				} catch (IllegalArgumentException e) {
+					result = compile(RegexEngine.PATTERN, regex);
+				}
+			}
+			if (compiled.size() >= PATTERNS_LIMIT) {
+				compiled.clear();
+			} else {
+				// still some space
+			}
+			Regex existing = compiled.putIfAbsent(regex, result);
+			result = existing == null ? result : existing;
+		} else {
+			// reuse the existing one
+		}
+		return result;
+	}
+
+	/**
+	 * 
+	 * @param regex
+	 *            the regex to compile
+	 * @return the {@link Regex} of this regex for the {@link RegexEngine} of
+	 *         this {@link Layer}
+	 */
+	protected Regex compileRegex(String regex) {
+		return compile(getRegexEngine(), regex);
+	}
+
+	/**
+	 * This method allows to choose the {@link RegexEngine} of this
+	 * {@link Layer}, rather than {@link AbstractLayer#regexEngine}. Its clones
+	 * use the same one.
+	 * 
+	 * @param engine
+	 *            the {@link RegexEngine} to use, <code>null</code> to use the
+	 *            default one
+	 */
+	public void setRegexEngine(RegexEngine engine) {
+		this.layerRegexEngine = engine;
+	}
+
+	/**
+	 * The {@link RegexEngine} used by a {@link Layer} is the one given through
+	 * {@link #setRegexEngine(RegexEngine)}. If none has been given, it is the
+	 * one of the root {@link Layer} currently parsed, if it has one, or
+	 * {@link AbstractLayer#regexEngine} otherwise. Thus, the
+	 * {@link RegexEngine} of a whole grammar can be chosen on its root
+	 * {@link Layer}.
+	 * 
+	 * @return the {@link RegexEngine} used by this {@link Layer}
+	 */
+	public RegexEngine getRegexEngine() {
+		if (layerRegexEngine != null) {
+			return layerRegexEngine;
+		} else {
+			ParseContext context = ParseContext.current();
+			return context == null ? regexEngine : context.getRegexEngine();
+		}
+	}
+
+	/**
+	 * 
+	 * @return the number of {@link Pattern}s currently stored by
+	 *         {@link #compile(String)}
+	 */
+	public static int getPatternsCacheSize() {
+		return patterns.size();
+	}
+
+	/**
+	 * 
+	 * @param engine
+	 *            the {@link RegexEngine} to consider
+	 * @return the number of {@link Regex}s currently stored by
+	 *         {@link #compile(RegexEngine, String)} for this
+	 *         {@link RegexEngine}
+	 */
+	public static int getRegexesCacheSize(RegexEngine engine) {
+		Map<String, Regex> compiled = regexes.get(engine);
+		return compiled == null ? 0 : compiled.size();
+	}
+
+	/**
+	 * This method sums the sizes of all the caches shared between the
+	 * {@link Layer}s: the one of {@link #getPatternsCacheSize()} and the ones
+	 * of {@link #getRegexesCacheSize(RegexEngine)} for each
+	 * {@link RegexEngine}. A {@link Pattern} compiled for
+	 * {@link RegexEngine#PATTERN} is counted in both, because it is stored in
+	 * both. The regex built by each {@link Layer} (see {@link #getRegex()})
+	 * is not counted, because it is stored in the {@link Layer} itself and
+	 * released with it.
+	 * 
+	 * @return the number of entries currently stored in all the caches
+	 */
+	public static int getTotalCacheSize() {
+		int size = patterns.size();
+		for (Map<String, Regex> compiled : regexes.values()) {
+			size += compiled.size();
+		}
+		return size;
+	}
+
+	/**
+	 * This method empties all the caches counted by
+	 * {@link #getTotalCacheSize()}. The {@link Layer}s which already use a
+	 * compiled regex keep it. The maps of the {@link RegexEngine}s are
+	 * emptied rather than removed, so a thread compiling a regex at the same
+	 * time does not store it in a map which is not used anymore.
+	 */
+	static void clearCaches() {
+		patterns.clear();
+		for (Map<String, Regex> compiled : regexes.values()) {
+			compiled.clear();
+		}
+	}
+
+	/**
+	 * This method builds the content in a single buffer, sized with
+	 * {@link #getContentLength()} and filled with
+	 * {@link #appendTo(Appendable)}.
+	 */
 	@Override
 	public String getContent() {
-		InputStream stream;
+		StringBuilder builder;
 		try {
-			stream = getInputStream();
+			builder = new StringBuilder(getContentLength());
+			appendTo(builder);
 		} catch (NoContentException e) {
 			return null;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
-		String content;
+		return builder.toString();
+	}
+
+	/**
+	 * By default, the content is read from {@link #getInputStream()}, but the
+	 * {@link Layer}s should override this method to write their content
+	 * directly.
+	 */
+	@Override
+	public void appendTo(Appendable appendable) throws IOException {
+		InputStream stream = getInputStream();
+		appendable.append(StringUtils.readFromInputStream(stream, ENCODING));
+		stream.close();
+	}
+
+	/**
+	 * By default, the content is written in a buffer through
+	 * {@link #appendTo(Appendable)} to know its length, but the {@link Layer}
+	 * s should override this method to compute it directly.
+	 */
+	@Override
+	public int getContentLength() {
+		StringBuilder builder = new StringBuilder();
 		try {
-			content = StringUtils.readFromInputStream(stream, ENCODING);
-			stream.close();
+			appendTo(builder);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
-		return content;
+		return builder.length();
 	}
 }
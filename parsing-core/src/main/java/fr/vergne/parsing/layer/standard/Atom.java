@@ -3,20 +3,83 @@ package fr.vergne.parsing.layer.standard;
 import java.util.regex.Pattern;
 
 import fr.vergne.parsing.layer.Layer;
+import fr.vergne.parsing.layer.exception.ParsingException;
 
 /**
  * An {@link Atom} is a {@link Layer} representing a static piece of text. This
  * is particularly suited to represent keywords and other pieces of text we are
- * expected to find exactly as-is.
+ * expected to find exactly as-is. Because its content is known in advance, an
+ * {@link Atom} is matched by comparing the characters of the content with it
+ * rather than through its regex, and its content is never copied from the
+ * parsed one.<br/>
+ * <br/>
+ * What does not depend on the instance is shared by all the {@link Atom}s of
+ * the same content: the content and its regex are interned, so the compiled
+ * regex cached for this regex is reused (see
+ * {@link AbstractLayer#compile(String)}), and no {@link java.util.regex.Matcher}
+ * is created since the characters are compared directly. An {@link Atom}
+ * parsed as part of another {@link Layer} uses its own content rather than
+ * keeping the parsed one.
  * 
  * @author Matthieu Vergne <matthieu.vergne@gmail.com>
  * 
  */
 public class Atom extends Formula {
 
+	private final String literal;
+
 	public Atom(String content) {
-		super(Pattern.quote(content));
-		setContent(content);
+		super(Pattern.quote(content).intern());
+		this.literal = content.intern();
+		setContent(literal);
+	}
+
+	private Atom(Atom atom) {
+		super(atom);
+		this.literal = atom.literal;
+	}
+
+	@Override
+	public String getContent() {
+		return literal;
+	}
+
+	@Override
+	protected boolean isMatching(String content, int start, int end) {
+		return end - start == literal.length()
+				&& content.regionMatches(start, literal, 0, literal.length());
+	}
+
+	@Override
+	protected void setInternalContent(String source, int start, int end) {
+		if (isMatching(source, start, end)) {
+			super.setInternalContent(literal);
+		} else {
+			throw new ParsingException(getRegex(), source.substring(start, end));
+		}
+	}
+
+	@Override
+	protected int matchContent(CharSequence content, int offset) {
+		int length = literal.length();
+		if (offset + length > content.length()) {
+			return -1;
+		} else if (content instanceof String) {
+			if (((String) content).regionMatches(offset, literal, 0, length)) {
+				return offset + length;
+			} else {
+				return -1;
+			}
+		} else {
+			for (int i = 0; i < length; i++) {
+				if (content.charAt(offset + i) != literal.charAt(i)) {
+					return -1;
+				} else {
+					// same character
+				}
+			}
+			return offset + length;
+		}
 	}
 
 	@Override
@@ -26,6 +89,6 @@ public class Atom extends Formula {
 
 	@Override
 	public Object clone() {
-		return new Atom(getContent());
+		return new Atom(this);
 	}
 }
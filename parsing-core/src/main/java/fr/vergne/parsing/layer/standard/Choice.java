@@ -1,17 +1,21 @@
 package fr.vergne.parsing.layer.standard;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
 
+import fr.vergne.parsing.layer.ContentChange;
+import fr.vergne.parsing.layer.Copyable;
 import fr.vergne.parsing.layer.Layer;
 import fr.vergne.parsing.layer.exception.ParsingException;
+import fr.vergne.parsing.layer.util.ContentInputStream;
+import fr.vergne.parsing.regex.RegexNode;
 
 /**
  * A {@link Choice} is a {@link Layer} representing a piece of text which can
@@ -22,14 +26,30 @@ import fr.vergne.parsing.layer.exception.ParsingException;
  * @author Matthieu Vergne <matthieu.vergne@gmail.com>
  * 
  */
-public class Choice extends AbstractLayer {
+public class Choice extends AbstractLayer implements Copyable {
 
 	private final List<? extends Layer> alternatives;
 	private Integer currentAlternative = null;
 	private Integer referenceAlternativeIndex = null;
+	/**
+	 * With {@link AbstractLayer#lazyMaterialization}, the source of the
+	 * current alternative if it is not filled yet and the position of its
+	 * content.
+	 */
+	private String pendingSource = null;
+	private int pendingStart;
+	private int pendingEnd;
+	private final ChangeListener deepListener = new ChangeListener() {
+
+		@Override
+		public void contentChanged(ContentChange change) {
+			fireContentChange(change.getOffset(), change.getOldLength(),
+					change.getNewLength());
+		}
+	};
 
 	public Choice(Collection<? extends Layer> alternatives) {
-		this.alternatives = Collections.unmodifiableList(new LinkedList<Layer>(
+		this.alternatives = Collections.unmodifiableList(new ArrayList<Layer>(
 				alternatives));
 	}
 
@@ -39,37 +59,150 @@ public class Choice extends AbstractLayer {
 
 	@Override
 	protected String buildRegex() {
-		String regex = "";
+		return buildRegexNode().toString();
+	}
+
+	@Override
+	protected RegexNode buildRegexNode() {
+		List<RegexNode> nodes = new ArrayList<RegexNode>(alternatives.size());
 		for (Layer layer : alternatives) {
-			regex += "|(?:" + layer.getRegex() + ")";
+			nodes.add(RegexNode.group(toRegexNode(layer)));
+		}
+		return RegexNode.group(RegexNode.alternation(nodes));
+	}
+
+	@Override
+	protected int matchContent(CharSequence content, int offset) {
+		for (Layer alternative : alternatives) {
+			int end = match(alternative, content, offset);
+			if (end >= 0) {
+				return end;
+			} else {
+				// try the next one
+			}
 		}
-		return "(?:" + regex.substring(1) + ")";
+		return -1;
 	}
 
 	@Override
 	public InputStream getInputStream() {
-		return getCurrent().getInputStream();
+		if (pendingSource != null) {
+			return new ContentInputStream(pendingSource.substring(
+					pendingStart, pendingEnd));
+		} else {
+			return getCurrent().getInputStream();
+		}
+	}
+
+	@Override
+	public void appendTo(Appendable appendable) throws IOException {
+		if (currentAlternative == null) {
+			throw new NoContentException();
+		} else if (pendingSource != null) {
+			appendable.append(pendingSource, pendingStart, pendingEnd);
+		} else {
+			appendTo(getCurrent(), appendable);
+		}
+	}
+
+	@Override
+	public int getContentLength() {
+		if (currentAlternative == null) {
+			throw new NoContentException();
+		} else if (pendingSource != null) {
+			return pendingEnd - pendingStart;
+		} else {
+			return getContentLength(getCurrent());
+		}
 	}
 
 	@Override
 	protected void setInternalContent(String content) {
-		Map<Layer, ParsingException> exceptions = new HashMap<Layer, ParsingException>();
-		for (Layer alternative : alternatives) {
-			try {
-				alternative.setContent(content);
-				currentAlternative = alternatives.indexOf(alternative);
-				return;
-			} catch (ParsingException e) {
-				exceptions.put(alternative, e);
+		setInternalContent(content, 0, content.length());
+	}
+
+	@Override
+	protected void setInternalContent(String source, int start, int end) {
+		CharSequence content = ContentSlice.of(source, start, end);
+		ParsingException referenceException = null;
+		pendingSource = null;
+		if (currentAlternative != null) {
+			removeChangeListener(alternatives.get(currentAlternative),
+					deepListener);
+		} else {
+			// no alternative listened
+		}
+		ParseContext context = ParseContext.current();
+		try {
+			if (context.isLazy()) {
+				for (Layer alternative : alternatives) {
+					boolean isFitting;
+					if (getParsingEngine() == ParsingEngine.REGEX) {
+						isFitting = compileRegex(alternative.getRegex())
+								.matches(content);
+					} else {
+						isFitting = context.match(alternative, content, 0) == content
+								.length();
+					}
+					if (isFitting) {
+						currentAlternative = alternatives.indexOf(alternative);
+						pendingSource = source;
+						pendingStart = start;
+						pendingEnd = end;
+						return;
+					} else {
+						// try the next one
+					}
+				}
+				// none fits, parse them to know why
+			} else {
+				// fill the alternative now
+			}
+			if (getParsingEngine() != ParsingEngine.REGEX) {
+				for (Layer alternative : alternatives) {
+					if (context.match(alternative, content, 0) == content
+							.length()) {
+						context.setContent(alternative, content, 0,
+								content.length());
+						currentAlternative = alternatives.indexOf(alternative);
+						return;
+					} else {
+						// try the next one
+					}
+				}
+			} else {
+				// try them by parsing
+			}
+			for (Layer alternative : alternatives) {
+				try {
+					context.setContent(alternative, content, 0,
+							content.length());
+					currentAlternative = alternatives.indexOf(alternative);
+					return;
+				} catch (ParsingException e) {
+					if (referenceAlternativeIndex != null
+							&& alternatives.get(referenceAlternativeIndex) == alternative) {
+						referenceException = e;
+					} else {
+						// not reported
+					}
+				}
+			}
+		} finally {
+			if (currentAlternative != null) {
+				addChangeListener(alternatives.get(currentAlternative),
+						deepListener);
+			} else {
+				// no alternative to listen
 			}
 		}
 		if (referenceAlternativeIndex != null) {
 			Layer reference = alternatives.get(referenceAlternativeIndex);
-			ParsingException cause = exceptions.get(reference);
-			throw new ParsingException(this, reference, content,
-					cause.getStart(), content.length(), cause);
+			throw new ParsingException(this, reference, content.toString(),
+					referenceException.getStart(), content.length(),
+					referenceException);
 		} else {
-			throw new ParsingException(getRegex(), content);
+			throw new ParsingException(getRegex(), content.toString());
 		}
 	}
 
@@ -96,7 +229,31 @@ public class Choice extends AbstractLayer {
 	 * @return the alternative corresponding to the current content
 	 */
 	public Layer getCurrent() {
-		return alternatives.get(currentAlternative);
+		Layer current = alternatives.get(currentAlternative);
+		if (pendingSource != null) {
+			removeChangeListener(current, deepListener);
+			try {
+				setSubContent(current, pendingSource, pendingStart, pendingEnd);
+				pendingSource = null;
+			} finally {
+				addChangeListener(current, deepListener);
+			}
+		} else {
+			// already filled
+		}
+		return current;
+	}
+
+	@Override
+	protected boolean relocate(String source, int start) {
+		if (pendingSource != null) {
+			pendingEnd = start + pendingEnd - pendingStart;
+			pendingStart = start;
+			pendingSource = source;
+			return true;
+		} else {
+			return relocate(alternatives.get(currentAlternative), source, start);
+		}
 	}
 
 	/**
@@ -146,22 +303,26 @@ public class Choice extends AbstractLayer {
 		return "CHOICE" + choices;
 	}
 
+	/**
+	 * The clone is built from clones of the alternatives of this
+	 * {@link Choice}, which have the same contents, so its content is not
+	 * parsed again.
+	 */
 	@Override
 	public Object clone() {
 		Collection<Layer> clonedAlternatives = new LinkedList<Layer>();
-		try {
-			for (Layer alternative : alternatives) {
-				Layer clone = (Layer) alternative.getClass().getMethod("clone")
-						.invoke(alternative);
-				clonedAlternatives.add(clone);
-			}
-		} catch (Exception e) {
-			throw new RuntimeException(e);
+		for (Layer alternative : alternatives) {
+			clonedAlternatives.add((Layer) Loop.cloneOf(alternative));
 		}
 		Choice choice = new Choice(clonedAlternatives);
-		String content = getContent();
-		if (content != null) {
-			choice.setContent(content);
+		shareRegex(choice);
+		if (currentAlternative != null) {
+			choice.currentAlternative = currentAlternative;
+			choice.pendingSource = pendingSource;
+			choice.pendingStart = pendingStart;
+			choice.pendingEnd = pendingEnd;
+			addChangeListener(choice.alternatives.get(currentAlternative),
+					choice.deepListener);
 		} else {
 			// keep it not filled
 		}
@@ -0,0 +1,116 @@
+package fr.vergne.parsing.layer.standard;
+
+import fr.vergne.parsing.layer.Layer;
+
+/**
+ * A {@link ContentSlice} is a part of a {@link String} which is not copied.
+ * When the content of a {@link Layer} is set, its sub-{@link Layer}s receive
+ * the content of the root {@link Layer}, called the source, with the
+ * positions of their own content in it (see
+ * {@link AbstractLayer#setInternalContent(String, int, int)}). A
+ * {@link ContentSlice} allows them to read this part of the source like a
+ * {@link String} of its own, so the content is not copied at each level.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+final class ContentSlice implements CharSequence {
+
+	private final String source;
+	private final int start;
+	private final int end;
+
+	private ContentSlice(String source, int start, int end) {
+		this.source = source;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 *
+	 * @param source
+	 *            the {@link String} to slice
+	 * @param start
+	 *            the position of the first character of the slice
+	 * @param end
+	 *            the position after the last character of the slice
+	 * @return the slice of the source, which is the source itself if the
+	 *         slice covers all of it
+	 */
+	public static CharSequence of(String source, int start, int end) {
+		if (start < 0 || end > source.length() || start > end) {
+			throw new StringIndexOutOfBoundsException("Invalid range ["
+					+ start + ";" + end + "] for a content of "
+					+ source.length() + " characters");
+		} else if (start == 0 && end == source.length()) {
+			return source;
+		} else {
+			return new ContentSlice(source, start, end);
+		}
+	}
+
+	/**
+	 *
+	 * @param content
+	 *            a {@link String} or a {@link ContentSlice}
+	 * @return the {@link String} the content is part of, <code>null</code>
+	 *         for any other {@link CharSequence}
+	 */
+	public static String getSource(CharSequence content) {
+		if (content instanceof String) {
+			return (String) content;
+		} else if (content instanceof ContentSlice) {
+			return ((ContentSlice) content).source;
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 *
+	 * @param content
+	 *            a {@link String} or a {@link ContentSlice}
+	 * @return the position of the content in its source (see
+	 *         {@link #getSource(CharSequence)})
+	 */
+	public static int getStart(CharSequence content) {
+		if (content instanceof ContentSlice) {
+			return ((ContentSlice) content).start;
+		} else {
+			return 0;
+		}
+	}
+
+	@Override
+	public int length() {
+		return end - start;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (index < 0 || index >= end - start) {
+			throw new StringIndexOutOfBoundsException(index);
+		} else {
+			return source.charAt(start + index);
+		}
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if (start < 0 || end > length() || start > end) {
+			throw new StringIndexOutOfBoundsException("Invalid range ["
+					+ start + ";" + end + "] for a content of " + length()
+					+ " characters");
+		} else {
+			return of(source, this.start + start, this.start + end);
+		}
+	}
+
+	/**
+	 * @return a copy of the characters of this {@link ContentSlice}
+	 */
+	@Override
+	public String toString() {
+		return source.substring(start, end);
+	}
+}
@@ -1,11 +1,17 @@
 package fr.vergne.parsing.layer.standard;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import fr.vergne.parsing.layer.Copyable;
 import fr.vergne.parsing.layer.Layer;
 import fr.vergne.parsing.layer.exception.ParsingException;
 import fr.vergne.parsing.layer.util.ContentInputStream;
+import fr.vergne.parsing.regex.PatternRegex;
+import fr.vergne.parsing.regex.Regex;
+import fr.vergne.parsing.regex.RegexEngine;
 
 /**
  * A {@link Formula} is a {@link Layer} which represents a piece of text which
@@ -19,15 +25,29 @@ import fr.vergne.parsing.layer.util.ContentInputStream;
  * confusing between an instance of this class and the {@link String} returned
  * by {@link #getRegex()}, the name was changed. Moreover, it is not rejected to
  * use different types of formulas for future implementations, leading to the
- * current name.
+ * current name.<br/>
+ * <br/>
+ * When a {@link Formula} is parsed as part of another {@link Layer}, it does
+ * not copy its content but keeps its position in the content of the root
+ * {@link Layer}, which is shared by all its sub-{@link Layer}s. The
+ * {@link String} is created only when {@link #getContent()} is called. A
+ * content set directly on the {@link Formula}, for instance to modify a
+ * parsed one, is owned by the {@link Formula} itself.
  * 
  * @author Matthieu Vergne <matthieu.vergne@gmail.com>
  * 
  */
-public class Formula extends AbstractLayer {
+public class Formula extends AbstractLayer implements Copyable {
 
 	private final String regex;
+	private Pattern pattern;
+	private Regex compiled;
+	private RegexEngine compiledEngine;
+	private Matcher matcher;
 	private String content;
+	private String source;
+	private int start;
+	private int end;
 
 	/**
 	 * Create a {@link Formula} without any content yet.
@@ -53,6 +73,25 @@ public class Formula extends AbstractLayer {
 		setContent(content);
 	}
 
+	/**
+	 * Create a {@link Formula} having the same regex and content than another
+	 * one. The content is copied as is, without being checked again, so this
+	 * constructor is suited for implementing {@link #clone()}, including in
+	 * the subclasses.
+	 * 
+	 * @param formula
+	 *            the {@link Formula} to copy
+	 */
+	protected Formula(Formula formula) {
+		this(formula.regex);
+		formula.shareRegex(this);
+		pattern = formula.pattern;
+		content = formula.content;
+		source = formula.source;
+		start = formula.start;
+		end = formula.end;
+	}
+
 	@Override
 	protected String buildRegex() {
 		return regex;
@@ -60,11 +99,38 @@ public class Formula extends AbstractLayer {
 
 	@Override
 	public String getContent() {
-		return content;
+		if (source == null) {
+			return content;
+		} else {
+			return source.substring(start, end);
+		}
+	}
+
+	@Override
+	public void appendTo(Appendable appendable) throws IOException {
+		if (source != null) {
+			appendable.append(source, start, end);
+		} else if (content != null) {
+			appendable.append(content);
+		} else {
+			throw new NoContentException();
+		}
+	}
+
+	@Override
+	public int getContentLength() {
+		if (source != null) {
+			return end - start;
+		} else if (content != null) {
+			return content.length();
+		} else {
+			throw new NoContentException();
+		}
 	}
 
 	@Override
 	public InputStream getInputStream() {
+		String content = getContent();
 		if (content == null) {
 			throw new NoContentException();
 		} else {
@@ -72,15 +138,115 @@ public class Formula extends AbstractLayer {
 		}
 	}
 
+	/**
+	 * 
+	 * @return the compiled regex of this {@link Formula}
+	 */
+	protected Pattern getPattern() {
+		if (pattern == null) {
+			pattern = compile(regex);
+		} else {
+			// reuse the existing one
+		}
+		return pattern;
+	}
+
+	private Regex getCompiledRegex() {
+		RegexEngine engine = getRegexEngine();
+		if (compiled == null || compiledEngine != engine) {
+			compiled = compile(engine, regex);
+			compiledEngine = engine;
+		} else {
+			// reuse the existing one
+		}
+		return compiled;
+	}
+
+	@Override
+	protected int matchContent(CharSequence content, int offset) {
+		return getCompiledRegex().lookingAt(content, offset);
+	}
+
+	/**
+	 * {@link Formula}s having the same regex match the same way, so they share
+	 * their memoized matches.
+	 */
+	@Override
+	protected Object getMemoKey() {
+		return regex;
+	}
+
 	@Override
 	protected void setInternalContent(String content) {
-		if (Pattern.matches("^" + regex + "$", content)) {
+		if (isMatching(content, 0, content.length())) {
 			this.content = content;
+			this.source = null;
 		} else {
 			throw new ParsingException(regex, content);
 		}
 	}
 
+	@Override
+	protected void setInternalContent(String source, int start, int end) {
+		if (isMatching(source, start, end)) {
+			this.content = null;
+			this.source = source;
+			this.start = start;
+			this.end = end;
+		} else {
+			throw new ParsingException(regex, source.substring(start, end));
+		}
+	}
+
+	@Override
+	protected boolean relocate(String source, int start) {
+		if (this.source != null) {
+			this.end = start + this.end - this.start;
+			this.start = start;
+			this.source = source;
+		} else {
+			// content owned, nothing to relocate
+		}
+		return true;
+	}
+
+	/**
+	 * This method checks that a part of a content fits the regex of this
+	 * {@link Formula}, considering this part like a {@link String} of its
+	 * own.
+	 * 
+	 * @param content
+	 *            the content to check
+	 * @param start
+	 *            the position of the part to check
+	 * @param end
+	 *            the position where the part to check ends
+	 * @return <code>true</code> if the part fits the regex,
+	 *         <code>false</code> otherwise
+	 */
+	protected boolean isMatching(String content, int start, int end) {
+		Regex compiled = getCompiledRegex();
+		if (compiled instanceof PatternRegex) {
+			if (matcher == null) {
+				matcher = getPattern().matcher(content);
+			} else {
+				matcher.reset(content);
+			}
+			try {
+				/*
+				 * With its default bounds, the region is matched like a String
+				 * of its own, so lookarounds and anchors do not see the rest.
+				 */
+				return matcher.region(start, end).matches();
+			} finally {
+				// do not keep the content alive between two checks
+				matcher.reset("");
+			}
+		} else {
+			return compiled.matches(ContentSlice.of(content, start, end));
+		}
+	}
+
 	@Override
 	public String toString() {
 		return getClass().getSimpleName() + "[" + regex + "]";
@@ -88,13 +254,6 @@ public class Formula extends AbstractLayer {
 
 	@Override
 	public Object clone() {
-		Formula formula = new Formula(getRegex());
-		String content = getContent();
-		if (content != null) {
-			formula.setContent(content);
-		} else {
-			// keep it not filled
-		}
-		return formula;
+		return new Formula(this);
 	}
 }
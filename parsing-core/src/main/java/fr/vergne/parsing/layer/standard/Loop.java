@@ -2,21 +2,34 @@ package fr.vergne.parsing.layer.standard;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import fr.vergne.logging.LoggerConfiguration;
+import fr.vergne.parsing.layer.ContentChange;
+import fr.vergne.parsing.layer.Copyable;
 import fr.vergne.parsing.layer.Layer;
 import fr.vergne.parsing.layer.exception.ParsingException;
+import fr.vergne.parsing.layer.util.CompositeInputStream;
+import fr.vergne.parsing.layer.util.ContentInputStream;
+import fr.vergne.parsing.layer.util.MappedContent;
 import fr.vergne.parsing.layer.util.SeparatedLoop;
+import fr.vergne.parsing.regex.Regex;
+import fr.vergne.parsing.regex.RegexEngine;
+import fr.vergne.parsing.regex.RegexNode;
 
 /**
  * A {@link Loop} is a {@link Layer} representing a variable number of
@@ -36,21 +49,66 @@ import fr.vergne.parsing.layer.util.SeparatedLoop;
  * @param <Element>
  */
 public class Loop<Element extends Layer> extends AbstractLayer implements
-		Iterable<Element> {
+		Iterable<Element>, Copyable {
 
 	private final int min;
 	private final int max;
 	private final Generator<Element> generator;
-	private final ContentListener deepListener = new ContentListener() {
+	private final ChangeListener deepListener = new ChangeListener() {
 
 		@Override
-		public void contentSet(String newContent) {
-			fireContentUpdate();
+		public void contentChanged(ContentChange change) {
+			updateContent(change.getOldLength(), change.getNewLength());
+			if (offsets != null) {
+				offsets.add(offsets.indexOf(change.getLayer()),
+						change.getNewLength() - change.getOldLength());
+			} else {
+				// not computed yet
+			}
+			if (isListened()) {
+				fireContentChange(getStart(change.getLayer())
+						+ change.getOffset(), change.getOldLength(),
+						change.getNewLength());
+			} else {
+				// nobody to notify
+			}
 		}
 	};
 	private List<Element> occurrences;
+	private int contentLength = -1;
+	/**
+	 * Where the contents of the occurrences start, computed when a
+	 * modification should be notified and dropped when occurrences are added
+	 * or removed.
+	 */
+	private Offsets offsets = null;
+	/**
+	 * With {@link AbstractLayer#lazyMaterialization}, the occurrences not
+	 * generated yet are <code>null</code>, and these fields tell where their
+	 * contents are.
+	 */
+	private String pendingSource = null;
+	private int[] pendingBounds = null;
 	private final Quantifier quantifier;
+	private Pattern occurrencePattern;
+	private Boolean isTemplateAcceptingEmpty;
 	public static final Logger log = LoggerConfiguration.getSimpleLogger();
+	/**
+	 * The number of characters read at once by {@link #parse(Reader, Consumer)}
+	 * .
+	 */
+	private static final int STREAM_CHUNK = 8192;
+	/**
+	 * The number of characters which should be available after an occurrence
+	 * for {@link #parse(Reader, Consumer)} to consider it complete.
+	 */
+	public static final int DEFAULT_LOOKAHEAD = 1024;
+	/**
+	 * The maximal size of an occurrence for
+	 * {@link #parse(Reader, Consumer, int)}, in number of times the
+	 * characters read at once plus the lookahead.
+	 */
+	public static final int STREAM_LIMIT_FACTOR = 128;
 
 	/**
 	 * Instantiate an optimized {@link Loop} (through the {@link Quantifier})
@@ -221,7 +279,10 @@ public class Loop<Element extends Layer> extends AbstractLayer implements
 	 * This method create a {@link Generator} based on an existing instance,
 	 * which acts like a template to generate new instances. The generated
 	 * instances are clones of the template, so the template should have an
-	 * implemented {@link #clone()} method.
+	 * implemented {@link #clone()} method. The template is cloned once to
+	 * check its {@link #clone()} method, and this first clone is the first
+	 * instance generated. If the template is {@link Copyable}, its clones are
+	 * requested directly, without reflection (see {@link #cloneOf(Layer)}).
 	 * 
 	 * @param template
 	 *            the instance to use as a template
@@ -234,32 +295,27 @@ public class Loop<Element extends Layer> extends AbstractLayer implements
 		} else {
 			Method method;
 			try {
-				method = template.getClass().getMethod("clone");
-				method.setAccessible(true);
+				method = CLONE_METHODS.get(template.getClass());
 			} catch (SecurityException e) {
 				throw new IllegalArgumentException(
 						"The provided template cannot be used: " + template, e);
-			} catch (NoSuchMethodException e) {
-				throw new IllegalArgumentException(
-						"The provided template has no clone method: "
-								+ template, e);
 			}
 
-			if (!method.getDeclaringClass().equals(template.getClass())) {
+			if (method == null) {
+				throw new IllegalArgumentException(
+						"The provided template has no clone method: "
+								+ template);
+			} else if (!method.getDeclaringClass().equals(template.getClass())) {
 				throw new IllegalArgumentException(
 						"The provided template does not implement its own clone() method: "
 								+ template);
 			} else {
 				Object clone;
 				try {
-					clone = method.invoke(template);
-				} catch (InvocationTargetException e) {
+					clone = cloneOf(template);
+				} catch (RuntimeException e) {
 					throw new IllegalArgumentException("The clone() method of "
-							+ template + " is not reliable", e.getCause());
-				} catch (IllegalArgumentException e) {
-					throw new RuntimeException("This case should not happen", e);
-				} catch (IllegalAccessException e) {
-					throw new RuntimeException("This case should not happen", e);
+							+ template + " is not reliable", e);
 				}
 				if (clone == null) {
 					throw new IllegalArgumentException(
@@ -270,23 +326,76 @@ public class Loop<Element extends Layer> extends AbstractLayer implements
 							"The clone() method of the provided template returns the template itself: "
 									+ template);
 				} else {
-					try {
-						final Method cloneMethod = method;
-						return new Generator<Element>() {
-
-							@SuppressWarnings("unchecked")
-							@Override
-							public Element generates() {
-								try {
-									return (Element) cloneMethod
-											.invoke(template);
-								} catch (Exception e) {
-									throw new RuntimeException(e);
-								}
+					final AtomicReference<Object> firstClone = new AtomicReference<Object>(
+							clone);
+					return new Generator<Element>() {
+
+						@SuppressWarnings("unchecked")
+						@Override
+						public Element generates() {
+							Object first = firstClone.getAndSet(null);
+							if (first != null) {
+								return (Element) first;
+							} else {
+								return (Element) cloneOf(template);
 							}
-						};
-					} catch (Exception e) {
-						throw new RuntimeException(e);
+						}
+					};
+				}
+			}
+		}
+	}
+
+	/**
+	 * The public clone() method of each class, found once for all its
+	 * instances, or <code>null</code> if it has none.
+	 */
+	private static final ClassValue<Method> CLONE_METHODS = new ClassValue<Method>() {
+
+		@Override
+		protected Method computeValue(Class<?> type) {
+			try {
+				Method method = type.getMethod("clone");
+				method.setAccessible(true);
+				return method;
+			} catch (NoSuchMethodException e) {
+				return null;
+			}
+		}
+	};
+
+	/**
+	 * This method clones a {@link Layer} through {@link Copyable#clone()} if
+	 * it is {@link Copyable}, which is a plain call that the JIT can inline.
+	 * Only the other {@link Layer}s are cloned through reflection.
+	 * 
+	 * @param layer
+	 *            the {@link Layer} to clone
+	 * @return the clone of the {@link Layer}
+	 * @throws IllegalArgumentException
+	 *             if the {@link Layer} has no public clone() method
+	 */
+	static Object cloneOf(Layer layer) {
+		if (layer instanceof Copyable) {
+			return ((Copyable) layer).clone();
+		} else {
+			Method method = CLONE_METHODS.get(layer.getClass());
+			if (method == null) {
+				throw new IllegalArgumentException(layer
+						+ " has no clone method");
+			} else {
+				try {
+					return method.invoke(layer);
+				} catch (IllegalAccessException e) {
+					throw new RuntimeException("This case should not happen", e);
+				} catch (InvocationTargetException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					} else if (cause instanceof Error) {
+						throw (Error) cause;
+					} else {
+						throw new RuntimeException(cause);
 					}
 				}
 			}
@@ -295,58 +404,458 @@ public class Loop<Element extends Layer> extends AbstractLayer implements
 
 	@Override
 	protected String buildRegex() {
-		return "(?:" + getTemplate().getRegex() + ")" + buildRegexCardinality();
+		return buildRegexNode().toString();
+	}
+
+	@Override
+	protected RegexNode buildRegexNode() {
+		return RegexNode.repetition(toRegexNode(getTemplate()),
+				buildRegexCardinality());
 	}
 
 	@Override
 	protected void setInternalContent(String content) {
-		occurrences = new LinkedList<Element>();
-		Matcher matcher = Pattern.compile(getRegex()).matcher(content);
-		if (matcher.matches()) {
-			Iterator<Element> iterator = occurrences.iterator();
-			while (iterator.hasNext()) {
-				Element element = (Element) iterator.next();
-				element.removeContentListener(deepListener);
-				iterator.remove();
-			}
-
-			String regex = getTemplate().getRegex();
-			matcher = Pattern.compile(
-					"(" + regex + ")(?:(?=" + regex + ")|(?=$))").matcher(
-					content);
-			while (matcher.find()) {
-				String match = matcher.group(1);
-				Element occurrence = generator.generates();
-				occurrence.setContent(match);
-				occurrence.addContentListener(deepListener);
-				occurrences.add(occurrence);
+		setInternalContent(content, 0, content.length());
+	}
+
+	@Override
+	protected void setInternalContent(String source, int contentStart,
+			int contentEnd) {
+		CharSequence content = ContentSlice.of(source, contentStart,
+				contentEnd);
+		invalidateContent();
+		List<Element> previous = occurrences;
+		pendingSource = null;
+		pendingBounds = null;
+		occurrences = new ArrayList<Element>();
+		List<Integer> matches;
+		int splitEnd = 0;
+		int splitCount = 0;
+		if (getParsingEngine() != ParsingEngine.REGEX) {
+			matches = descend(content);
+		} else if (isTemplateAcceptingEmpty()) {
+			matches = null;
+		} else {
+			matches = new ArrayList<Integer>();
+			splitEnd = splitOccurrences(content, matches);
+			if (splitEnd == content.length() && matches.size() >= min) {
+				// all the content is split
+			} else {
+				splitCount = matches.size();
+				matches = null;
 			}
+		}
+		if (matches != null) {
+			// occurrences found in a single pass
 		} else {
-			matcher = Pattern.compile(getTemplate().getRegex())
-					.matcher(content);
-			int start = 0;
-			int count = 0;
-			while (matcher.find() && matcher.start() == start) {
-				count++;
-				if (count > max) {
-					throw new ParsingException(this, null, content, start,
+			/*
+			 * The split may fail on valid contents, so the regex of this Loop
+			 * is checked with the configured RegexEngine. The automaton gives
+			 * the same results than Pattern, so it replaces it here: it does
+			 * not recurse for each occurrence, so it does not overflow the
+			 * stack on big contents, and it takes a time linear in the size
+			 * of the content, so locating an error costs about the same as a
+			 * successful parsing. This only holds for templates without
+			 * lookarounds: the other ones, like Newline, are not supported by
+			 * the automaton, so they are still checked with Pattern.
+			 */
+			RegexEngine engine = getRegexEngine();
+			if (engine == RegexEngine.PATTERN) {
+				engine = RegexEngine.AUTOMATON;
+			} else {
+				// use the configured one
+			}
+			if (compile(engine, getRegex()).matches(content)) {
+				matches = findOccurrences(content);
+				/*
+				 * The occurrences are found one after the other, each being
+				 * the longest possible, so they may not be as many as the
+				 * regex requires if it needs an occurrence to give some of
+				 * its characters to the next one.
+				 */
+				if (matches.size() < min) {
+					throw new ParsingException(this, getTemplate(),
+							content.toString(), content.length(),
 							content.length());
+				} else if (matches.size() > max) {
+					throw new ParsingException(this, null,
+							content.toString(), max == 0 ? 0
+									: matches.get(max - 1), content.length());
 				} else {
-					start += matcher.group(0).length();
+					// right number of occurrences
 				}
+			} else {
+				/*
+				 * The occurrences found by the split are the ones the regex
+				 * would find before failing, so we continue from where the
+				 * split stopped rather than matching them again.
+				 */
+				Regex template = getTemplateRegex();
+				int start = splitEnd;
+				int count = splitCount;
+				int end;
+				while (start <= content.length()
+						&& (end = template.lookingAt(content, start)) >= 0) {
+					count++;
+					if (count > max) {
+						throw new ParsingException(this, null,
+								content.toString(), start, content.length());
+					} else if (end == start) {
+						// empty occurrence, the next ones would be the same
+						break;
+					} else {
+						start = end;
+					}
+				}
+				if (count < min) {
+					throw new ParsingException(this, getTemplate(),
+							content.toString(), content.length(),
+							content.length());
+				} else {
+					try {
+						ParseContext.current().setContent(getTemplate(),
+								content, start, content.length());
+					} catch (ParsingException e) {
+						throw new ParsingException(this, getTemplate(),
+								content.toString(), start + e.getStart(),
+								content.length(), e);
+					}
+				}
+				return;
+			}
+		}
+
+		ParseContext context = ParseContext.current();
+		if (context.isLazy()) {
+			pendingSource = source;
+			pendingBounds = new int[matches.size() + 1];
+			pendingBounds[0] = contentStart;
+			int index = 1;
+			for (int end : matches) {
+				pendingBounds[index++] = contentStart + end;
 			}
-			if (count < min) {
-				throw new ParsingException(this, getTemplate(), content,
-						content.length(), content.length());
+			occurrences = new ArrayList<Element>(Collections.<Element> nCopies(
+					matches.size(), null));
+			detach(previous, 0, previous == null ? 0 : previous.size());
+			return;
+		} else {
+			// generate the occurrences now
+		}
+		reconcile(previous, source, contentStart, matches);
+	}
+
+	/**
+	 * This method builds the occurrences of a new content by reusing the
+	 * occurrences of the previous one, so the instances referred from outside
+	 * of this {@link Loop} remain valid when the content is set again. The
+	 * occurrences which have the same content at the start and at the end of
+	 * the {@link Loop} are kept without parsing them again, which is what
+	 * happens when a record is added to or removed from the middle of a
+	 * content: they are only relocated to the new source (see
+	 * {@link AbstractLayer#relocate(String, int)}), so they do not keep the
+	 * previous one alive. The remaining occurrences are reused by position
+	 * and receive their new content, and only the missing ones are generated.
+	 * The new occurrences replace the previous ones only once all of them are
+	 * set, so if one of them rejects its content, this {@link Loop} remains
+	 * without occurrences, like when its regex rejects the content.
+	 * 
+	 * @param previous
+	 *            the occurrences of the previous content, <code>null</code>
+	 *            if there is none
+	 * @param source
+	 *            the source containing the new content of this {@link Loop}
+	 * @param contentStart
+	 *            the position of the new content in the source
+	 * @param matches
+	 *            the end of each occurrence in the new content
+	 */
+	private void reconcile(List<Element> previous, String source,
+			int contentStart, List<Integer> matches) {
+		int count = matches.size();
+		int[] bounds = new int[count + 1];
+		bounds[0] = contentStart;
+		int index = 1;
+		for (int end : matches) {
+			bounds[index++] = contentStart + end;
+		}
+
+		int reusable = previous == null ? 0 : previous.size();
+		int prefix = 0;
+		while (prefix < count
+				&& prefix < reusable
+				&& isReusable(previous.get(prefix), source, bounds[prefix],
+						bounds[prefix + 1])) {
+			prefix++;
+		}
+		int suffix = 0;
+		while (suffix < count - prefix
+				&& suffix < reusable - prefix
+				&& isReusable(previous.get(reusable - 1 - suffix), source,
+						bounds[count - 1 - suffix], bounds[count - suffix])) {
+			suffix++;
+		}
+
+		ParseContext context = ParseContext.current();
+		List<Element> reconciled = new ArrayList<Element>(count);
+		for (int i = 0; i < count; i++) {
+			Element occurrence;
+			if (i < prefix) {
+				occurrence = previous.get(i);
+			} else if (i >= count - suffix) {
+				occurrence = previous.get(reusable - count + i);
 			} else {
+				boolean isReused = i < reusable - suffix
+						&& previous.get(i) != null;
+				if (isReused) {
+					occurrence = previous.get(i);
+					removeChangeListener(occurrence, deepListener);
+				} else {
+					occurrence = generator.generates();
+				}
 				try {
-					getTemplate().setContent(content.substring(start));
-				} catch (ParsingException e) {
-					throw new ParsingException(this, getTemplate(), content,
-							start + e.getStart(), content.length(), e);
+					context.setContent(occurrence, source, bounds[i],
+							bounds[i + 1]);
+				} catch (RuntimeException e) {
+					/*
+					 * The previous occurrences remain listened until the new
+					 * ones are all set, like when the content is rejected
+					 * before to reach them.
+					 */
+					if (isReused) {
+						addChangeListener(occurrence, deepListener);
+					} else {
+						// not listened yet
+					}
+					throw e;
+				}
+				addChangeListener(occurrence, deepListener);
+			}
+			reconciled.add(occurrence);
+		}
+		occurrences = reconciled;
+		detach(previous, count - suffix, reusable - suffix);
+	}
+
+	/**
+	 * 
+	 * @return <code>true</code> if the occurrence has the given part of the
+	 *         source and has been relocated to it, <code>false</code> if it
+	 *         differs, has not been generated or should be parsed again
+	 */
+	private static boolean isReusable(Layer occurrence, String source,
+			int start, int end) {
+		if (occurrence == null || getContentLength(occurrence) != end - start) {
+			return false;
+		} else {
+			ContentComparator comparator = new ContentComparator(source, start);
+			try {
+				appendTo(occurrence, comparator);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			return comparator.isSame() && relocate(occurrence, source, start);
+		}
+	}
+
+	/**
+	 * A {@link ContentComparator} compares the content appended to it with a
+	 * part of a source, so the content of a {@link Layer} can be compared
+	 * through {@link AbstractLayer#appendTo(Layer, Appendable)} without
+	 * building it.
+	 */
+	private static class ContentComparator implements Appendable {
+
+		private final String source;
+		private int position;
+		private boolean isSame = true;
+
+		public ContentComparator(String source, int start) {
+			this.source = source;
+			this.position = start;
+		}
+
+		@Override
+		public Appendable append(CharSequence sequence) {
+			return append(sequence, 0, sequence.length());
+		}
+
+		@Override
+		public Appendable append(CharSequence sequence, int start, int end) {
+			if (!isSame) {
+				// already different
+			} else if (sequence instanceof String) {
+				isSame = source.regionMatches(position, (String) sequence,
+						start, end - start);
+			} else {
+				for (int i = start; isSame && i < end; i++) {
+					isSame = source.charAt(position + i - start) == sequence
+							.charAt(i);
+				}
+			}
+			position += end - start;
+			return this;
+		}
+
+		@Override
+		public Appendable append(char c) {
+			isSame = isSame && source.charAt(position) == c;
+			position++;
+			return this;
+		}
+
+		public boolean isSame() {
+			return isSame;
+		}
+	}
+
+	/**
+	 * This method stops listening the previous occurrences which are not part
+	 * of this {@link Loop} anymore.
+	 */
+	private void detach(List<Element> previous, int from, int to) {
+		for (int i = from; i < to; i++) {
+			Element occurrence = previous.get(i);
+			if (occurrence != null) {
+				removeChangeListener(occurrence, deepListener);
+			} else {
+				// never generated
+			}
+		}
+	}
+
+	/**
+	 * This method splits the content into occurrences in a single pass, by
+	 * matching the template successively from the start to the end of the
+	 * content. Each occurrence is the longest one the template matches, so
+	 * the split fails when an occurrence should be shorter for the next ones
+	 * to match, in which case the regex of the whole {@link Loop} should be
+	 * used to know whether or not the content is valid. The split is not
+	 * tried if the template accepts empty occurrences, because we cannot know
+	 * how many of them to consider.
+	 * 
+	 * @param content
+	 *            the content to split
+	 * @param matches
+	 *            the list to fill with the ends of the occurrences
+	 * @return the position where the split stops, which is the length of the
+	 *         content if it succeeded
+	 */
+	private int splitOccurrences(CharSequence content, List<Integer> matches) {
+		Regex template = getTemplateRegex();
+		int start = 0;
+		while (start < content.length()) {
+			int end;
+			if (matches.size() >= max) {
+				end = -1;
+			} else {
+				end = template.lookingAt(content, start);
+			}
+			if (end <= start) {
+				return start;
+			} else {
+				matches.add(end);
+				start = end;
+			}
+		}
+		return start;
+	}
+
+	/**
+	 * This method splits the content into occurrences by asking the template
+	 * where each occurrence ends, as requested by
+	 * {@link ParsingEngine#DESCENT} and {@link ParsingEngine#PACKRAT}. Like
+	 * {@link #match(CharSequence, int)}, it takes as many occurrences as
+	 * possible.
+	 * 
+	 * @param content
+	 *            the content to split
+	 * @return the ends of the occurrences
+	 * @throws ParsingException
+	 *             if the content cannot be split
+	 */
+	private List<Integer> descend(CharSequence content) {
+		ParseContext context = ParseContext.current();
+		Element template = getTemplate();
+		List<Integer> matches = new ArrayList<Integer>();
+		int start = 0;
+		while (matches.size() < max) {
+			int end = context.match(template, content, start);
+			if (end < 0) {
+				break;
+			} else if (end == start) {
+				// empty occurrence, the next ones would be the same
+				while (matches.size() < min) {
+					matches.add(start);
 				}
+				break;
+			} else {
+				matches.add(end);
+				start = end;
 			}
 		}
+		if (matches.size() < min || start < content.length()) {
+			try {
+				context.setContent(template, content, start, content.length());
+			} catch (ParsingException e) {
+				throw new ParsingException(this, template, content.toString(),
+						start + e.getStart(), content.length(), e);
+			}
+			throw new ParsingException(this, matches.size() < min ? template
+					: null, content.toString(), start, content.length());
+		} else {
+			return matches;
+		}
+	}
+
+	@Override
+	protected int matchContent(CharSequence content, int offset) {
+		// possessive whatever the quantifier (see ParsingEngine)
+		Element template = getTemplate();
+		int count = 0;
+		int start = offset;
+		while (count < max) {
+			int end = match(template, content, start);
+			if (end < 0) {
+				break;
+			} else if (end == start) {
+				// empty occurrence, the next ones would be the same
+				return start;
+			} else {
+				count++;
+				start = end;
+			}
+		}
+		return count < min ? -1 : start;
+	}
+
+	private List<Integer> findOccurrences(CharSequence content) {
+		if (occurrencePattern == null) {
+			RegexNode node = toRegexNode(getTemplate());
+			occurrencePattern = compile(RegexNode.sequence(
+					RegexNode.capture(node), RegexNode.literal("(?:(?="), node,
+					RegexNode.literal(")|(?=$))")).toString());
+		} else {
+			// reuse the existing one
+		}
+		List<Integer> matches = new ArrayList<Integer>();
+		Matcher matcher = occurrencePattern.matcher(content);
+		while (matcher.find()) {
+			matches.add(matcher.end(1));
+		}
+		return matches;
+	}
+
+	private boolean isTemplateAcceptingEmpty() {
+		if (isTemplateAcceptingEmpty == null) {
+			isTemplateAcceptingEmpty = getTemplateRegex().matches("");
+		} else {
+			// reuse the computed one
+		}
+		return isTemplateAcceptingEmpty;
+	}
+
+	private Regex getTemplateRegex() {
+		return compileRegex(getTemplate().getRegex());
 	}
 
 	@Override
@@ -356,37 +865,96 @@ public class Loop<Element extends Layer> extends AbstractLayer implements
 		 * available. This allows to throw NoContentException immediately if the
 		 * sequence is not complete.
 		 */
-		final List<InputStream> streams = new LinkedList<InputStream>();
-		for (Layer sublayer : this) {
-			streams.add(sublayer.getInputStream());
+		if (occurrences == null) {
+			throw new NoContentException();
+		} else {
+			List<InputStream> streams = new LinkedList<InputStream>();
+			for (int i = 0; i < occurrences.size(); i++) {
+				Element occurrence = occurrences.get(i);
+				if (occurrence == null) {
+					streams.add(new ContentInputStream(pendingSource.substring(
+							pendingBounds[i], pendingBounds[i + 1])));
+				} else {
+					streams.add(occurrence.getInputStream());
+				}
+			}
+			return new CompositeInputStream(streams);
 		}
-		return new InputStream() {
-			private InputStream reader = new InputStream() {
+	}
 
-				@Override
-				public int read() throws IOException {
-					return -1;
+	/**
+	 * The content of a {@link Loop} is not kept: it is built from its
+	 * {@link Element}s each time it is requested, so the text is not
+	 * duplicated at every level of the tree of {@link Layer}s.
+	 */
+	@Override
+	public void appendTo(Appendable appendable) throws IOException {
+		if (occurrences == null) {
+			throw new NoContentException();
+		} else {
+			for (int i = 0; i < occurrences.size(); i++) {
+				Element occurrence = occurrences.get(i);
+				if (occurrence == null) {
+					appendable.append(pendingSource, pendingBounds[i],
+							pendingBounds[i + 1]);
+				} else {
+					appendTo(occurrence, appendable);
 				}
-			};
-			private Iterator<InputStream> iterator = streams.iterator();
-
-			@Override
-			public int read() throws IOException {
-				int character = reader.read();
-				while (character == -1 && iterator.hasNext()) {
-					reader.close();
-					reader = iterator.next();
-					character = reader.read();
+			}
+		}
+	}
+
+	@Override
+	public int getContentLength() {
+		if (contentLength < 0) {
+			if (occurrences == null) {
+				throw new NoContentException();
+			} else {
+				int length = 0;
+				for (int i = 0; i < occurrences.size(); i++) {
+					length += getLength(i);
 				}
-				return character;
+				contentLength = length;
 			}
-			
-			@Override
-			public void close() throws IOException {
-				reader.close();
-				super.close();
+		} else {
+			// reuse the one already computed
+		}
+		return contentLength;
+	}
+
+	private void invalidateContent() {
+		contentLength = -1;
+		offsets = null;
+	}
+
+	private void updateContent(int oldLength, int newLength) {
+		if (contentLength >= 0) {
+			contentLength += newLength - oldLength;
+		} else {
+			// not computed yet
+		}
+	}
+
+	private Offsets getOffsets() {
+		if (offsets == null) {
+			int[] lengths = new int[occurrences.size()];
+			for (int i = 0; i < lengths.length; i++) {
+				lengths[i] = getLength(i);
 			}
-		};
+			offsets = new Offsets(occurrences, lengths);
+		} else {
+			// reuse the one already computed
+		}
+		return offsets;
+	}
+
+	private int getStart(int index) {
+		return getOffsets().getStart(index);
+	}
+
+	private int getStart(Layer element) {
+		Offsets offsets = getOffsets();
+		return offsets.getStart(offsets.indexOf(element));
 	}
 
 	/**
@@ -413,7 +981,83 @@ public class Loop<Element extends Layer> extends AbstractLayer implements
 	 * @return the {@link Element} at this index
 	 */
 	public Element get(int index) {
-		return occurrences.get(index);
+		return fill(index);
+	}
+
+	private int getLength(int index) {
+		Element occurrence = occurrences.get(index);
+		if (occurrence == null) {
+			return pendingBounds[index + 1] - pendingBounds[index];
+		} else {
+			return getContentLength(occurrence);
+		}
+	}
+
+	/**
+	 * This method generates an occurrence which has been left aside with
+	 * {@link AbstractLayer#lazyMaterialization}.
+	 * 
+	 * @return the occurrence at the given index
+	 */
+	private Element fill(int index) {
+		Element occurrence = occurrences.get(index);
+		if (occurrence == null) {
+			occurrence = generator.generates();
+			setSubContent(occurrence, pendingSource, pendingBounds[index],
+					pendingBounds[index + 1]);
+			addChangeListener(occurrence, deepListener);
+			occurrences.set(index, occurrence);
+			if (offsets != null) {
+				offsets.setLayer(index, occurrence);
+			} else {
+				// not computed yet
+			}
+		} else {
+			// already generated
+		}
+		return occurrence;
+	}
+
+	@Override
+	protected boolean relocate(String source, int start) {
+		if (pendingSource != null) {
+			int shift = start - pendingBounds[0];
+			int[] bounds = new int[pendingBounds.length];
+			for (int i = 0; i < bounds.length; i++) {
+				bounds[i] = pendingBounds[i] + shift;
+			}
+			pendingSource = source;
+			pendingBounds = bounds;
+		} else {
+			// all generated
+		}
+		int position = start;
+		for (int i = 0; i < occurrences.size(); i++) {
+			Element occurrence = occurrences.get(i);
+			if (occurrence == null || relocate(occurrence, source, position)) {
+				position += getLength(i);
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * This method generates all the occurrences left aside, which is needed
+	 * before to add or remove occurrences, because the positions of their
+	 * contents are stored by index.
+	 */
+	private void fillAll() {
+		if (pendingSource != null) {
+			for (int i = 0; i < occurrences.size(); i++) {
+				fill(i);
+			}
+			pendingSource = null;
+			pendingBounds = null;
+		} else {
+			// nothing left aside
+		}
 	}
 
 	/**
@@ -488,11 +1132,20 @@ public class Loop<Element extends Layer> extends AbstractLayer implements
 				}
 			}
 
+			fillAll();
+			occurrences.addAll(index, validElements);
+			offsets = null;
+			int length = 0;
 			for (Element element : validElements) {
-				element.addContentListener(deepListener);
+				addChangeListener(element, deepListener);
+				length += getContentLength(element);
+			}
+			updateContent(0, length);
+			if (isListened()) {
+				fireContentChange(getStart(index), 0, length);
+			} else {
+				// nobody to notify
 			}
-			occurrences.addAll(index, validElements);
-			fireContentUpdate();
 		}
 	}
 
@@ -536,9 +1189,17 @@ public class Loop<Element extends Layer> extends AbstractLayer implements
 			throw new BoundException("This loop cannot have less than " + min
 					+ " elements.");
 		} else {
+			fillAll();
 			Element removed = occurrences.remove(index);
-			removed.removeContentListener(deepListener);
-			fireContentUpdate();
+			offsets = null;
+			removeChangeListener(removed, deepListener);
+			int length = getContentLength(removed);
+			updateContent(length, 0);
+			if (isListened()) {
+				fireContentChange(getStart(index), length, 0);
+			} else {
+				// nobody to notify
+			}
 			return removed;
 		}
 	}
@@ -548,16 +1209,251 @@ public class Loop<Element extends Layer> extends AbstractLayer implements
 			throw new BoundException("This loop cannot have less than " + min
 					+ " elements.");
 		} else {
-			Iterator<Element> iterator = occurrences.iterator();
-			while (iterator.hasNext()) {
-				Element removed = iterator.next();
-				removed.removeContentListener(deepListener);
-				iterator.remove();
+			int length = isListened() ? getContentLength() : 0;
+			for (Element removed : occurrences) {
+				if (removed != null) {
+					removeChangeListener(removed, deepListener);
+				} else {
+					// never generated
+				}
+			}
+			occurrences.clear();
+			pendingSource = null;
+			pendingBounds = null;
+			contentLength = 0;
+			offsets = null;
+			fireContentChange(0, length, 0);
+		}
+	}
+
+	/**
+	 * This method parses a content read from a {@link Reader} without keeping
+	 * it all in memory, which allows to parse contents bigger than the
+	 * memory, like huge logs. The occurrences are parsed one after the other
+	 * and given to the {@link Consumer} as soon as they are complete, then
+	 * their content is dropped. Thus, the memory used is bounded by the
+	 * biggest occurrence rather than by the whole content. The occurrences
+	 * are not stored in this {@link Loop}, whose content does not change.<br/>
+	 * <br/>
+	 * An occurrence is considered complete once the template matches it and
+	 * at least the given number of characters are available after it (or
+	 * the end of the content is reached), so the template should not need to
+	 * look farther to know where an occurrence ends. For instance, an
+	 * occurrence ending with a newline only needs the following character.
+	 * When the template does not match, the content is read further in case
+	 * the occurrence is not complete yet, until the given limit is reached.
+	 * Thus, an invalid occurrence is reported without reading the rest of the
+	 * content, but a valid occurrence longer than the limit is rejected too.
+	 * <br/>
+	 * <br/>
+	 * The occurrences are delimited like {@link #setContent(String)} does with
+	 * the current {@link AbstractLayer#parsingEngine}: with
+	 * {@link ParsingEngine#REGEX}, the regex of the template is matched,
+	 * while the other engines use
+	 * {@link AbstractLayer#match(Layer, CharSequence, int)}, so a template
+	 * accepted by the former may be rejected by the latter.
+	 * 
+	 * @param reader
+	 *            the {@link Reader} providing the content to parse
+	 * @param consumer
+	 *            the {@link Consumer} to give the occurrences to
+	 * @param lookahead
+	 *            the number of characters which should be available after an
+	 *            occurrence to consider it complete
+	 * @param limit
+	 *            the maximal number of characters of an occurrence
+	 * @return the number of occurrences parsed
+	 * @throws IOException
+	 *             if an error occurs while reading
+	 * @throws ParsingException
+	 *             if the content does not fit this {@link Loop}, in which
+	 *             case the position of the exception is relative to the
+	 *             start of the occurrence which does not fit, and its content
+	 *             is limited to the characters read after it
+	 */
+	public int parse(Reader reader, Consumer<? super Element> consumer,
+			int lookahead, int limit) throws IOException {
+		if (lookahead < 0) {
+			throw new IllegalArgumentException("Negative lookahead: "
+					+ lookahead);
+		} else if (limit <= 0) {
+			throw new IllegalArgumentException("Limit not positive: " + limit);
+		} else {
+			Element template = getTemplate();
+			boolean isRegex = getParsingEngine() == ParsingEngine.REGEX;
+			char[] chunk = new char[Math.max(STREAM_CHUNK, lookahead)];
+			StringBuilder buffer = new StringBuilder();
+			boolean isEnded = false;
+			int start = 0;
+			int count = 0;
+			/*
+			 * An occurrence which is not complete is matched again only once
+			 * the available content has doubled, so matching a long
+			 * occurrence takes a time linear in its size.
+			 */
+			int nextAttempt = 0;
+			while (true) {
+				int available = buffer.length() - start;
+				boolean isFull = available >= (long) limit + lookahead;
+				int end = -1;
+				if ((available > 0 || isEnded)
+						&& (available >= nextAttempt || isEnded || isFull)) {
+					end = matchOccurrence(template, buffer, start, isRegex);
+					nextAttempt = 2 * available;
+				} else {
+					// wait for more content
+				}
+				if (end > start
+						&& (isEnded || end + lookahead <= buffer.length())) {
+					if (count == max) {
+						String rest = buffer.substring(start);
+						throw new ParsingException(this, null, rest, 0,
+								rest.length());
+					} else {
+						Element occurrence = generator.generates();
+						occurrence.setContent(buffer.substring(start, end));
+						consumer.consume(occurrence);
+						count++;
+						start = end;
+						nextAttempt = 0;
+					}
+				} else if (!isEnded && !isFull) {
+					if (start >= STREAM_CHUNK) {
+						// drop the parsed content
+						buffer.delete(0, start);
+						start = 0;
+					} else {
+						// keep reading after it
+					}
+					int read = reader.read(chunk);
+					if (read < 0) {
+						isEnded = true;
+					} else {
+						buffer.append(chunk, 0, read);
+					}
+				} else if (start < buffer.length() && count == max) {
+					String rest = buffer.substring(start);
+					throw new ParsingException(this, null, rest, 0,
+							rest.length());
+				} else if (start < buffer.length()) {
+					String rest = buffer.substring(start);
+					try {
+						template.setContent(rest);
+					} catch (ParsingException e) {
+						throw new ParsingException(this, template, rest,
+								e.getStart(), rest.length(), e);
+					}
+					throw new ParsingException(this, null, rest, 0,
+							rest.length());
+				} else if (count < min) {
+					throw new ParsingException(this, template, "", 0, 0);
+				} else {
+					return count;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Same as {@link #parse(Reader, Consumer, int, int)} with a limit of
+	 * {@value #STREAM_LIMIT_FACTOR} times the number of characters read at
+	 * once plus the lookahead.
+	 */
+	public int parse(Reader reader, Consumer<? super Element> consumer,
+			int lookahead) throws IOException {
+		long limit = (long) STREAM_LIMIT_FACTOR * (STREAM_CHUNK + lookahead);
+		return parse(reader, consumer, lookahead,
+				(int) Math.min(limit, Integer.MAX_VALUE));
+	}
+
+	private int matchOccurrence(Element template, CharSequence content,
+			int start, boolean isRegex) {
+		if (isRegex) {
+			return compileRegex(template.getRegex()).lookingAt(content, start);
+		} else {
+			return match(template, content, start);
+		}
+	}
+
+	/**
+	 * This method parses a content without building a {@link String} of it,
+	 * like {@link #parse(Reader, Consumer, int)}, but with a content which is
+	 * already available, like a {@link MappedContent}. The template is
+	 * matched directly on the content, and only the content of each
+	 * occurrence is copied into a {@link String} to be given to the
+	 * {@link Consumer}. The occurrences are not stored in this {@link Loop},
+	 * whose content does not change. They are delimited like with
+	 * {@link #parse(Reader, Consumer, int, int)}.
+	 * 
+	 * @param content
+	 *            the content to parse
+	 * @param consumer
+	 *            the {@link Consumer} to give the occurrences to
+	 * @return the number of occurrences parsed
+	 * @throws ParsingException
+	 *             if the content does not fit this {@link Loop}, in which
+	 *             case the content of the exception starts at the occurrence
+	 *             which does not fit and is limited to
+	 *             {@value #DEFAULT_LOOKAHEAD} characters
+	 */
+	public int parse(CharSequence content, Consumer<? super Element> consumer) {
+		Element template = getTemplate();
+		boolean isRegex = getParsingEngine() == ParsingEngine.REGEX;
+		int start = 0;
+		int count = 0;
+		while (start < content.length()) {
+			int end = count == max ? -1 : matchOccurrence(template, content,
+					start, isRegex);
+			if (end > start) {
+				Element occurrence = generator.generates();
+				occurrence.setContent(content.subSequence(start, end)
+						.toString());
+				consumer.consume(occurrence);
+				count++;
+				start = end;
+			} else {
+				String rest = content.subSequence(start,
+						Math.min(content.length(), start + DEFAULT_LOOKAHEAD))
+						.toString();
+				if (count < max) {
+					try {
+						template.setContent(rest);
+					} catch (ParsingException e) {
+						throw new ParsingException(this, template, rest,
+								e.getStart(), rest.length(), e);
+					}
+				} else {
+					// no more occurrence expected
+				}
+				throw new ParsingException(this, null, rest, 0, rest.length());
 			}
-			fireContentUpdate("");
+		}
+		if (count < min) {
+			throw new ParsingException(this, template, "", 0, 0);
+		} else {
+			return count;
 		}
 	}
 
+	/**
+	 * Same as {@link #parse(Reader, Consumer, int)} with a lookahead of
+	 * {@value #DEFAULT_LOOKAHEAD} characters.
+	 */
+	public int parse(Reader reader, Consumer<? super Element> consumer)
+			throws IOException {
+		return parse(reader, consumer, DEFAULT_LOOKAHEAD);
+	}
+
+	/**
+	 * Same as {@link #parse(Reader, Consumer)} but with an
+	 * {@link InputStream}, decoded like the one provided by
+	 * {@link #getInputStream()}.
+	 */
+	public int parse(InputStream stream, Consumer<? super Element> consumer)
+			throws IOException {
+		return parse(new InputStreamReader(stream, ENCODING), consumer);
+	}
+
 	@Override
 	public Iterator<Element> iterator() {
 		if (occurrences == null) {
@@ -567,6 +1463,7 @@ public class Loop<Element extends Layer> extends AbstractLayer implements
 			return new Iterator<Element>() {
 
 				private Element lastReturned = null;
+				private int lastIndex = -1;
 
 				@Override
 				public boolean hasNext() {
@@ -575,7 +1472,9 @@ public class Loop<Element extends Layer> extends AbstractLayer implements
 
 				@Override
 				public Element next() {
-					lastReturned = occurenceIterator.next();
+					occurenceIterator.next();
+					lastIndex++;
+					lastReturned = fill(lastIndex);
 					return lastReturned;
 				}
 
@@ -586,9 +1485,18 @@ public class Loop<Element extends Layer> extends AbstractLayer implements
 								"This loop cannot have less than " + min
 										+ " elements.");
 					} else {
+						fillAll();
 						occurenceIterator.remove();
-						lastReturned.removeContentListener(deepListener);
-						fireContentUpdate();
+						offsets = null;
+						removeChangeListener(lastReturned, deepListener);
+						int length = getContentLength(lastReturned);
+						updateContent(length, 0);
+						if (isListened()) {
+							fireContentChange(getStart(lastIndex), length, 0);
+						} else {
+							// nobody to notify
+						}
+						lastIndex--;
 					}
 				}
 			};
@@ -647,6 +1555,23 @@ public class Loop<Element extends Layer> extends AbstractLayer implements
 		public Element generates();
 	}
 
+	/**
+	 * A {@link Consumer} receives the occurrences parsed by
+	 * {@link Loop#parse(Reader, Consumer)}.
+	 * 
+	 * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+	 * 
+	 * @param <Element>
+	 */
+	public static interface Consumer<Element extends Layer> {
+		/**
+		 * 
+		 * @param occurrence
+		 *            the next occurrence parsed
+		 */
+		public void consume(Element occurrence);
+	}
+
 	@SuppressWarnings("serial")
 	public static class BoundException extends RuntimeException {
 		public BoundException(String message, Throwable cause) {
@@ -658,14 +1583,52 @@ public class Loop<Element extends Layer> extends AbstractLayer implements
 		}
 	}
 
+	/**
+	 * The clone is built from clones of the {@link Element}s of this
+	 * {@link Loop}, so its content is not parsed again. If the
+	 * {@link Element}s do not implement their own {@link #clone()} method,
+	 * the content is parsed instead.
+	 */
 	@Override
 	public Object clone() {
 		Loop<Element> loop = new Loop<Element>(quantifier, generator, min, max);
-		String content = getContent();
-		if (content != null) {
-			loop.setContent(content);
-		} else {
+		loop.occurrencePattern = occurrencePattern;
+		loop.isTemplateAcceptingEmpty = isTemplateAcceptingEmpty;
+		shareRegex(loop);
+		if (occurrences == null) {
 			// keep it not filled
+		} else {
+			List<Element> clones = new ArrayList<Element>(occurrences.size());
+			try {
+				for (Element occurrence : occurrences) {
+					if (occurrence == null) {
+						// not generated yet, keep its position
+						clones.add(null);
+					} else {
+						clones.add(createGeneratorFromTemplate(occurrence)
+								.generates());
+					}
+				}
+			} catch (IllegalArgumentException e) {
+				String content = getContent();
+				if (content != null) {
+					loop.setContent(content);
+				} else {
+					// keep it not filled
+				}
+				return loop;
+			}
+			for (Element clone : clones) {
+				if (clone != null) {
+					addChangeListener(clone, loop.deepListener);
+				} else {
+					// not generated yet
+				}
+			}
+			loop.occurrences = clones;
+			loop.contentLength = contentLength;
+			loop.pendingSource = pendingSource;
+			loop.pendingBounds = pendingBounds;
 		}
 		return loop;
 	}
@@ -0,0 +1,121 @@
+package fr.vergne.parsing.layer.standard;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import fr.vergne.parsing.layer.Layer;
+
+/**
+ * An {@link Offsets} tells where the contents of the sub-{@link Layer}s of a
+ * composite {@link Layer} start, so the composite {@link Layer} can locate the
+ * modification of one of them without measuring all the previous ones. The
+ * lengths of the contents are stored in a Fenwick tree, so both the update
+ * of a length and the computation of a start take a time logarithmic in the
+ * number of sub-{@link Layer}s. The index of each sub-{@link Layer} is found
+ * by identity, the first index being used if a {@link Layer} appears several
+ * times.<br/>
+ * <br/>
+ * An {@link Offsets} does not follow the addition or removal of
+ * sub-{@link Layer}s: a new one should be built instead.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+final class Offsets {
+
+	private final Map<Layer, Integer> indexes = new IdentityHashMap<Layer, Integer>();
+	private final int[] tree;
+
+	/**
+	 *
+	 * @param layers
+	 *            the sub-{@link Layer}s, which can be <code>null</code> if
+	 *            they are not generated yet (see
+	 *            {@link #setLayer(int, Layer)})
+	 * @param lengths
+	 *            the lengths of their contents
+	 */
+	public Offsets(List<? extends Layer> layers, int[] lengths) {
+		for (int i = layers.size() - 1; i >= 0; i--) {
+			Layer layer = layers.get(i);
+			if (layer != null) {
+				indexes.put(layer, i);
+			} else {
+				// not generated yet
+			}
+		}
+		int size = lengths.length;
+		tree = new int[size + 1];
+		for (int i = 1; i <= size; i++) {
+			tree[i] += lengths[i - 1];
+			int parent = i + (i & -i);
+			if (parent <= size) {
+				tree[parent] += tree[i];
+			} else {
+				// root of the tree
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param index
+	 *            the index of a sub-{@link Layer} which has been generated
+	 * @param layer
+	 *            the sub-{@link Layer} generated
+	 */
+	public void setLayer(int index, Layer layer) {
+		Integer current = indexes.get(layer);
+		if (current == null || current > index) {
+			indexes.put(layer, index);
+		} else {
+			// keep the first index
+		}
+	}
+
+	/**
+	 *
+	 * @param layer
+	 *            a sub-{@link Layer}
+	 * @return the index of the sub-{@link Layer}
+	 * @throws IllegalArgumentException
+	 *             if the {@link Layer} is not one of the sub-{@link Layer}s
+	 */
+	public int indexOf(Layer layer) {
+		Integer index = indexes.get(layer);
+		if (index == null) {
+			throw new IllegalArgumentException(layer + " is not a sub-layer");
+		} else {
+			return index;
+		}
+	}
+
+	/**
+	 *
+	 * @param index
+	 *            the index of a sub-{@link Layer}
+	 * @param delta
+	 *            the number of characters added to its content (negative if
+	 *            removed)
+	 */
+	public void add(int index, int delta) {
+		for (int i = index + 1; i < tree.length; i += i & -i) {
+			tree[i] += delta;
+		}
+	}
+
+	/**
+	 *
+	 * @param index
+	 *            the index of a sub-{@link Layer}
+	 * @return the position where the content of the sub-{@link Layer} starts
+	 */
+	public int getStart(int index) {
+		int start = 0;
+		for (int i = index; i > 0; i -= i & -i) {
+			start += tree[i];
+		}
+		return start;
+	}
+}
@@ -1,11 +1,15 @@
 package fr.vergne.parsing.layer.standard;
 
+import java.io.IOException;
 import java.io.InputStream;
 
+import fr.vergne.parsing.layer.ContentChange;
+import fr.vergne.parsing.layer.Copyable;
 import fr.vergne.parsing.layer.Layer;
 import fr.vergne.parsing.layer.exception.ParsingException;
 import fr.vergne.parsing.layer.standard.Loop.Generator;
 import fr.vergne.parsing.layer.util.ContentInputStream;
+import fr.vergne.parsing.regex.RegexNode;
 
 /**
  * An {@link Option} make a {@link Layer} optional. Thus, a compatible content
@@ -16,26 +20,35 @@ import fr.vergne.parsing.layer.util.ContentInputStream;
  * @param <CLayer>
  */
 public class Option<CLayer extends Layer> extends AbstractLayer implements
-		Layer {
+		Layer, Copyable {
 
 	private final CLayer option;
 	private boolean isPresent = false;
+	/**
+	 * With {@link AbstractLayer#lazyMaterialization}, the source of the
+	 * option if it is not filled yet and the position of its content.
+	 */
+	private String pendingSource = null;
+	private int pendingStart;
+	private int pendingEnd;
 	private final Quantifier quantifier;
+	private final ChangeListener deepListener = new ChangeListener() {
+
+		@Override
+		public void contentChanged(ContentChange change) {
+			if (isPresent) {
+				fireContentChange(change.getOffset(), change.getOldLength(),
+						change.getNewLength());
+			} else {
+				// don't care
+			}
+		}
+	};
 
 	public Option(CLayer layer, Quantifier quantifier) {
 		this.option = layer;
 		setContent("");
-		this.option.addContentListener(new ContentListener() {
-
-			@Override
-			public void contentSet(String newContent) {
-				if (isPresent) {
-					fireContentUpdate(newContent);
-				} else {
-					// don't care
-				}
-			}
-		});
+		addChangeListener(this.option, deepListener);
 		this.quantifier = quantifier;
 	}
 
@@ -49,33 +62,95 @@ public class Option<CLayer extends Layer> extends AbstractLayer implements
 
 	@Override
 	protected String buildRegex() {
-		return "(?:" + option.getRegex() + ")?" + quantifier.getDecorator();
+		return buildRegexNode().toString();
+	}
+
+	@Override
+	protected RegexNode buildRegexNode() {
+		return RegexNode.repetition(toRegexNode(option),
+				"?" + quantifier.getDecorator());
+	}
+
+	@Override
+	protected int matchContent(CharSequence content, int offset) {
+		// possessive whatever the quantifier (see ParsingEngine)
+		int end = match(option, content, offset);
+		return end < 0 ? offset : end;
 	}
 
 	@Override
 	public InputStream getInputStream() {
-		if (isPresent()) {
+		if (!isPresent()) {
+			return new ContentInputStream("");
+		} else if (pendingSource != null) {
+			return new ContentInputStream(pendingSource.substring(
+					pendingStart, pendingEnd));
+		} else {
 			return option.getInputStream();
+		}
+	}
+
+	@Override
+	public void appendTo(Appendable appendable) throws IOException {
+		if (!isPresent()) {
+			// empty content
+		} else if (pendingSource != null) {
+			appendable.append(pendingSource, pendingStart, pendingEnd);
 		} else {
-			return new ContentInputStream("");
+			appendTo(option, appendable);
+		}
+	}
+
+	@Override
+	public int getContentLength() {
+		if (!isPresent()) {
+			return 0;
+		} else if (pendingSource != null) {
+			return pendingEnd - pendingStart;
+		} else {
+			return getContentLength(option);
 		}
 	}
 
 	@Override
 	protected void setInternalContent(String content) {
-		if (content.isEmpty()) {
+		setInternalContent(content, 0, content.length());
+	}
+
+	@Override
+	protected void setInternalContent(String source, int start, int end) {
+		pendingSource = null;
+		if (start == end) {
 			isPresent = false;
+		} else if (isLazy() && isFitting(source, start, end)) {
+			isPresent = true;
+			pendingSource = source;
+			pendingStart = start;
+			pendingEnd = end;
 		} else {
+			removeChangeListener(option, deepListener);
 			try {
 				isPresent = true;
-				option.setContent(content);
+				ParseContext.current().setContent(option, source, start, end);
 			} catch (ParsingException e) {
-				throw new ParsingException(this, option, content, 0,
-						content.length(), e);
+				throw new ParsingException(this, option, source.substring(
+						start, end), 0, end - start, e);
+			} finally {
+				addChangeListener(option, deepListener);
 			}
 		}
 	}
 
+	private boolean isFitting(String source, int start, int end) {
+		CharSequence content = ContentSlice.of(source, start, end);
+		if (getParsingEngine() == ParsingEngine.REGEX) {
+			return compileRegex(option.getRegex()).matches(content);
+		} else {
+			return ParseContext.current().match(option, content, 0) == content
+					.length();
+		}
+	}
+
 	/**
 	 * 
 	 * @return <code>true</code> if the current content fits the option,
@@ -104,7 +179,13 @@ public class Option<CLayer extends Layer> extends AbstractLayer implements
 					"Impossible to activate the option: it has no content");
 		} else if (this.isPresent != isPresent) {
 			this.isPresent = isPresent;
-			fireContentUpdate();
+			if (isListened()) {
+				int length = getContentLength(getOption());
+				fireContentChange(0, isPresent ? 0 : length, isPresent ? length
+						: 0);
+			} else {
+				// nobody to notify
+			}
 		} else {
 			// no difference, don't change anything
 		}
@@ -116,25 +197,53 @@ public class Option<CLayer extends Layer> extends AbstractLayer implements
 	 *         not
 	 */
 	public CLayer getOption() {
+		if (pendingSource != null) {
+			removeChangeListener(option, deepListener);
+			try {
+				setSubContent(option, pendingSource, pendingStart, pendingEnd);
+				pendingSource = null;
+			} finally {
+				addChangeListener(option, deepListener);
+			}
+		} else {
+			// already filled
+		}
 		return option;
 	}
 
+	@Override
+	protected boolean relocate(String source, int start) {
+		if (!isPresent()) {
+			return true;
+		} else if (pendingSource != null) {
+			pendingEnd = start + pendingEnd - pendingStart;
+			pendingStart = start;
+			pendingSource = source;
+			return true;
+		} else {
+			return relocate(option, source, start);
+		}
+	}
+
 	@Override
 	public String toString() {
 		return option.toString() + "(opt)";
 	}
 
+	/**
+	 * The clone is built from a clone of the option, which has the same
+	 * content, so its content is not parsed again.
+	 */
 	@Override
 	public Object clone() {
 		Generator<CLayer> generator = Loop.createGeneratorFromTemplate(option);
 		CLayer clone = generator.generates();
 		Option<CLayer> option = new Option<CLayer>(clone, quantifier);
-		String content = getContent();
-		if (content != null) {
-			option.setContent(content);
-		} else {
-			// keep it not filled
-		}
+		shareRegex(option);
+		option.isPresent = isPresent;
+		option.pendingSource = pendingSource;
+		option.pendingStart = pendingStart;
+		option.pendingEnd = pendingEnd;
 		return option;
 	}
 }
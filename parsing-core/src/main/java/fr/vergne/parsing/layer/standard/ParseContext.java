@@ -0,0 +1,320 @@
+package fr.vergne.parsing.layer.standard;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import fr.vergne.parsing.layer.ComposableLayer;
+import fr.vergne.parsing.layer.Layer;
+import fr.vergne.parsing.layer.exception.ParsingException;
+import fr.vergne.parsing.regex.RegexEngine;
+
+/**
+ * A {@link ParseContext} stores the state of a parsing, which starts when
+ * {@link Layer#setContent(String)} is called on a root {@link Layer} and ends
+ * when this call returns. Like {@link RegexContext}, each thread has its own
+ * {@link ParseContext}, and the configuration is read once when the context
+ * starts, so the whole parsing uses the same {@link ParsingEngine} and
+ * {@link RegexEngine} even if {@link AbstractLayer#parsingEngine} or
+ * {@link AbstractLayer#regexEngine} is changed in between. The same goes for
+ * {@link AbstractLayer#lazyMaterialization}.<br/>
+ * <br/>
+ * With {@link ParsingEngine#PACKRAT}, the {@link ParseContext} also memoizes
+ * the results of {@link ComposableLayer#match(CharSequence, int)} on the content of the
+ * root {@link Layer}, called the source. The sub-{@link Layer}s are matched
+ * on this source at the position of their own content (see
+ * {@link #match(Layer, CharSequence, int)} and
+ * {@link #setContent(Layer, CharSequence, int, int)}), so a {@link Layer} which
+ * is matched again at the same position, at the same level or deeper, reuses
+ * the result already computed. The memo stores at most
+ * {@link AbstractLayer#memoCapacity} results, the least recently used being
+ * evicted first.
+ * 
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ * 
+ */
+final class ParseContext {
+
+	private static final ThreadLocal<ParseContext> contexts = new ThreadLocal<ParseContext>();
+	private final ParsingEngine engine;
+	private final boolean isLazy;
+	private RegexEngine regexEngine;
+	private boolean isStarted = false;
+	private final Map<MemoKey, Integer> memo;
+	private int openings = 0;
+	private String source = null;
+	private String current = null;
+	private int base = 0;
+
+	private ParseContext(ParsingEngine engine, RegexEngine regexEngine,
+			final int memoCapacity, boolean isLazy) {
+		this.engine = engine;
+		this.isLazy = isLazy;
+		this.regexEngine = regexEngine;
+		if (engine == ParsingEngine.PACKRAT) {
+			this.memo = new LinkedHashMap<MemoKey, Integer>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Entry<MemoKey, Integer> eldest) {
+					return size() > memoCapacity;
+				}
+			};
+		} else {
+			this.memo = null;
+		}
+	}
+
+	/**
+	 * This method provides the {@link ParseContext} of the current thread,
+	 * creating it if no parsing is currently running. Each call to this method
+	 * should be followed by a call to {@link #close()}, once the content is
+	 * set.
+	 * 
+	 * @return the {@link ParseContext} of the current thread
+	 */
+	public static ParseContext open() {
+		ParseContext context = contexts.get();
+		if (context == null) {
+			context = new ParseContext(AbstractLayer.parsingEngine,
+					AbstractLayer.regexEngine, AbstractLayer.memoCapacity,
+					AbstractLayer.lazyMaterialization);
+			contexts.set(context);
+			ParsingException.setStackless(true);
+		} else {
+			// reuse the current one
+		}
+		context.openings++;
+		return context;
+	}
+
+	/**
+	 * 
+	 * @return the {@link ParseContext} of the current thread,
+	 *         <code>null</code> if no parsing is currently running
+	 */
+	public static ParseContext current() {
+		return contexts.get();
+	}
+
+	/**
+	 * This method should be called once the content requested with
+	 * {@link #open()} has been set. When the content of the root {@link Layer}
+	 * is set, the {@link ParseContext} is discarded. Until then, the
+	 * {@link ParsingException}s are created without stack trace (see
+	 * {@link ParsingException#setStackless(boolean)}).
+	 */
+	public void close() {
+		openings--;
+		if (openings == 0) {
+			contexts.remove();
+			ParsingException.setStackless(false);
+		} else {
+			// still parsing
+		}
+	}
+
+	/**
+	 * 
+	 * @return the {@link ParsingEngine} used by this {@link ParseContext}
+	 */
+	public ParsingEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * 
+	 * @return <code>true</code> if the sub-{@link Layer}s should be filled
+	 *         only when requested (see
+	 *         {@link AbstractLayer#lazyMaterialization})
+	 */
+	public boolean isLazy() {
+		return isLazy;
+	}
+
+	/**
+	 * This method tells the content of the root {@link Layer}, which is the
+	 * source on which the {@link Layer}s are matched with
+	 * {@link ParsingEngine#PACKRAT}, and its {@link RegexEngine}, which is
+	 * used by all the {@link Layer}s which do not have their own. It has no
+	 * effect once the root is known, so it can be called for any
+	 * {@link Layer} which starts to parse its content.
+	 * 
+	 * @param content
+	 *            the content of the {@link Layer} to parse
+	 * @param regexEngine
+	 *            the {@link RegexEngine} of the {@link Layer} to parse,
+	 *            <code>null</code> if it has none
+	 */
+	public void start(String content, RegexEngine regexEngine) {
+		if (isStarted) {
+			// root already known
+		} else {
+			isStarted = true;
+			if (regexEngine != null) {
+				this.regexEngine = regexEngine;
+			} else {
+				// keep the default one
+			}
+			if (memo != null) {
+				source = content;
+				current = content;
+			} else {
+				// not memoized
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return the {@link RegexEngine} of the root {@link Layer}
+	 */
+	public RegexEngine getRegexEngine() {
+		return regexEngine;
+	}
+
+	/**
+	 * This method provides the same result than
+	 * {@link ComposableLayer#match(CharSequence, int)}, but the {@link Layer} is matched
+	 * on the source when the content given is a part of it, in order to
+	 * benefit from the memo. A match which goes beyond the content given is
+	 * considered as a failure.
+	 * 
+	 * @param layer
+	 *            the {@link Layer} to match
+	 * @param content
+	 *            the content to match
+	 * @param offset
+	 *            the position where the match should start
+	 * @return the position where the match ends, -1 if there is no match
+	 */
+	public int match(Layer layer, CharSequence content, int offset) {
+		int position = getPosition(content);
+		if (position >= 0) {
+			int end = AbstractLayer.match(layer, source, position + offset);
+			return end < 0 || end > position + content.length() ? -1 : end
+					- position;
+		} else {
+			return AbstractLayer.match(layer, content, offset);
+		}
+	}
+
+	/**
+	 * This method sets the content of a sub-{@link Layer} without copying it
+	 * when possible: an {@link AbstractLayer} receives the {@link String} the
+	 * content is part of with the positions of its own content (see
+	 * {@link AbstractLayer#setInternalContent(String, int, int)}), so it can
+	 * keep the positions rather than a copy, and its own sub-{@link Layer}s
+	 * can use {@link #match(Layer, CharSequence, int)} on the same source.
+	 * 
+	 * @param layer
+	 *            the sub-{@link Layer} to set
+	 * @param content
+	 *            the content currently parsed
+	 * @param start
+	 *            the position of the content of the sub-{@link Layer}
+	 * @param end
+	 *            the position where the content of the sub-{@link Layer}
+	 *            ends
+	 */
+	public void setContent(Layer layer, CharSequence content, int start,
+			int end) {
+		String contentSource = ContentSlice.getSource(content);
+		if (layer instanceof AbstractLayer && contentSource != null) {
+			int offset = ContentSlice.getStart(content);
+			((AbstractLayer) layer).setContent(contentSource, offset + start,
+					offset + end);
+		} else {
+			String subContent = content.subSequence(start, end).toString();
+			int position = getPosition(content);
+			if (position >= 0) {
+				String previousContent = current;
+				int previousBase = base;
+				current = subContent;
+				base = position + start;
+				try {
+					layer.setContent(subContent);
+				} finally {
+					current = previousContent;
+					base = previousBase;
+				}
+			} else {
+				layer.setContent(subContent);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @return the position of the content in the source, -1 if it is not
+	 *         part of it or if nothing is memoized
+	 */
+	private int getPosition(CharSequence content) {
+		String contentSource = ContentSlice.getSource(content);
+		if (memo == null || contentSource == null) {
+			return -1;
+		} else if (contentSource == source) {
+			return ContentSlice.getStart(content);
+		} else if (contentSource == current) {
+			return base + ContentSlice.getStart(content);
+		} else {
+			return -1;
+		}
+	}
+
+	/**
+	 * This method is called by {@link AbstractLayer#match(CharSequence, int)}
+	 * to reuse the result of a previous match when available.
+	 * 
+	 * @param layer
+	 *            the {@link AbstractLayer} to match
+	 * @param content
+	 *            the content to match
+	 * @param offset
+	 *            the position where the match should start
+	 * @return the position where the match ends, -1 if there is no match
+	 */
+	int memoize(AbstractLayer layer, CharSequence content, int offset) {
+		if (memo != null && content == source) {
+			MemoKey key = new MemoKey(layer.getMemoKey(), offset);
+			Integer end = memo.get(key);
+			if (end == null) {
+				end = layer.matchContent(content, offset);
+				memo.put(key, end);
+			} else {
+				// reuse the memoized one
+			}
+			return end;
+		} else {
+			return layer.matchContent(content, offset);
+		}
+	}
+
+	private static final class MemoKey {
+		private final Object layerKey;
+		private final int offset;
+
+		public MemoKey(Object layerKey, int offset) {
+			this.layerKey = layerKey;
+			this.offset = offset;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this) {
+				return true;
+			} else if (obj instanceof MemoKey) {
+				MemoKey other = (MemoKey) obj;
+				return offset == other.offset
+						&& layerKey.equals(other.layerKey);
+			} else {
+				return false;
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * layerKey.hashCode() + offset;
+		}
+	}
+}
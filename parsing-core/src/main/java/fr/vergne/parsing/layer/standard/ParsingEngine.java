@@ -0,0 +1,47 @@
+package fr.vergne.parsing.layer.standard;
+
+import fr.vergne.parsing.layer.ComposableLayer;
+import fr.vergne.parsing.layer.Layer;
+
+/**
+ * A {@link ParsingEngine} tells how the composite {@link Layer}s split the
+ * content they receive among their sub-{@link Layer}s:
+ * <ul>
+ * <li>{@link #REGEX}: the composite {@link Layer} matches its content against
+ * its complete regex, which includes the regex of all its sub-{@link Layer}s.
+ * This is the default engine, which accepts any content the regex accepts,
+ * but the regex of a composite {@link Layer} can be huge, especially for
+ * recursive {@link Layer}s which are truncated at
+ * {@link AbstractLayer#recursivityDepth}.</li>
+ * <li>{@link #DESCENT}: the composite {@link Layer} asks each sub-{@link Layer}
+ * where it ends through {@link ComposableLayer#match(CharSequence, int)}, so only the
+ * regex of the leaves are used, and the parsing time depends on the size of
+ * the content rather than on the size of the regex. However, each
+ * {@link Layer} takes the first match it finds without considering what
+ * follows: a {@link Loop} takes as many occurrences as possible, a
+ * {@link Choice} takes the first alternative which matches, etc. Thus, some
+ * contents accepted by the regex of the {@link Layer} are rejected by this
+ * engine, like "aa" for a {@link Suite} of a {@link Formula} "a+" followed by
+ * an {@link Atom} "a". For the same reason, the {@link Quantifier}s of the
+ * {@link Loop}s and {@link Option}s are ignored: they all behave like
+ * {@link Quantifier#POSSESSIVE}, so a {@link Quantifier#LAZY} one still
+ * takes as much content as it can.</li>
+ * <li>{@link #PACKRAT}: same as {@link #DESCENT}, but each {@link Layer} is
+ * matched on the content of the root {@link Layer} and the results are
+ * memoized for the whole parsing, so a {@link Layer} is not matched twice at
+ * the same position, even when the content of its parent is split again at a
+ * deeper level, or when several alternatives of a {@link Choice} start with
+ * the same {@link Formula}s. The parsing time is thus linear in the size of
+ * the content, at the price of the memory needed by the memo, which is
+ * bounded by {@link AbstractLayer#memoCapacity}. Because the sub-
+ * {@link Layer}s are matched on the whole content, the lookarounds and
+ * boundary matchers of their regex see the rest of the content.</li>
+ * </ul>
+ * The engine to use is set through {@link AbstractLayer#parsingEngine}.
+ * 
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ * 
+ */
+public enum ParsingEngine {
+	REGEX, DESCENT, PACKRAT
+}
@@ -0,0 +1,140 @@
+package fr.vergne.parsing.layer.standard;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import fr.vergne.parsing.layer.Layer;
+
+/**
+ * A {@link RegexContext} stores the state of a regex building, which starts
+ * when {@link Layer#getRegex()} is called on a root {@link Layer} and ends when
+ * this call returns. In particular, it counts how many times each type of
+ * {@link Layer} is currently building its regex, in order to stop the
+ * recursive {@link Layer}s once {@link AbstractLayer#recursivityDepth} is
+ * reached.<br/>
+ * <br/>
+ * Each thread has its own {@link RegexContext}, so several threads can build
+ * regex at the same time, even for the same types of {@link Layer}s, without
+ * waiting for each other nor corrupting the counts of each other. The
+ * recursivity depth is read once when the context starts, so changing
+ * {@link AbstractLayer#recursivityDepth} while a regex is built does not
+ * impact it.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+final class RegexContext {
+
+	private static final ThreadLocal<RegexContext> contexts = new ThreadLocal<RegexContext>();
+	private final int recursivityDepth;
+	private final Map<Class<?>, Integer> calls = new HashMap<Class<?>, Integer>();
+	private int openings = 0;
+	private int truncations = 0;
+
+	private RegexContext(int recursivityDepth) {
+		this.recursivityDepth = recursivityDepth;
+	}
+
+	/**
+	 * This method provides the {@link RegexContext} of the current thread,
+	 * creating it if no regex is currently built. Each call to this method
+	 * should be followed by a call to {@link #close()}, once the regex is
+	 * built.
+	 *
+	 * @return the {@link RegexContext} of the current thread
+	 */
+	public static RegexContext open() {
+		RegexContext context = contexts.get();
+		if (context == null) {
+			context = new RegexContext(AbstractLayer.recursivityDepth);
+			contexts.set(context);
+		} else {
+			// reuse the current one
+		}
+		context.openings++;
+		return context;
+	}
+
+	/**
+	 * This method should be called once the regex requested with
+	 * {@link #open()} has been built. When the root regex is built, the
+	 * {@link RegexContext} is discarded.
+	 */
+	public void close() {
+		openings--;
+		if (openings == 0) {
+			contexts.remove();
+		} else {
+			// still building
+		}
+	}
+
+	/**
+	 *
+	 * @return <code>true</code> if the current regex building is the one of
+	 *         the root {@link Layer}, <code>false</code> if it is the regex
+	 *         of a sub-{@link Layer}
+	 */
+	public boolean isRoot() {
+		return calls.isEmpty();
+	}
+
+	/**
+	 *
+	 * @return the recursivity depth used by this {@link RegexContext}
+	 */
+	public int getRecursivityDepth() {
+		return recursivityDepth;
+	}
+
+	/**
+	 * A regex is truncated when a recursive {@link Layer} reaches the
+	 * recursivity depth, which replaces its regex by a generic one. A regex
+	 * built without truncation does not depend on the context where it has
+	 * been built, while a truncated regex depends on the recursive
+	 * {@link Layer}s already under building. Comparing this value before and
+	 * after building a regex tells whether it has been truncated.
+	 *
+	 * @return the number of truncations since this {@link RegexContext} has
+	 *         been created
+	 */
+	public int getTruncations() {
+		return truncations;
+	}
+
+	/**
+	 *
+	 * @param clazz
+	 *            the type of {@link Layer} which starts to build its regex
+	 * @return <code>true</code> if the regex can be built,
+	 *         <code>false</code> if the {@link Layer} has reached the
+	 *         recursivity depth
+	 */
+	public boolean enter(Class<?> clazz) {
+		Integer value = calls.get(clazz);
+		int count = value == null ? 0 : value;
+		if (count >= recursivityDepth) {
+			truncations++;
+			return false;
+		} else {
+			calls.put(clazz, count + 1);
+			return true;
+		}
+	}
+
+	/**
+	 * This method should be called each time a {@link Layer} has built its
+	 * regex after a successful call to {@link #enter(Class)}.
+	 *
+	 * @param clazz
+	 *            the type of {@link Layer} which has built its regex
+	 */
+	public void exit(Class<?> clazz) {
+		int count = calls.get(clazz) - 1;
+		if (count == 0) {
+			calls.remove(clazz);
+		} else {
+			calls.put(clazz, count);
+		}
+	}
+}
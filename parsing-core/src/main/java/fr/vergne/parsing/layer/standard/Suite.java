@@ -2,17 +2,21 @@ package fr.vergne.parsing.layer.standard;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import fr.vergne.parsing.layer.ContentChange;
+import fr.vergne.parsing.layer.Copyable;
 import fr.vergne.parsing.layer.Layer;
 import fr.vergne.parsing.layer.exception.ParsingException;
 import fr.vergne.parsing.layer.standard.Loop.Generator;
+import fr.vergne.parsing.layer.util.CompositeInputStream;
+import fr.vergne.parsing.layer.util.ContentInputStream;
+import fr.vergne.parsing.regex.RegexNode;
 
 /**
  * A {@link Suite} is a {@link Layer} representing an ordered sequence of
@@ -49,17 +53,48 @@ import fr.vergne.parsing.layer.standard.Loop.Generator;
  * @author Matthieu Vergne <matthieu.vergne@gmail.com>
  * 
  */
-public class Suite extends AbstractLayer {
+public class Suite extends AbstractLayer implements Copyable {
 
 	private final List<? extends Layer> sequence;
-	private ContentListener deepListener = new ContentListener() {
+	private String capturingRegex;
+	private int contentLength = -1;
+	/**
+	 * Where the contents of the sub-{@link Layer}s start, computed at the
+	 * first modification to notify and updated at the next ones.
+	 */
+	private Offsets offsets = null;
+	/**
+	 * With {@link AbstractLayer#lazyMaterialization}, the source of the
+	 * sub-{@link Layer}s not filled yet and the positions of their contents.
+	 */
+	private String pendingSource = null;
+	private int[] pendingBounds = null;
+	private boolean[] isPending = null;
+	private ChangeListener deepListener = new ChangeListener() {
 
 		@Override
-		public void contentSet(String newContent) {
-			try {
-				fireContentUpdate();
-			} catch (NoContentException e) {
-				// sequence not complete, nothing to notify
+		public void contentChanged(ContentChange change) {
+			int delta = change.getNewLength() - change.getOldLength();
+			if (contentLength >= 0) {
+				contentLength += delta;
+			} else {
+				// not computed yet
+			}
+			if (offsets != null) {
+				offsets.add(offsets.indexOf(change.getLayer()), delta);
+			} else {
+				// not computed yet
+			}
+			if (isListened()) {
+				try {
+					fireContentChange(getStart(change.getLayer())
+							+ change.getOffset(), change.getOldLength(),
+							change.getNewLength());
+				} catch (NoContentException e) {
+					// sequence not complete, nothing to notify
+				}
+			} else {
+				// nobody to notify
 			}
 		}
 	};
@@ -69,24 +104,30 @@ public class Suite extends AbstractLayer {
 			throw new IllegalArgumentException(
 					"No layer provided to the suite: " + sequence);
 		} else {
-			this.sequence = Collections.unmodifiableList(sequence);
+			this.sequence = Collections.unmodifiableList(new ArrayList<Layer>(
+					sequence));
 			for (Layer layer : sequence) {
-				layer.addContentListener(deepListener);
+				addChangeListener(layer, deepListener);
 			}
 		}
 	}
 
 	public Suite(Layer... sequence) {
-		this(new LinkedList<Layer>(Arrays.asList(sequence)));
+		this(Arrays.asList(sequence));
 	}
 
 	@Override
 	protected String buildRegex() {
-		String regex = "";
+		return buildRegexNode().toString();
+	}
+
+	@Override
+	protected RegexNode buildRegexNode() {
+		List<RegexNode> nodes = new ArrayList<RegexNode>(sequence.size());
 		for (Layer layer : sequence) {
-			regex += "(?:" + layer.getRegex() + ")";
+			nodes.add(RegexNode.group(toRegexNode(layer)));
 		}
-		return regex;
+		return RegexNode.sequence(nodes);
 	}
 
 	@Override
@@ -96,97 +137,251 @@ public class Suite extends AbstractLayer {
 		 * available. This allows to throw NoContentException immediately if the
 		 * sequence is not complete.
 		 */
-		final List<InputStream> streams = new LinkedList<InputStream>();
-		for (Layer sublayer : sequence) {
-			streams.add(sublayer.getInputStream());
+		List<InputStream> streams = new LinkedList<InputStream>();
+		for (int i = 0; i < sequence.size(); i++) {
+			if (isPending(i)) {
+				streams.add(new ContentInputStream(pendingSource.substring(
+						pendingBounds[i], pendingBounds[i + 1])));
+			} else {
+				streams.add(sequence.get(i).getInputStream());
+			}
 		}
-		return new InputStream() {
-			private InputStream reader = new InputStream() {
+		return new CompositeInputStream(streams);
+	}
 
-				@Override
-				public int read() throws IOException {
-					return -1;
-				}
-			};
-			private final Iterator<InputStream> iterator = streams.iterator();
-
-			@Override
-			public int read() throws IOException {
-				int character = reader.read();
-				while (character == -1 && iterator.hasNext()) {
-					reader.close();
-					reader = iterator.next();
-					character = reader.read();
-				}
-				return character;
+	/**
+	 * The content of a {@link Suite} is not kept: it is built from its
+	 * sub-{@link Layer}s each time it is requested, so the text is not
+	 * duplicated at every level of the tree of {@link Layer}s.
+	 */
+	@Override
+	public void appendTo(Appendable appendable) throws IOException {
+		for (int i = 0; i < sequence.size(); i++) {
+			if (isPending(i)) {
+				appendable.append(pendingSource, pendingBounds[i],
+						pendingBounds[i + 1]);
+			} else {
+				appendTo(sequence.get(i), appendable);
+			}
+		}
+	}
+
+	@Override
+	public int getContentLength() {
+		if (contentLength < 0) {
+			int length = 0;
+			for (int i = 0; i < sequence.size(); i++) {
+				length += getLength(i);
 			}
+			contentLength = length;
+		} else {
+			// reuse the one already computed
+		}
+		return contentLength;
+	}
+
+	private void invalidateContent() {
+		contentLength = -1;
+		offsets = null;
+	}
 
-			@Override
-			public void close() throws IOException {
-				reader.close();
-				super.close();
+	private int getStart(Layer sublayer) {
+		if (offsets == null) {
+			int[] lengths = new int[sequence.size()];
+			for (int i = 0; i < lengths.length; i++) {
+				lengths[i] = getLength(i);
 			}
-		};
+			offsets = new Offsets(sequence, lengths);
+		} else {
+			// reuse the one already computed
+		}
+		return offsets.getStart(offsets.indexOf(sublayer));
 	}
 
 	@Override
 	protected void setInternalContent(String content) {
-		Matcher matcher = Pattern.compile(
-				"^" + buildCapturingRegex(sequence) + "$").matcher(content);
-		if (matcher.find()) {
-			int delta = 0;
-			for (int i = 1; i <= matcher.groupCount(); i++) {
-				String match = matcher.group(i);
-				int subStart = delta;
-				int subEnd = subStart + match.length();
-				Layer item = sequence.get(i - 1);
-				item.removeContentListener(deepListener);
-				try {
-					item.setContent(match);
-				} catch (ParsingException e) {
-					throw new ParsingException(this, item, content, subStart
-							+ e.getStart(), subEnd, e);
-				} finally {
-					item.addContentListener(deepListener);
+		setInternalContent(content, 0, content.length());
+	}
+
+	@Override
+	protected void setInternalContent(String source, int contentStart,
+			int contentEnd) {
+		CharSequence content = ContentSlice.of(source, contentStart,
+				contentEnd);
+		invalidateContent();
+		pendingSource = null;
+		pendingBounds = null;
+		isPending = null;
+		int[] ends = new int[sequence.size()];
+		if (getParsingEngine() != ParsingEngine.REGEX) {
+			descend(content, ends, false);
+		} else {
+			if (capturingRegex == null) {
+				capturingRegex = buildCapturingRegex(sequence);
+			} else {
+				// reuse the existing one
+			}
+			int[] groups = compileRegex(capturingRegex).match(content, 0, true);
+			if (groups != null) {
+				for (int i = 0; i < ends.length; i++) {
+					ends[i] = groups[2 * (i + 1) + 1];
 				}
-				delta += match.length();
+			} else {
+				descend(content, ends, true);
 			}
+		}
+
+		ParseContext context = ParseContext.current();
+		if (context.isLazy()) {
+			pendingSource = source;
+			pendingBounds = new int[ends.length + 1];
+			pendingBounds[0] = contentStart;
+			for (int i = 0; i < ends.length; i++) {
+				pendingBounds[i + 1] = contentStart + ends[i];
+			}
+			isPending = new boolean[ends.length];
+			Arrays.fill(isPending, true);
+			return;
 		} else {
-			LinkedList<Layer> preOk = new LinkedList<Layer>(sequence);
-			LinkedList<Layer> innerKo = new LinkedList<Layer>();
-			do {
-				innerKo.addFirst(preOk.removeLast());
-				String regex = buildCapturingRegex(preOk);
-				matcher = Pattern.compile("^" + regex).matcher(content);
-			} while (!matcher.find());
-
-			List<Layer> fakeSequence = new LinkedList<Layer>(preOk);
-			Formula remaining = new Formula("[\\s\\S]*");
-			fakeSequence.add(remaining);
-			new Suite(fakeSequence).setContent(content);
-			String incompatible = remaining.getContent();
+			// fill the sub-layers now
+		}
+		int start = 0;
+		for (int i = 0; i < ends.length; i++) {
+			int end = ends[i];
+			Layer item = sequence.get(i);
+			removeChangeListener(item, deepListener);
 			try {
-				innerKo.getFirst().setContent(incompatible);
+				context.setContent(item, content, start, end);
 			} catch (ParsingException e) {
-				int start = 0;
-				for (Layer layer : preOk) {
-					start += layer.getContent().length();
+				throw new ParsingException(this, item, content.toString(),
+						start + e.getStart(), end, e);
+			} finally {
+				addChangeListener(item, deepListener);
+			}
+			start = end;
+		}
+	}
+
+	/**
+	 * This method splits the content among the sub-{@link Layer}s by asking
+	 * each of them where it ends, as requested by
+	 * {@link ParsingEngine#DESCENT} and {@link ParsingEngine#PACKRAT}. It is
+	 * also used to locate the failure when the regex of this {@link Suite}
+	 * does not match the content: the sub-{@link Layer}s are tried in a
+	 * single forward pass, and the first one which does not fit is asked to
+	 * parse the rest of the content to tell where it fails. Because the
+	 * previous one may have stopped before an invalid piece of content, it is
+	 * asked too, and the farthest failure is reported.
+	 * 
+	 * @param content
+	 *            the content to split
+	 * @param ends
+	 *            the array to fill with the end of each sub-{@link Layer}
+	 * @param isLastBlamed
+	 *            <code>true</code> if the last sub-{@link Layer} should be
+	 *            asked to parse the remaining content when it does not
+	 *            consume it all, like the regex of this {@link Suite} would
+	 *            report it, <code>false</code> to report that nothing is
+	 *            expected where the last sub-{@link Layer} ends
+	 */
+	private void descend(CharSequence content, int[] ends,
+			boolean isLastBlamed) {
+		ParseContext context = ParseContext.current();
+		int start = 0;
+		for (int i = 0; i < ends.length; i++) {
+			Layer item = sequence.get(i);
+			int end = context.match(item, content, start);
+			if (end >= 0) {
+				ends[i] = end;
+				start = end;
+			} else {
+				ParsingException failure = parseRest(item, content, start);
+				if (failure == null) {
+					failure = new ParsingException(this, item,
+							content.toString(), start, content.length());
+				} else {
+					// failure located in the item
 				}
-				throw new ParsingException(this, innerKo.getFirst(), content,
-						start + e.getStart(), start + e.getEnd(), e);
+				if (i > 0) {
+					/*
+					 * The previous item may have stopped before an invalid
+					 * piece of content which it should have consumed, in
+					 * which case its failure is farther.
+					 */
+					int previousStart = i > 1 ? ends[i - 2] : 0;
+					ParsingException previous = parseRest(sequence.get(i - 1),
+							content, previousStart);
+					if (previous != null
+							&& previous.getStart() > failure.getStart()) {
+						failure = previous;
+					} else {
+						// keep the failure of the item
+					}
+				} else {
+					// no previous item
+				}
+				throw failure;
+			}
+		}
+		if (start < content.length()) {
+			ParsingException failure = new ParsingException(this, null,
+					content.toString(), start, content.length());
+			int lastStart = ends.length > 1 ? ends[ends.length - 2] : 0;
+			ParsingException last = parseRest(sequence.get(ends.length - 1),
+					content, lastStart);
+			if (last != null
+					&& (isLastBlamed || last.getStart() > failure.getStart())) {
+				failure = last;
+			} else {
+				// nothing expected after the last item
+			}
+			throw failure;
+		} else {
+			// all the content is consumed
+		}
+	}
+
+	/**
+	 * 
+	 * @return the {@link ParsingException} telling where the item fails to
+	 *         parse the content from the given start, or <code>null</code> if
+	 *         it succeeds
+	 */
+	private ParsingException parseRest(Layer item, CharSequence content,
+			int start) {
+		removeChangeListener(item, deepListener);
+		try {
+			ParseContext.current().setContent(item, content, start,
+					content.length());
+			return null;
+		} catch (ParsingException e) {
+			return new ParsingException(this, item, content.toString(),
+					start + e.getStart(), content.length(), e);
+		} finally {
+			addChangeListener(item, deepListener);
+		}
+	}
+
+	@Override
+	protected int matchContent(CharSequence content, int offset) {
+		int end = offset;
+		for (Layer item : sequence) {
+			end = match(item, content, end);
+			if (end < 0) {
+				return -1;
+			} else {
+				// continue with the next one
 			}
-			throw new IllegalStateException(
-					"No exception thrown while it should not be parsable.");
 		}
+		return end;
 	}
 
 	private String buildCapturingRegex(List<? extends Layer> sequence) {
-		String regex;
-		regex = "";
+		List<RegexNode> nodes = new ArrayList<RegexNode>(sequence.size());
 		for (Layer layer : sequence) {
-			regex += "(" + layer.getRegex() + ")";
+			nodes.add(RegexNode.capture(toRegexNode(layer)));
 		}
-		return regex;
+		return RegexNode.sequence(nodes).toString();
 	}
 
 	@Override
@@ -200,23 +395,89 @@ public class Suite extends AbstractLayer {
 
 	@SuppressWarnings("unchecked")
 	public <CLayer extends Layer> CLayer get(int index) {
+		fill(index);
 		return (CLayer) sequence.get(index);
 	}
 
+	private boolean isPending(int index) {
+		return isPending != null && isPending[index];
+	}
+
+	private int getLength(int index) {
+		if (isPending(index)) {
+			return pendingBounds[index + 1] - pendingBounds[index];
+		} else {
+			return getContentLength(sequence.get(index));
+		}
+	}
+
+	/**
+	 * This method fills a sub-{@link Layer} which has been left empty with
+	 * {@link AbstractLayer#lazyMaterialization}.
+	 */
+	private void fill(int index) {
+		if (isPending(index)) {
+			Layer item = sequence.get(index);
+			removeChangeListener(item, deepListener);
+			try {
+				setSubContent(item, pendingSource, pendingBounds[index],
+						pendingBounds[index + 1]);
+				isPending[index] = false;
+			} finally {
+				addChangeListener(item, deepListener);
+			}
+		} else {
+			// already filled
+		}
+	}
+
+	@Override
+	protected boolean relocate(String source, int start) {
+		if (isPending != null) {
+			int shift = start - pendingBounds[0];
+			int[] bounds = new int[pendingBounds.length];
+			for (int i = 0; i < bounds.length; i++) {
+				bounds[i] = pendingBounds[i] + shift;
+			}
+			pendingSource = source;
+			pendingBounds = bounds;
+		} else {
+			// all filled
+		}
+		int position = start;
+		for (int i = 0; i < sequence.size(); i++) {
+			if (isPending(i) || relocate(sequence.get(i), source, position)) {
+				position += getLength(i);
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The clone is built from clones of the sub-{@link Layer}s of this
+	 * {@link Suite}, which have the same contents, so its content is not
+	 * parsed again.
+	 */
 	@Override
 	public Object clone() {
-		List<Layer> clonedSequence = new LinkedList<Layer>();
+		List<Layer> clonedSequence = new ArrayList<Layer>(sequence.size());
 		for (Layer original : sequence) {
 			Generator<Layer> generator = Loop
 					.createGeneratorFromTemplate(original);
 			clonedSequence.add(generator.generates());
 		}
 		Suite suite = new Suite(clonedSequence);
-		String content = getContent();
-		if (content != null) {
-			suite.setContent(content);
+		suite.capturingRegex = capturingRegex;
+		shareRegex(suite);
+		suite.contentLength = contentLength;
+		if (isPending != null) {
+			suite.pendingSource = pendingSource;
+			suite.pendingBounds = pendingBounds;
+			suite.isPending = isPending.clone();
 		} else {
-			// keep it not filled
+			// all filled
 		}
 		return suite;
 	}
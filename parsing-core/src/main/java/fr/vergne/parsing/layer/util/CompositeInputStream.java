@@ -0,0 +1,152 @@
+package fr.vergne.parsing.layer.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import fr.vergne.parsing.layer.Layer;
+
+/**
+ * A {@link CompositeInputStream} provides the content of several
+ * {@link InputStream}s one after the other, like the content of a composite
+ * {@link Layer} is the content of its sub-{@link Layer}s one after the other.
+ * In addition to the single byte {@link #read()}, it reads whole blocks from
+ * the underlying {@link InputStream}s, so copying the content of a deep
+ * {@link Layer} does not cost a call per byte and per level.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+public class CompositeInputStream extends InputStream {
+
+	private static final int BUFFER_SIZE = 8192;
+	private final List<InputStream> streams;
+	private int current = 0;
+
+	/**
+	 *
+	 * @param streams
+	 *            the {@link InputStream}s to read in order
+	 */
+	public CompositeInputStream(Collection<? extends InputStream> streams) {
+		this.streams = new ArrayList<InputStream>(streams);
+	}
+
+	@Override
+	public int read() throws IOException {
+		while (current < streams.size()) {
+			int character = streams.get(current).read();
+			if (character == -1) {
+				next();
+			} else {
+				return character;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (offset < 0 || length < 0 || length > buffer.length - offset) {
+			throw new IndexOutOfBoundsException();
+		} else if (length == 0) {
+			return 0;
+		} else {
+			int total = 0;
+			while (total < length && current < streams.size()) {
+				int read = streams.get(current).read(buffer, offset + total,
+						length - total);
+				if (read == -1) {
+					next();
+				} else {
+					total += read;
+				}
+			}
+			return total == 0 ? -1 : total;
+		}
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long total = 0;
+		while (total < n && current < streams.size()) {
+			long skipped = streams.get(current).skip(n - total);
+			if (skipped > 0) {
+				total += skipped;
+			} else if (streams.get(current).read() == -1) {
+				next();
+			} else {
+				total++;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * The number of bytes available is the sum of the bytes available in the
+	 * remaining {@link InputStream}s. For {@link Layer}s, it is usually the
+	 * exact number of bytes remaining.
+	 */
+	@Override
+	public int available() throws IOException {
+		long available = 0;
+		for (int i = current; i < streams.size(); i++) {
+			available += streams.get(i).available();
+		}
+		return (int) Math.min(available, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * This method writes all the remaining bytes of this
+	 * {@link CompositeInputStream} in the given {@link OutputStream}. Each
+	 * underlying {@link InputStream} is transferred by block, or written
+	 * directly when it is a {@link ContentInputStream} or another
+	 * {@link CompositeInputStream}.
+	 *
+	 * @param out
+	 *            the {@link OutputStream} to write in
+	 * @return the number of bytes transferred
+	 * @throws IOException
+	 *             if an I/O error occurs when reading or writing
+	 */
+	public long transferTo(OutputStream out) throws IOException {
+		long total = 0;
+		byte[] buffer = null;
+		while (current < streams.size()) {
+			InputStream stream = streams.get(current);
+			if (stream instanceof ContentInputStream) {
+				total += ((ContentInputStream) stream).transferTo(out);
+			} else if (stream instanceof CompositeInputStream) {
+				total += ((CompositeInputStream) stream).transferTo(out);
+			} else {
+				if (buffer == null) {
+					buffer = new byte[BUFFER_SIZE];
+				} else {
+					// reuse the existing one
+				}
+				int read;
+				while ((read = stream.read(buffer, 0, buffer.length)) != -1) {
+					out.write(buffer, 0, read);
+					total += read;
+				}
+			}
+			next();
+		}
+		return total;
+	}
+
+	private void next() throws IOException {
+		streams.get(current).close();
+		current++;
+	}
+
+	@Override
+	public void close() throws IOException {
+		while (current < streams.size()) {
+			next();
+		}
+	}
+}
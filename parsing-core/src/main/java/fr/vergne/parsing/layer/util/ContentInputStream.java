@@ -1,6 +1,8 @@
 package fr.vergne.parsing.layer.util;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 
 public class ContentInputStream extends ByteArrayInputStream {
@@ -11,4 +13,20 @@ public class ContentInputStream extends ByteArrayInputStream {
 		super(content.getBytes(ENCODING));
 	}
 
+	/**
+	 * This method writes all the remaining bytes of this
+	 * {@link ContentInputStream} in the given {@link OutputStream} at once.
+	 * 
+	 * @param out
+	 *            the {@link OutputStream} to write in
+	 * @return the number of bytes transferred
+	 * @throws IOException
+	 *             if an I/O error occurs when writing
+	 */
+	public synchronized long transferTo(OutputStream out) throws IOException {
+		int length = count - pos;
+		out.write(buf, pos, length);
+		pos = count;
+		return length;
+	}
 }
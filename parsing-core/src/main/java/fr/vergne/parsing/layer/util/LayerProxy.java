@@ -1,38 +1,68 @@
 package fr.vergne.parsing.layer.util;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
 import java.util.HashSet;
 
+import fr.vergne.parsing.layer.ComposableLayer;
+import fr.vergne.parsing.layer.ContentChange;
+import fr.vergne.parsing.layer.Copyable;
 import fr.vergne.parsing.layer.Layer;
+import fr.vergne.parsing.layer.standard.AbstractLayer;
+import fr.vergne.parsing.layer.standard.Loop;
 
-public class LayerProxy<SubLayer extends Layer> implements Layer {
+public class LayerProxy<SubLayer extends Layer> implements ComposableLayer,
+		Copyable {
 
 	private SubLayer layer;
 	private Collection<ContentListener> listeners = new HashSet<ContentListener>();
-	private ContentListener listener = new ContentListener() {
+	private Collection<ChangeListener> changeListeners = new HashSet<ChangeListener>();
+	private ChangeListener listener = new ChangeListener() {
 
 		@Override
-		public void contentSet(String newContent) {
-			for (ContentListener listener : listeners) {
-				listener.contentSet(newContent);
-			}
+		public void contentChanged(ContentChange change) {
+			fireContentChange(change.shift(LayerProxy.this, 0));
 		}
 	};
 
 	public LayerProxy(SubLayer layer) {
 		this.layer = layer;
-		this.layer.addContentListener(listener);
+		AbstractLayer.addChangeListener(this.layer, listener);
 	}
 
 	public void setLayer(SubLayer layer) {
 		if (layer == null) {
 			throw new NullPointerException("No layer provided");
 		} else {
-			this.layer.removeContentListener(listener);
+			int oldLength = getCurrentLength();
+			AbstractLayer.removeChangeListener(this.layer, listener);
 			this.layer = layer;
-			this.layer.addContentListener(listener);
-			listener.contentSet(this.layer.getContent());
+			AbstractLayer.addChangeListener(this.layer, listener);
+			fireContentChange(new ContentChange(this, 0, oldLength,
+					getCurrentLength()));
+		}
+	}
+
+	private int getCurrentLength() {
+		try {
+			return AbstractLayer.getContentLength(layer);
+		} catch (NoContentException e) {
+			return 0;
+		}
+	}
+
+	private void fireContentChange(ContentChange change) {
+		for (ChangeListener listener : changeListeners) {
+			listener.contentChanged(change);
+		}
+		if (listeners.isEmpty()) {
+			// no need to retrieve the content
+		} else {
+			String newContent = layer.getContent();
+			for (ContentListener listener : listeners) {
+				listener.contentSet(newContent);
+			}
 		}
 	}
 
@@ -40,6 +70,17 @@ public class LayerProxy<SubLayer extends Layer> implements Layer {
 		return layer;
 	}
 
+	/**
+	 * The clone wraps a clone of the current {@link Layer}, which should
+	 * implement its own {@link #clone()} method (see
+	 * {@link Loop#createGeneratorFromTemplate(Layer)}).
+	 */
+	@Override
+	public Object clone() {
+		return new LayerProxy<SubLayer>(Loop.createGeneratorFromTemplate(layer)
+				.generates());
+	}
+
 	@Override
 	public String getRegex() {
 		return layer.getRegex();
@@ -50,6 +91,11 @@ public class LayerProxy<SubLayer extends Layer> implements Layer {
 		layer.setContent(content);
 	}
 
+	@Override
+	public int match(CharSequence content, int offset) {
+		return AbstractLayer.match(layer, content, offset);
+	}
+
 	@Override
 	public String getContent() {
 		return layer.getContent();
@@ -60,6 +106,16 @@ public class LayerProxy<SubLayer extends Layer> implements Layer {
 		return layer.getInputStream();
 	}
 
+	@Override
+	public void appendTo(Appendable appendable) throws IOException {
+		AbstractLayer.appendTo(layer, appendable);
+	}
+
+	@Override
+	public int getContentLength() {
+		return AbstractLayer.getContentLength(layer);
+	}
+
 	@Override
 	public void addContentListener(ContentListener listener) {
 		listeners.add(listener);
@@ -70,4 +126,14 @@ public class LayerProxy<SubLayer extends Layer> implements Layer {
 		listeners.remove(listener);
 	}
 
+	@Override
+	public void addChangeListener(ChangeListener listener) {
+		changeListeners.add(listener);
+	}
+
+	@Override
+	public void removeChangeListener(ChangeListener listener) {
+		changeListeners.remove(listener);
+	}
+
 }
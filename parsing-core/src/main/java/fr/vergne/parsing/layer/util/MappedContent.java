@@ -0,0 +1,461 @@
+package fr.vergne.parsing.layer.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+import fr.vergne.parsing.layer.ComposableLayer;
+import fr.vergne.parsing.layer.Layer;
+import fr.vergne.parsing.layer.standard.Loop;
+
+/**
+ * A {@link MappedContent} is a {@link CharSequence} reading its characters
+ * directly from a memory-mapped file, so a big file can be matched by the
+ * {@link Layer}s (see {@link ComposableLayer#match(CharSequence, int)} and
+ * {@link Loop#parse(CharSequence, Loop.Consumer)}) without decoding it into a
+ * {@link String} first. Only the pages actually read are loaded by the
+ * system, so the memory used does not depend on the size of the file.<br/>
+ * <br/>
+ * With an ASCII or ISO-8859-1 file, as well as with an UTF-8 file containing
+ * only ASCII characters, each byte is a character, so the characters are read
+ * directly from the mapped bytes. Otherwise, the file is split into blocks of
+ * bytes, and the first character of each block is indexed when the file is
+ * mapped. Thus, mapping an UTF-8 file reads it once, but the characters are
+ * counted from the bytes starting them rather than decoded, except in the
+ * blocks which are not valid UTF-8. The block of a character is decoded when
+ * it is requested, and the last {@value #CACHED_BLOCKS} blocks decoded are
+ * kept, so reading the characters in order decodes each block once, and
+ * going back and forth around the limit of a block does not decode it
+ * again.<br/>
+ * <br/>
+ * Each thread decodes its own blocks, so a {@link MappedContent} and the
+ * ones returned by {@link #subSequence(int, int)} can be read by different
+ * threads without waiting for each other.<br/>
+ * <br/>
+ * Like any {@link CharSequence}, a {@link MappedContent} cannot have more than
+ * {@link Integer#MAX_VALUE} characters. Bigger files should be parsed through
+ * {@link Loop#parse(java.io.Reader, Loop.Consumer)}.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+public final class MappedContent implements CharSequence {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int SEGMENT_BITS = 30;
+	private static final int BLOCK_SIZE = 1 << 12;
+	private static final int CACHED_BLOCKS = 8;
+
+	private final Source source;
+	private final int start;
+	private final int length;
+
+	private MappedContent(Source source, int start, int length) {
+		this.source = source;
+		this.start = start;
+		this.length = length;
+	}
+
+	/**
+	 * Same as {@link #map(File, Charset)} with an UTF-8 file.
+	 */
+	public static MappedContent map(File file) throws IOException {
+		return map(file, UTF_8);
+	}
+
+	/**
+	 *
+	 * @param file
+	 *            the file to map
+	 * @param charset
+	 *            the encoding of the file, which should be UTF-8, US-ASCII
+	 *            or ISO-8859-1
+	 * @return the content of the file
+	 * @throws IOException
+	 *             if the file cannot be mapped
+	 * @throws IllegalArgumentException
+	 *             if the encoding is not supported or if the file has more
+	 *             than {@link Integer#MAX_VALUE} characters
+	 */
+	public static MappedContent map(File file, Charset charset)
+			throws IOException {
+		if (!charset.equals(UTF_8) && !charset.equals(ASCII)
+				&& !charset.equals(LATIN_1)) {
+			throw new IllegalArgumentException("Unsupported encoding: "
+					+ charset);
+		} else {
+			RandomAccessFile access = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = access.getChannel();
+				long size = channel.size();
+				int count = (int) ((size >>> SEGMENT_BITS) + 1);
+				MappedByteBuffer[] segments = new MappedByteBuffer[count];
+				for (int i = 0; i < count; i++) {
+					long position = (long) i << SEGMENT_BITS;
+					segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+							position, Math.min(size - position,
+									1L << SEGMENT_BITS));
+				}
+				Source source = new Source(segments, size, charset);
+				return new MappedContent(source, 0, source.length);
+			} finally {
+				access.close();
+			}
+		}
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (index < 0 || index >= length) {
+			throw new StringIndexOutOfBoundsException(index);
+		} else {
+			return charAtSource(start + index);
+		}
+	}
+
+	private char charAtSource(int index) {
+		if (source.isByteCharacter) {
+			return (char) (source.get(index) & 0xFF);
+		} else {
+			return source.cursors.get().charAt(index);
+		}
+	}
+
+	/**
+	 * The {@link MappedContent} returned shares the same mapping, so no
+	 * character is copied.
+	 */
+	@Override
+	public MappedContent subSequence(int start, int end) {
+		if (start < 0 || end > length || start > end) {
+			throw new StringIndexOutOfBoundsException("Invalid range ["
+					+ start + ";" + end + "] for a content of " + length
+					+ " characters");
+		} else {
+			return new MappedContent(source, this.start + start, end - start);
+		}
+	}
+
+	/**
+	 * @return a {@link String} containing all the characters of this
+	 *         {@link MappedContent}, which should be used only on small
+	 *         pieces of content
+	 */
+	@Override
+	public String toString() {
+		if (source.isByteCharacter) {
+			byte[] bytes = new byte[length];
+			source.getBytes(start, bytes, length);
+			return new String(bytes, LATIN_1);
+		} else {
+			char[] chars = new char[length];
+			for (int i = 0; i < length; i++) {
+				chars[i] = charAtSource(start + i);
+			}
+			return new String(chars);
+		}
+	}
+
+	private static class Source {
+		private final MappedByteBuffer[] segments;
+		private final long size;
+		private final boolean isByteCharacter;
+		private final int length;
+		/**
+		 * The position of the first byte of each block, aligned on the start
+		 * of a character.
+		 */
+		private long[] blockBytes;
+		/**
+		 * The index of the first character of each block.
+		 */
+		private int[] blockChars;
+		private int blocksCount;
+		private final ThreadLocal<Cursor> cursors = new ThreadLocal<Cursor>() {
+
+			@Override
+			protected Cursor initialValue() {
+				return new Cursor(Source.this);
+			}
+		};
+
+		public Source(MappedByteBuffer[] segments, long size, Charset charset) {
+			this.segments = segments;
+			this.size = size;
+			long chars = charset.equals(UTF_8) ? indexBlocks() : -1;
+			if (chars >= 0) {
+				this.isByteCharacter = false;
+				this.length = (int) chars;
+			} else if (size > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException(
+						"Too many characters to map: " + size);
+			} else {
+				this.isByteCharacter = true;
+				this.length = (int) size;
+				this.blockBytes = null;
+				this.blockChars = null;
+			}
+		}
+
+		private byte get(long position) {
+			return segments[(int) (position >>> SEGMENT_BITS)]
+					.get((int) (position & ((1L << SEGMENT_BITS) - 1)));
+		}
+
+		private void getBytes(long position, byte[] bytes, int count) {
+			int done = 0;
+			while (done < count) {
+				long current = position + done;
+				ByteBuffer segment = segments[(int) (current >>> SEGMENT_BITS)]
+						.duplicate();
+				segment.position((int) (current & ((1L << SEGMENT_BITS) - 1)));
+				int read = Math.min(count - done, segment.remaining());
+				segment.get(bytes, done, read);
+				done += read;
+			}
+		}
+
+		/**
+		 * This method reads the whole file once to split it into blocks and
+		 * count their characters, which also tells whether the file contains
+		 * only ASCII characters.
+		 * 
+		 * @return the number of characters of the file, -1 if it contains
+		 *         only ASCII characters
+		 */
+		private long indexBlocks() {
+			blockBytes = new long[(int) (size / BLOCK_SIZE) + 2];
+			blockChars = new int[blockBytes.length];
+			byte[] bytes = new byte[BLOCK_SIZE];
+			Cursor cursor = null;
+			char[] decoded = null;
+			boolean isAscii = true;
+			long position = 0;
+			long chars = 0;
+			while (position < size) {
+				long end = Math.min(position + BLOCK_SIZE, size);
+				while (end < size && (get(end) & 0xC0) == 0x80) {
+					// do not cut a character
+					end--;
+				}
+				if (end == position) {
+					// invalid sequence of continuation bytes, cut anyway
+					end = Math.min(position + BLOCK_SIZE, size);
+				} else {
+					// block aligned on a character
+				}
+				if (blocksCount == blockBytes.length) {
+					blockBytes = Arrays.copyOf(blockBytes, blocksCount * 2);
+					blockChars = Arrays.copyOf(blockChars, blocksCount * 2);
+				} else {
+					// still some space
+				}
+				blockBytes[blocksCount] = position;
+				blockChars[blocksCount] = (int) chars;
+				blocksCount++;
+				int count = (int) (end - position);
+				getBytes(position, bytes, count);
+				int blockLength = countChars(bytes, count);
+				if (blockLength < 0) {
+					// not valid UTF-8, count as the decoder replaces
+					if (cursor == null) {
+						cursor = new Cursor(this);
+						decoded = new char[BLOCK_SIZE];
+					} else {
+						// reuse the existing ones
+					}
+					blockLength = cursor.decode(bytes, count, decoded);
+					isAscii = false;
+				} else {
+					isAscii = isAscii && blockLength == count;
+				}
+				chars += blockLength;
+				if (chars > Integer.MAX_VALUE && !isAscii) {
+					throw new IllegalArgumentException(
+							"Too many characters to map: more than " + chars);
+				} else {
+					position = end;
+				}
+			}
+			if (blocksCount == blockBytes.length) {
+				blockBytes = Arrays.copyOf(blockBytes, blocksCount + 1);
+				blockChars = Arrays.copyOf(blockChars, blocksCount + 1);
+			} else {
+				// still some space
+			}
+			blockBytes[blocksCount] = size;
+			blockChars[blocksCount] = (int) chars;
+			return isAscii ? -1 : chars;
+		}
+
+		/**
+		 * 
+		 * @return the number of characters of valid UTF-8 bytes, -1 if they
+		 *         are not valid
+		 */
+		private static int countChars(byte[] bytes, int count) {
+			int chars = 0;
+			int i = 0;
+			while (i < count) {
+				int lead = bytes[i] & 0xFF;
+				int size;
+				int min = 0x80;
+				int max = 0xBF;
+				if (lead < 0x80) {
+					size = 1;
+				} else if (lead >= 0xC2 && lead <= 0xDF) {
+					size = 2;
+				} else if (lead >= 0xE0 && lead <= 0xEF) {
+					size = 3;
+					min = lead == 0xE0 ? 0xA0 : min;
+					max = lead == 0xED ? 0x9F : max;
+				} else if (lead >= 0xF0 && lead <= 0xF4) {
+					size = 4;
+					min = lead == 0xF0 ? 0x90 : min;
+					max = lead == 0xF4 ? 0x8F : max;
+				} else {
+					return -1;
+				}
+				if (size == 1) {
+					chars++;
+				} else if (i + size > count) {
+					return -1;
+				} else {
+					int second = bytes[i + 1] & 0xFF;
+					if (second < min || second > max) {
+						return -1;
+					} else {
+						for (int j = 2; j < size; j++) {
+							if ((bytes[i + j] & 0xC0) != 0x80) {
+								return -1;
+							} else {
+								// valid continuation byte
+							}
+						}
+					}
+					// a supplementary character is a surrogate pair
+					chars += size == 4 ? 2 : 1;
+				}
+				i += size;
+			}
+			return chars;
+		}
+
+		private int findBlock(int index) {
+			int block = Arrays.binarySearch(blockChars, 0, blocksCount, index);
+			if (block < 0) {
+				return -block - 2;
+			} else {
+				/*
+				 * The block starts with this character, but the previous ones
+				 * may be empty if they contain only invalid bytes.
+				 */
+				while (block + 1 < blocksCount
+						&& blockChars[block + 1] == index) {
+					block++;
+				}
+				return block;
+			}
+		}
+	}
+
+	/**
+	 * A {@link Cursor} decodes the blocks of a {@link Source} for a single
+	 * thread, reusing its decoder and its buffers.
+	 */
+	private static class Cursor {
+		private final Source source;
+		private final CharsetDecoder decoder = UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private byte[] bytes;
+		/**
+		 * The blocks decoded, from the most recently used to the least
+		 * recently used.
+		 */
+		private final int[] blocks = new int[CACHED_BLOCKS];
+		private final char[][] chars = new char[CACHED_BLOCKS][];
+
+		public Cursor(Source source) {
+			this.source = source;
+			Arrays.fill(blocks, -1);
+		}
+
+		public char charAt(int index) {
+			int[] blockChars = source.blockChars;
+			int block = blocks[0];
+			if (block < 0 || index < blockChars[block]
+					|| index >= blockChars[block + 1]) {
+				block = source.findBlock(index);
+				int slot = 1;
+				while (slot < CACHED_BLOCKS && blocks[slot] != block) {
+					slot++;
+				}
+				if (slot == CACHED_BLOCKS) {
+					// replace the least recently used
+					slot--;
+					if (chars[slot] == null) {
+						chars[slot] = new char[BLOCK_SIZE];
+					} else {
+						// reuse its buffer
+					}
+					if (bytes == null) {
+						bytes = new byte[BLOCK_SIZE];
+					} else {
+						// reuse the existing one
+					}
+					long position = source.blockBytes[block];
+					int count = (int) (source.blockBytes[block + 1] - position);
+					source.getBytes(position, bytes, count);
+					decode(bytes, count, chars[slot]);
+					blocks[slot] = block;
+				} else {
+					// already decoded
+				}
+				char[] decoded = chars[slot];
+				for (int i = slot; i > 0; i--) {
+					blocks[i] = blocks[i - 1];
+					chars[i] = chars[i - 1];
+				}
+				blocks[0] = block;
+				chars[0] = decoded;
+			} else {
+				// reuse the last decoded block
+			}
+			return chars[0][index - blockChars[block]];
+		}
+
+		/**
+		 * 
+		 * @return the number of characters decoded
+		 */
+		private int decode(byte[] bytes, int count, char[] target) {
+			CharBuffer output = CharBuffer.wrap(target);
+			decoder.reset();
+			CoderResult result = decoder.decode(ByteBuffer.wrap(bytes, 0,
+					count), output, true);
+			if (result.isError() || result.isOverflow()) {
+				throw new IllegalStateException("Cannot decode " + result);
+			} else {
+				decoder.flush(output);
+			}
+			return output.position();
+		}
+	}
+}
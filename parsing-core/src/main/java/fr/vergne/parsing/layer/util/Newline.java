@@ -9,6 +9,10 @@ public class Newline extends Formula {
 		setContent("\n");
 	}
 
+	private Newline(Newline newline) {
+		super(newline);
+	}
+
 	@Override
 	public String toString() {
 		return getClass().getSimpleName();
@@ -16,13 +20,6 @@ public class Newline extends Formula {
 
 	@Override
 	public Object clone() {
-		Newline clone = new Newline();
-		String content = getContent();
-		if (content != null) {
-			clone.setContent(content);
-		} else {
-			// no content to set
-		}
-		return clone;
+		return new Newline(this);
 	}
 }
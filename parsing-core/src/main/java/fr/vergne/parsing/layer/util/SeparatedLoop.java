@@ -1,11 +1,14 @@
 package fr.vergne.parsing.layer.util;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
 
+import fr.vergne.parsing.layer.ContentChange;
+import fr.vergne.parsing.layer.Copyable;
 import fr.vergne.parsing.layer.Layer;
 import fr.vergne.parsing.layer.exception.ParsingException;
 import fr.vergne.parsing.layer.standard.AbstractLayer;
@@ -15,6 +18,7 @@ import fr.vergne.parsing.layer.standard.Loop.Generator;
 import fr.vergne.parsing.layer.standard.Option;
 import fr.vergne.parsing.layer.standard.Quantifier;
 import fr.vergne.parsing.layer.standard.Suite;
+import fr.vergne.parsing.regex.RegexNode;
 
 /**
  * A {@link SeparatedLoop} provides, rather than a sequence of adjacent
@@ -30,7 +34,7 @@ import fr.vergne.parsing.layer.standard.Suite;
  */
 // FIXME ensure that it is the same separator everywhere
 public class SeparatedLoop<Element extends Layer, Separator extends Layer>
-		extends AbstractLayer implements Iterable<Element> {
+		extends AbstractLayer implements Iterable<Element>, Copyable {
 
 	private final int min;
 	private final int max;
@@ -40,11 +44,12 @@ public class SeparatedLoop<Element extends Layer, Separator extends Layer>
 	private final Separator separatorDefault;
 	private final Generator<Element> elementGenerator;
 	private final Generator<Separator> separatorGenerator;
-	private final ContentListener deepListener = new ContentListener() {
+	private final ChangeListener deepListener = new ChangeListener() {
 
 		@Override
-		public void contentSet(String newContent) {
-			fireContentUpdate();
+		public void contentChanged(ContentChange change) {
+			fireContentChange(change.getOffset(), change.getOldLength(),
+					change.getNewLength());
 		}
 	};
 
@@ -72,7 +77,40 @@ public class SeparatedLoop<Element extends Layer, Separator extends Layer>
 		this.separatorGenerator = separatorGenerator;
 		this.separatorDefault = separatorGenerator.generates();
 
-		this.overall.addContentListener(deepListener);
+		addChangeListener(this.overall, deepListener);
+	}
+
+	/**
+	 * Create a {@link SeparatedLoop} from clones of the {@link Layer}s of
+	 * another one, so the content is not parsed again.
+	 * 
+	 * @param original
+	 *            the {@link SeparatedLoop} to clone
+	 * @throws IllegalArgumentException
+	 *             if its {@link Layer}s cannot be cloned (see
+	 *             {@link Loop#createGeneratorFromTemplate(Layer)})
+	 */
+	@SuppressWarnings("unchecked")
+	private SeparatedLoop(SeparatedLoop<Element, Separator> original) {
+		this.min = original.min;
+		this.max = original.max;
+		this.overall = Loop.createGeneratorFromTemplate(original.overall)
+				.generates();
+		Suite suite = overall instanceof Option ? ((Option<Suite>) overall)
+				.getOption() : (Suite) overall;
+		this.head = suite.get(0);
+		this.loop = suite.get(1);
+		this.elementGenerator = original.elementGenerator;
+		this.separatorGenerator = original.separatorGenerator;
+		this.separatorDefault = separatorGenerator.generates();
+		String separator = original.separatorDefault.getContent();
+		if (separator != null) {
+			separatorDefault.setContent(separator);
+		} else {
+			// no default separator yet
+		}
+
+		addChangeListener(this.overall, deepListener);
 	}
 
 	public SeparatedLoop(final Generator<Element> elementGenerator,
@@ -136,14 +174,37 @@ public class SeparatedLoop<Element extends Layer, Separator extends Layer>
 
 	@Override
 	protected String buildRegex() {
-		return overall.getRegex();
+		return buildRegexNode().toString();
+	}
+
+	@Override
+	protected RegexNode buildRegexNode() {
+		return toRegexNode(overall);
 	}
 
 	@Override
 	protected void setInternalContent(String content) {
-		overall.removeContentListener(deepListener);
+		setInternalContent(content, 0, content.length());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	protected void setInternalContent(String source, int start, int end) {
+		removeChangeListener(overall, deepListener);
 		try {
-			overall.setContent(content);
+			setSubContent(overall, source, start, end);
+			if (isLazy()) {
+				/*
+				 * The head and the loop are used directly, so they are filled
+				 * now, while the elements are filled when requested.
+				 */
+				Suite suite = overall instanceof Option ? ((Option<Suite>) overall)
+						.getOption() : (Suite) overall;
+				suite.get(0);
+				suite.get(1);
+			} else {
+				// all filled
+			}
 			if (size() >= 2) {
 				separatorDefault.setContent(getSeparator(0).getContent());
 			} else if (separatorDefault.getContent() != null) {
@@ -152,18 +213,38 @@ public class SeparatedLoop<Element extends Layer, Separator extends Layer>
 				System.err.println("Warning: no default separator set");
 			}
 		} catch (ParsingException e) {
-			throw new ParsingException(this, overall, content, e.getStart(),
-					content.length(), e);
+			throw new ParsingException(this, overall, source.substring(start,
+					end), e.getStart(), end - start, e);
 		} finally {
-			overall.addContentListener(deepListener);
+			addChangeListener(overall, deepListener);
 		}
 	}
 
+	@Override
+	protected boolean relocate(String source, int start) {
+		return relocate(overall, source, start);
+	}
+
+	@Override
+	protected int matchContent(CharSequence content, int offset) {
+		return match(overall, content, offset);
+	}
+
 	@Override
 	public InputStream getInputStream() {
 		return overall.getInputStream();
 	}
 
+	@Override
+	public void appendTo(Appendable appendable) throws IOException {
+		appendTo(overall, appendable);
+	}
+
+	@Override
+	public int getContentLength() {
+		return getContentLength(overall);
+	}
+
 	public Quantifier getQuantifier() {
 		return loop.getQuantifier();
 	}
@@ -248,7 +329,7 @@ public class SeparatedLoop<Element extends Layer, Separator extends Layer>
 	}
 
 	public void addAll(int index, Collection<Element> elements) {
-		overall.removeContentListener(deepListener);
+		beginChanges();
 		try {
 			if (elements.isEmpty()) {
 				// nothing to add
@@ -278,9 +359,8 @@ public class SeparatedLoop<Element extends Layer, Separator extends Layer>
 				loop.addAll(index, added);
 			}
 		} finally {
-			overall.addContentListener(deepListener);
+			endChanges();
 		}
-		fireContentUpdate();
 	}
 
 	private Separator createFilledSeparator() {
@@ -295,7 +375,7 @@ public class SeparatedLoop<Element extends Layer, Separator extends Layer>
 
 	public Element remove(int index) {
 		if (index == 0) {
-			overall.removeContentListener(deepListener);
+			beginChanges();
 			Element removed = head.getLayer();
 			try {
 				if (size() == 1) {
@@ -304,9 +384,8 @@ public class SeparatedLoop<Element extends Layer, Separator extends Layer>
 					head.setLayer(loop.remove(0).<Element> get(1));
 				}
 			} finally {
-				overall.addContentListener(deepListener);
+				endChanges();
 			}
-			fireContentUpdate();
 			return removed;
 		} else {
 			return loop.remove(index - 1).get(1);
@@ -354,16 +433,28 @@ public class SeparatedLoop<Element extends Layer, Separator extends Layer>
 		return max;
 	}
 
+	/**
+	 * The clone is built from clones of the {@link Layer}s of this
+	 * {@link SeparatedLoop}, so its content is not parsed again. If they do
+	 * not implement their own {@link #clone()} method, the content is parsed
+	 * instead.
+	 */
 	@Override
 	public Object clone() {
-		SeparatedLoop<Element, Separator> loop = new SeparatedLoop<Element, Separator>(
-				getQuantifier(), elementGenerator, separatorGenerator, min, max);
-		String content = getContent();
-		if (content != null) {
-			loop.setContent(content);
-		} else {
-			// keep it not filled
+		SeparatedLoop<Element, Separator> loop;
+		try {
+			loop = new SeparatedLoop<Element, Separator>(this);
+		} catch (IllegalArgumentException e) {
+			loop = new SeparatedLoop<Element, Separator>(getQuantifier(),
+					elementGenerator, separatorGenerator, min, max);
+			String content = getContent();
+			if (content != null) {
+				loop.setContent(content);
+			} else {
+				// keep it not filled
+			}
 		}
+		shareRegex(loop);
 		return loop;
 	}
 }
@@ -0,0 +1,173 @@
+package fr.vergne.parsing.layer.util;
+
+import java.util.Arrays;
+
+/**
+ * A {@link TextPosition} translates the offsets of a content into lines and
+ * columns, both starting at 1. A line ends with "\n", "\r", "\r\n" or "\n\r",
+ * the two-characters terminators counting as a single one. The offsets of the
+ * line terminators are indexed in a single pass over the content, the first
+ * time a position is requested, so each request then costs a binary search
+ * rather than a scan of the content. Consequently, the same
+ * {@link TextPosition} should be reused for all the positions of a given
+ * content, and the content should not change in between.<br/>
+ * <br/>
+ * An offset which falls between the two characters of a "\r\n" or "\n\r"
+ * terminator is considered to be at the start of the next line.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+public final class TextPosition {
+
+	private final CharSequence content;
+	private int[] terminators = null;
+	private int terminatorsCount = 0;
+
+	/**
+	 *
+	 * @param content
+	 *            the content to index
+	 */
+	public TextPosition(CharSequence content) {
+		if (content == null) {
+			throw new NullPointerException("No content provided");
+		} else {
+			this.content = content;
+		}
+	}
+
+	/**
+	 *
+	 * @return the content indexed by this {@link TextPosition}
+	 */
+	public CharSequence getContent() {
+		return content;
+	}
+
+	/**
+	 *
+	 * @param offset
+	 *            a position in the content, between 0 and its length
+	 * @return the line of this position, starting from 1
+	 */
+	public int getLine(int offset) {
+		checkOffset(offset);
+		return countTerminatorsBefore(offset) + 1;
+	}
+
+	/**
+	 *
+	 * @param offset
+	 *            a position in the content, between 0 and its length
+	 * @return the column of this position in its line, starting from 1
+	 */
+	public int getColumn(int offset) {
+		checkOffset(offset);
+		int count = countTerminatorsBefore(offset);
+		if (count == 0) {
+			return offset + 1;
+		} else {
+			int lineStart = getTerminatorEnd(terminators[count - 1]);
+			return offset - Math.min(lineStart, offset) + 1;
+		}
+	}
+
+	/**
+	 *
+	 * @return the number of lines of the content, which is at least 1
+	 */
+	public int getLinesCount() {
+		index();
+		return terminatorsCount + 1;
+	}
+
+	/**
+	 *
+	 * @param line
+	 *            a line of the content, starting from 1
+	 * @return the offset of the first character of this line
+	 */
+	public int getLineStart(int line) {
+		if (line < 1 || line > getLinesCount()) {
+			throw new IndexOutOfBoundsException("Line " + line
+					+ " not in [1;" + getLinesCount() + "]");
+		} else if (line == 1) {
+			return 0;
+		} else {
+			return getTerminatorEnd(terminators[line - 2]);
+		}
+	}
+
+	/**
+	 *
+	 * @param offset
+	 *            a position in the content, between 0 and its length
+	 * @return the line and column of this position, formatted as
+	 *         "(line,column)"
+	 */
+	public String format(int offset) {
+		return "(" + getLine(offset) + "," + getColumn(offset) + ")";
+	}
+
+	private void checkOffset(int offset) {
+		if (offset < 0 || offset > content.length()) {
+			throw new StringIndexOutOfBoundsException("Offset " + offset
+					+ " not in [0;" + content.length() + "]");
+		} else {
+			// valid offset
+		}
+	}
+
+	private int countTerminatorsBefore(int offset) {
+		index();
+		int index = Arrays.binarySearch(terminators, 0, terminatorsCount,
+				offset);
+		return index >= 0 ? index : -index - 1;
+	}
+
+	private int getTerminatorEnd(int start) {
+		int next = start + 1;
+		if (next < content.length() && isPair(content.charAt(start),
+				content.charAt(next))) {
+			return next + 1;
+		} else {
+			return next;
+		}
+	}
+
+	private static boolean isPair(char first, char second) {
+		return first == '\r' && second == '\n' || first == '\n'
+				&& second == '\r';
+	}
+
+	private synchronized void index() {
+		if (terminators == null) {
+			int[] starts = new int[16];
+			int count = 0;
+			int length = content.length();
+			for (int i = 0; i < length; i++) {
+				char c = content.charAt(i);
+				if (c == '\n' || c == '\r') {
+					if (count == starts.length) {
+						starts = Arrays.copyOf(starts, count * 2);
+					} else {
+						// still some space
+					}
+					starts[count++] = i;
+					if (i + 1 < length && isPair(c, content.charAt(i + 1))) {
+						i++;
+					} else {
+						// single character terminator
+					}
+				} else {
+					// not a terminator
+				}
+			}
+			terminatorsCount = count;
+			terminators = starts;
+		} else {
+			// already indexed
+		}
+	}
+}
@@ -0,0 +1,1194 @@
+package fr.vergne.parsing.regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * An {@link Automaton} matches a regex like a {@link Pattern}, but in a time
+ * linear in the size of the content. {@link Pattern} backtracks, so a regex
+ * like "(?:a|aa)*b" can take an exponential time to reject a content made of
+ * many "a". An {@link Automaton} also explores the alternatives in the same
+ * order than {@link Pattern}, so it finds the same matches, but it remembers
+ * which states (position in the regex, position in the content) it has
+ * already tried, so each of them is tried at most once.<br/>
+ * <br/>
+ * Only the constructs of regular expressions are supported: characters,
+ * character classes (without unions nor intersections), the predefined
+ * classes "\d", "\s" and "\w" (and their negations), ".", quoting with
+ * "\Q...\E", capturing, non-capturing and atomic groups, alternations,
+ * greedy, lazy and possessive quantifiers, and the boundaries "^", "$", "\A",
+ * "\z" and "\Z". Lookarounds, back references, flags and word boundaries are
+ * not supported, in which case {@link #compile(String)} fails and
+ * {@link Pattern} should be used instead. It also fails on the constructs for
+ * which {@link Pattern} gives results depending on how it backtracks: the
+ * repetitions of a content which can be empty, like "(a*)+", because
+ * {@link Pattern} stops repeating after an empty iteration, and the capturing
+ * groups inside atomic groups and possessive quantifiers, because
+ * {@link Pattern} keeps the groups captured by their failed attempts. For the
+ * other regexes, the matches and the captured groups are the same than the
+ * ones of {@link Pattern}. Like with {@link Pattern}, each iteration of a
+ * possessive quantifier is atomic. The matching time of atomic groups and
+ * possessive quantifiers is linear in the size of the content they consume
+ * each time they are tried.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+public final class Automaton implements Regex {
+
+	private static final int CHARACTER = 0;
+	private static final int SPLIT = 1;
+	private static final int JUMP = 2;
+	private static final int SAVE = 3;
+	private static final int ASSERT = 4;
+	private static final int ATOMIC = 5;
+	private static final int ATOMIC_END = 6;
+	private static final int MATCH = 7;
+
+	private static final int BEGIN_INPUT = 0;
+	private static final int END_INPUT = 1;
+	private static final int END_LINE = 2;
+
+	/**
+	 * The maximal number of instructions of an {@link Automaton}, which is
+	 * mainly reached by big bounded repetitions like "a{1,100000}".
+	 */
+	private static final int INSTRUCTIONS_LIMIT = 100000;
+
+	private final String regex;
+	private final int groupCount;
+	private final int[] operations;
+	private final int[] arguments1;
+	private final int[] arguments2;
+	private final CharClass[] classes;
+	/**
+	 * The index of each instruction among the ones reachable from several
+	 * others (or which start a search), -1 for the other ones. The states of
+	 * the latter do not need to be remembered, because they can be reached
+	 * only from a single state.
+	 */
+	private final int[] joins;
+	private final int joinCount;
+
+	private Automaton(String regex, int groupCount, Program program) {
+		this.regex = regex;
+		this.groupCount = groupCount;
+		this.operations = program.operations.toArray();
+		this.arguments1 = program.arguments1.toArray();
+		this.arguments2 = program.arguments2.toArray();
+		this.classes = program.classes.toArray(new CharClass[program.classes
+				.size()]);
+
+		int[] predecessors = new int[operations.length];
+		predecessors[0]++;
+		for (int pc = 0; pc < operations.length; pc++) {
+			switch (operations[pc]) {
+			case CHARACTER:
+			case SAVE:
+			case ASSERT:
+				predecessors[pc + 1]++;
+				break;
+			case SPLIT:
+				predecessors[arguments1[pc]]++;
+				predecessors[arguments2[pc]]++;
+				break;
+			case JUMP:
+				predecessors[arguments1[pc]]++;
+				break;
+			case ATOMIC:
+				predecessors[pc + 1]++;
+				predecessors[arguments2[pc]]++;
+				break;
+			default:
+				// no successor
+			}
+		}
+		this.joins = new int[operations.length];
+		int count = 0;
+		for (int pc = 0; pc < operations.length; pc++) {
+			joins[pc] = predecessors[pc] > 1 ? count++ : -1;
+		}
+		this.joinCount = count;
+	}
+
+	/**
+	 *
+	 * @param regex
+	 *            the regex to match, with the syntax of {@link Pattern}
+	 * @return the {@link Automaton} matching this regex
+	 * @throws IllegalArgumentException
+	 *             if the regex is invalid or uses a construct which is not
+	 *             supported
+	 */
+	public static Automaton compile(String regex) {
+		Parser parser = new Parser(removeQuoting(regex));
+		Node node = parser.parse();
+		Program program = new Program();
+		node.compile(program);
+		program.emit(MATCH, 0, 0, null);
+		return new Automaton(regex, parser.groups, program);
+	}
+
+	/**
+	 *
+	 * @return the regex matched by this {@link Automaton}
+	 */
+	@Override
+	public String getRegex() {
+		return regex;
+	}
+
+	/**
+	 *
+	 * @return the number of capturing groups of the regex
+	 */
+	@Override
+	public int groupCount() {
+		return groupCount;
+	}
+
+	/**
+	 * This method is the equivalent of
+	 * {@link java.util.regex.Matcher#matches()}.
+	 *
+	 * @param content
+	 *            the content to match
+	 * @return <code>true</code> if the whole content matches the regex,
+	 *         <code>false</code> otherwise
+	 */
+	@Override
+	public boolean matches(CharSequence content) {
+		return match(content, 0, true) != null;
+	}
+
+	/**
+	 * This method is the equivalent of
+	 * {@link java.util.regex.Matcher#lookingAt()} on a region starting at the
+	 * given offset, with transparent and non-anchoring bounds: the boundaries
+	 * like "^" and "$" only match at the boundaries of the whole content.
+	 *
+	 * @param content
+	 *            the content to match
+	 * @param offset
+	 *            the position where the match should start
+	 * @return the position where the match ends, -1 if there is no match
+	 */
+	@Override
+	public int lookingAt(CharSequence content, int offset) {
+		int[] groups = match(content, offset, false);
+		return groups == null ? -1 : groups[1];
+	}
+
+	/**
+	 * This method matches the regex from a given offset and provides the
+	 * positions of the capturing groups, as they would be given by
+	 * {@link java.util.regex.Matcher#start(int)} and
+	 * {@link java.util.regex.Matcher#end(int)}.
+	 *
+	 * @param content
+	 *            the content to match
+	 * @param offset
+	 *            the position where the match should start
+	 * @param isToEnd
+	 *            <code>true</code> if the match should end at the end of the
+	 *            content, <code>false</code> if it can end anywhere
+	 * @return an array containing the start and end of each group, the
+	 *         complete match being the group 0, or <code>null</code> if there
+	 *         is no match. A group which does not participate to the match
+	 *         has -1 as start and end.
+	 */
+	@Override
+	public int[] match(CharSequence content, int offset, boolean isToEnd) {
+		if (offset < 0 || offset > content.length()) {
+			throw new IndexOutOfBoundsException("Illegal offset: " + offset);
+		} else {
+			int[] groups = new int[2 * (groupCount + 1)];
+			Arrays.fill(groups, -1);
+			int end = run(content, offset, 0, isToEnd, groups);
+			if (end < 0) {
+				return null;
+			} else {
+				groups[0] = offset;
+				groups[1] = end;
+				return groups;
+			}
+		}
+	}
+
+	/**
+	 * This method explores the states of the {@link Automaton} in the order
+	 * of preference of the regex, until it finds a match. Atomic groups are
+	 * explored with a separate call, which stops at the first match of the
+	 * group.
+	 */
+	private int run(CharSequence content, int offset, int entry,
+			boolean isToEnd, int[] groups) {
+		int length = content.length();
+		Visits visits = new Visits(offset, joinCount);
+		IntStack stack = new IntStack();
+		stack.push(entry, offset, -1);
+		while (!stack.isEmpty()) {
+			int pc = stack.pop();
+			int position = stack.pop();
+			int restore = stack.pop();
+			if (restore >= 0) {
+				groups[restore] = position;
+				continue;
+			} else {
+				// explore the state
+			}
+			failure: while (joins[pc] < 0 || visits.add(joins[pc], position)) {
+				switch (operations[pc]) {
+				case CHARACTER:
+					if (position < length) {
+						int character = Character.codePointAt(content,
+								position);
+						if (classes[pc].contains(character)) {
+							position += Character.charCount(character);
+							pc++;
+							continue;
+						} else {
+							break failure;
+						}
+					} else {
+						break failure;
+					}
+				case SPLIT:
+					stack.push(arguments2[pc], position, -1);
+					pc = arguments1[pc];
+					continue;
+				case JUMP:
+					pc = arguments1[pc];
+					continue;
+				case SAVE:
+					stack.push(-1, groups[arguments1[pc]], arguments1[pc]);
+					groups[arguments1[pc]] = position;
+					pc++;
+					continue;
+				case ASSERT:
+					if (isAtBoundary(arguments1[pc], content, position)) {
+						pc++;
+						continue;
+					} else {
+						break failure;
+					}
+				case ATOMIC:
+					int[] atomicGroups = groups.clone();
+					int end = run(content, position, pc + 1, false,
+							atomicGroups);
+					if (end < 0) {
+						break failure;
+					} else {
+						for (int i = 0; i < groups.length; i++) {
+							if (atomicGroups[i] != groups[i]) {
+								stack.push(-1, groups[i], i);
+								groups[i] = atomicGroups[i];
+							} else {
+								// unchanged group
+							}
+						}
+						position = end;
+						pc = arguments2[pc];
+						continue;
+					}
+				case ATOMIC_END:
+					return position;
+				case MATCH:
+					if (!isToEnd || position == length) {
+						return position;
+					} else {
+						break failure;
+					}
+				default:
+					throw new IllegalStateException("Unknown operation: "
+							+ operations[pc]);
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isAtBoundary(int boundary, CharSequence content,
+			int position) {
+		int length = content.length();
+		switch (boundary) {
+		case BEGIN_INPUT:
+			return position == 0;
+		case END_INPUT:
+			return position == length;
+		case END_LINE:
+			// like Pattern: the end or before a final line terminator
+			if (position == length) {
+				return true;
+			} else if (position == length - 2) {
+				return content.charAt(position) == '\r'
+						&& content.charAt(position + 1) == '\n';
+			} else if (position == length - 1) {
+				char character = content.charAt(position);
+				if (character == '\n') {
+					return position == 0
+							|| content.charAt(position - 1) != '\r';
+				} else {
+					return character == '\r' || character == '\u0085'
+							|| character == '\u2028'
+							|| character == '\u2029';
+				}
+			} else {
+				return false;
+			}
+		default:
+			throw new IllegalStateException("Unknown boundary: " + boundary);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return regex;
+	}
+
+	/**
+	 * Like {@link Pattern}, the quoted parts "\Q...\E" are replaced by their
+	 * escaped characters before to parse the regex, so a quantifier following
+	 * a quoted part applies only to its last character.
+	 */
+	private static String removeQuoting(String regex) {
+		int start = regex.indexOf("\\Q");
+		if (start < 0) {
+			return regex;
+		} else {
+			StringBuilder builder = new StringBuilder(regex.length() * 2);
+			int index = 0;
+			while (start >= 0) {
+				int backslashes = 0;
+				while (start - backslashes - 1 >= index
+						&& regex.charAt(start - backslashes - 1) == '\\') {
+					backslashes++;
+				}
+				if (backslashes % 2 == 1) {
+					// escaped backslash followed by Q
+					builder.append(regex, index, start + 2);
+					index = start + 2;
+				} else {
+					builder.append(regex, index, start);
+					int end = regex.indexOf("\\E", start + 2);
+					String quoted = regex.substring(start + 2,
+							end < 0 ? regex.length() : end);
+					for (int i = 0; i < quoted.length(); i++) {
+						char character = quoted.charAt(i);
+						if (character < 128
+								&& Character.isLetterOrDigit(character)) {
+							builder.append(character);
+						} else {
+							builder.append('\\').append(character);
+						}
+					}
+					index = end < 0 ? regex.length() : end + 2;
+				}
+				start = regex.indexOf("\\Q", index);
+			}
+			builder.append(regex, index, regex.length());
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * A {@link CharClass} is a set of characters, stored as sorted and
+	 * disjoint ranges of code points.
+	 */
+	private static final class CharClass {
+		private static final CharClass DIGITS = new CharClass('0', '9');
+		private static final CharClass SPACES = new CharClass('\t', '\r',
+				' ', ' ');
+		private static final CharClass WORDS = new CharClass('0', '9', 'A',
+				'Z', '_', '_', 'a', 'z');
+		private static final CharClass DOT = new CharClass('\n', '\n', '\r',
+				'\r', '\u0085', '\u0085', '\u2028', '\u2029').complement();
+
+		private final int[] ranges;
+
+		public CharClass(int... ranges) {
+			this.ranges = ranges;
+		}
+
+		public boolean contains(int character) {
+			int low = 0;
+			int high = ranges.length / 2 - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (character < ranges[2 * middle]) {
+					high = middle - 1;
+				} else if (character > ranges[2 * middle + 1]) {
+					low = middle + 1;
+				} else {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public CharClass complement() {
+			IntStack complement = new IntStack();
+			int next = 0;
+			for (int i = 0; i < ranges.length; i += 2) {
+				if (ranges[i] > next) {
+					complement.push(next);
+					complement.push(ranges[i] - 1);
+				} else {
+					// no gap
+				}
+				next = ranges[i + 1] + 1;
+			}
+			if (next <= Character.MAX_CODE_POINT) {
+				complement.push(next);
+				complement.push(Character.MAX_CODE_POINT);
+			} else {
+				// no gap
+			}
+			return new CharClass(complement.toArray());
+		}
+
+		/**
+		 *
+		 * @param ranges
+		 *            ranges in any order, possibly overlapping
+		 * @return the {@link CharClass} containing all of them
+		 */
+		public static CharClass union(List<int[]> ranges) {
+			int[][] sorted = ranges.toArray(new int[ranges.size()][]);
+			Arrays.sort(sorted, new Comparator<int[]>() {
+				@Override
+				public int compare(int[] r1, int[] r2) {
+					return Integer.compare(r1[0], r2[0]);
+				}
+			});
+			IntStack merged = new IntStack();
+			for (int[] range : sorted) {
+				int size = merged.size();
+				if (size > 0 && range[0] <= merged.get(size - 1) + 1) {
+					merged.set(size - 1,
+							Math.max(merged.get(size - 1), range[1]));
+				} else {
+					merged.push(range[0]);
+					merged.push(range[1]);
+				}
+			}
+			return new CharClass(merged.toArray());
+		}
+
+		public void addTo(List<int[]> ranges) {
+			for (int i = 0; i < this.ranges.length; i += 2) {
+				ranges.add(new int[] { this.ranges[i], this.ranges[i + 1] });
+			}
+		}
+	}
+
+	/**
+	 * The {@link Visits} store the states already explored. They are stored
+	 * by blocks of 64 positions, allocated only when a position of the block
+	 * is reached, so matching a short prefix of a long content does not cost
+	 * more than the prefix.
+	 */
+	private static final class Visits {
+		private final int offset;
+		private final int joinCount;
+		private long[][] blocks = new long[1][];
+
+		public Visits(int offset, int joinCount) {
+			this.offset = offset;
+			this.joinCount = joinCount;
+		}
+
+		/**
+		 *
+		 * @return <code>true</code> if the state was not visited yet,
+		 *         <code>false</code> otherwise
+		 */
+		public boolean add(int join, int position) {
+			int relative = position - offset;
+			int block = relative >>> 6;
+			if (block >= blocks.length) {
+				blocks = Arrays.copyOf(blocks,
+						Math.max(block + 1, 2 * blocks.length));
+			} else {
+				// block index available
+			}
+			long[] bits = blocks[block];
+			if (bits == null) {
+				bits = new long[joinCount];
+				blocks[block] = bits;
+			} else {
+				// reuse the existing one
+			}
+			int index = (relative & 63) * joinCount + join;
+			long mask = 1L << (index & 63);
+			if ((bits[index >>> 6] & mask) == 0) {
+				bits[index >>> 6] |= mask;
+				return true;
+			} else {
+				return false;
+			}
+		}
+	}
+
+	private static final class IntStack {
+		private int[] values = new int[16];
+		private int size = 0;
+
+		public void push(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, 2 * size);
+			} else {
+				// enough space
+			}
+			values[size++] = value;
+		}
+
+		public void push(int value1, int value2, int value3) {
+			push(value3);
+			push(value2);
+			push(value1);
+		}
+
+		public int pop() {
+			return values[--size];
+		}
+
+		public int get(int index) {
+			return values[index];
+		}
+
+		public void set(int index, int value) {
+			values[index] = value;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public boolean isEmpty() {
+			return size == 0;
+		}
+
+		public int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	private static final class Program {
+		private final IntStack operations = new IntStack();
+		private final IntStack arguments1 = new IntStack();
+		private final IntStack arguments2 = new IntStack();
+		private final List<CharClass> classes = new ArrayList<CharClass>();
+
+		public int emit(int operation, int argument1, int argument2,
+				CharClass charClass) {
+			if (operations.size() >= INSTRUCTIONS_LIMIT) {
+				throw new IllegalArgumentException("Regex too big");
+			} else {
+				operations.push(operation);
+				arguments1.push(argument1);
+				arguments2.push(argument2);
+				classes.add(charClass);
+				return operations.size() - 1;
+			}
+		}
+
+		public int next() {
+			return operations.size();
+		}
+
+		public void setArgument1(int pc, int argument) {
+			arguments1.set(pc, argument);
+		}
+
+		public void setArgument2(int pc, int argument) {
+			arguments2.set(pc, argument);
+		}
+	}
+
+	private static abstract class Node {
+		public abstract void compile(Program program);
+
+		/**
+		 *
+		 * @return <code>true</code> if this {@link Node} may match an empty
+		 *         content
+		 */
+		public abstract boolean isNullable();
+	}
+
+	private static class CharacterNode extends Node {
+		private final CharClass charClass;
+
+		public CharacterNode(CharClass charClass) {
+			this.charClass = charClass;
+		}
+
+		@Override
+		public void compile(Program program) {
+			program.emit(CHARACTER, 0, 0, charClass);
+		}
+
+		@Override
+		public boolean isNullable() {
+			return false;
+		}
+	}
+
+	private static class BoundaryNode extends Node {
+		private final int boundary;
+
+		public BoundaryNode(int boundary) {
+			this.boundary = boundary;
+		}
+
+		@Override
+		public void compile(Program program) {
+			program.emit(ASSERT, boundary, 0, null);
+		}
+
+		@Override
+		public boolean isNullable() {
+			return true;
+		}
+	}
+
+	private static class SequenceNode extends Node {
+		private final List<Node> nodes;
+
+		public SequenceNode(List<Node> nodes) {
+			this.nodes = nodes;
+		}
+
+		@Override
+		public void compile(Program program) {
+			for (Node node : nodes) {
+				node.compile(program);
+			}
+		}
+
+		@Override
+		public boolean isNullable() {
+			for (Node node : nodes) {
+				if (!node.isNullable()) {
+					return false;
+				} else {
+					// check the next one
+				}
+			}
+			return true;
+		}
+	}
+
+	private static class AlternationNode extends Node {
+		private final List<Node> nodes;
+
+		public AlternationNode(List<Node> nodes) {
+			this.nodes = nodes;
+		}
+
+		@Override
+		public void compile(Program program) {
+			List<Integer> jumps = new ArrayList<Integer>();
+			for (int i = 0; i < nodes.size() - 1; i++) {
+				int split = program.emit(SPLIT, program.next() + 1, 0, null);
+				nodes.get(i).compile(program);
+				jumps.add(program.emit(JUMP, 0, 0, null));
+				program.setArgument2(split, program.next());
+			}
+			nodes.get(nodes.size() - 1).compile(program);
+			for (int jump : jumps) {
+				program.setArgument1(jump, program.next());
+			}
+		}
+
+		@Override
+		public boolean isNullable() {
+			for (Node node : nodes) {
+				if (node.isNullable()) {
+					return true;
+				} else {
+					// check the next one
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class CaptureNode extends Node {
+		private final int group;
+		private final Node node;
+
+		public CaptureNode(int group, Node node) {
+			this.group = group;
+			this.node = node;
+		}
+
+		@Override
+		public void compile(Program program) {
+			program.emit(SAVE, 2 * group, 0, null);
+			node.compile(program);
+			program.emit(SAVE, 2 * group + 1, 0, null);
+		}
+
+		@Override
+		public boolean isNullable() {
+			return node.isNullable();
+		}
+	}
+
+	private static class AtomicNode extends Node {
+		private final Node node;
+
+		public AtomicNode(Node node) {
+			this.node = node;
+		}
+
+		@Override
+		public void compile(Program program) {
+			int atomic = program.emit(ATOMIC, 0, 0, null);
+			node.compile(program);
+			program.emit(ATOMIC_END, 0, 0, null);
+			program.setArgument2(atomic, program.next());
+		}
+
+		@Override
+		public boolean isNullable() {
+			return node.isNullable();
+		}
+	}
+
+	private static class RepetitionNode extends Node {
+		private final Node node;
+		private final int min;
+		private final int max;
+		private final boolean isLazy;
+
+		/**
+		 *
+		 * @param max
+		 *            the maximal number of repetitions, -1 for no limit
+		 */
+		public RepetitionNode(Node node, int min, int max, boolean isLazy) {
+			this.node = node;
+			this.min = min;
+			this.max = max;
+			this.isLazy = isLazy;
+		}
+
+		@Override
+		public void compile(Program program) {
+			for (int i = 0; i < min; i++) {
+				node.compile(program);
+			}
+			if (max < 0) {
+				int split = program.emit(SPLIT, 0, 0, null);
+				node.compile(program);
+				program.emit(JUMP, split, 0, null);
+				link(program, split);
+			} else {
+				List<Integer> splits = new ArrayList<Integer>();
+				for (int i = min; i < max; i++) {
+					splits.add(program.emit(SPLIT, 0, 0, null));
+					node.compile(program);
+				}
+				for (int split : splits) {
+					link(program, split);
+				}
+			}
+		}
+
+		/**
+		 * Each optional repetition is either the next instruction or the end
+		 * of the whole repetition, the preferred one depending on the
+		 * quantifier.
+		 */
+		private void link(Program program, int split) {
+			int repeat = split + 1;
+			int exit = program.next();
+			program.setArgument1(split, isLazy ? exit : repeat);
+			program.setArgument2(split, isLazy ? repeat : exit);
+		}
+
+		@Override
+		public boolean isNullable() {
+			return min == 0 || node.isNullable();
+		}
+	}
+
+	private static class Parser {
+		private final String regex;
+		private int index = 0;
+		private int groups = 0;
+
+		public Parser(String regex) {
+			this.regex = regex;
+		}
+
+		public Node parse() {
+			Node node = parseAlternation();
+			if (index < regex.length()) {
+				throw error("Unmatched closing ')'");
+			} else {
+				return node;
+			}
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at index " + index
+					+ " of " + regex);
+		}
+
+		private boolean isNext(char character) {
+			return index < regex.length() && regex.charAt(index) == character;
+		}
+
+		private Node parseAlternation() {
+			List<Node> nodes = new ArrayList<Node>();
+			nodes.add(parseSequence());
+			while (isNext('|')) {
+				index++;
+				nodes.add(parseSequence());
+			}
+			return nodes.size() == 1 ? nodes.get(0) : new AlternationNode(
+					nodes);
+		}
+
+		private Node parseSequence() {
+			List<Node> nodes = new ArrayList<Node>();
+			while (index < regex.length() && !isNext('|') && !isNext(')')) {
+				nodes.add(parseRepetition());
+			}
+			return nodes.size() == 1 ? nodes.get(0) : new SequenceNode(nodes);
+		}
+
+		private Node parseRepetition() {
+			int groupsBefore = groups;
+			Node node = parseAtom();
+			int min;
+			int max;
+			if (isNext('*')) {
+				index++;
+				min = 0;
+				max = -1;
+			} else if (isNext('+')) {
+				index++;
+				min = 1;
+				max = -1;
+			} else if (isNext('?')) {
+				index++;
+				min = 0;
+				max = 1;
+			} else if (isNext('{')) {
+				index++;
+				min = parseNumber();
+				if (isNext(',')) {
+					index++;
+					max = isNext('}') ? -1 : parseNumber();
+				} else {
+					max = min;
+				}
+				if (!isNext('}')) {
+					throw error("Unclosed repetition");
+				} else if (max >= 0 && max < min) {
+					throw error("Illegal repetition range");
+				} else {
+					index++;
+				}
+			} else {
+				return node;
+			}
+
+			if ((max < 0 || max > 1) && node.isNullable()) {
+				/*
+				 * Pattern stops repeating after an empty iteration, which
+				 * depends on where the iteration started, so it cannot be
+				 * known from the states explored by the automaton.
+				 */
+				throw error("Unsupported repetition of "
+						+ "a possibly empty content");
+			} else {
+				// each iteration consumes at least one character
+			}
+			if (isNext('?')) {
+				index++;
+				return new RepetitionNode(node, min, max, true);
+			} else if (isNext('+')) {
+				if (groups > groupsBefore) {
+					throw error("Unsupported capturing group "
+							+ "in a possessive repetition");
+				} else {
+					// no group to restore
+				}
+				/*
+				 * Like Pattern, each iteration takes the first match of the
+				 * repeated node without backtracking into it, and the number
+				 * of iterations is never reduced once they are matched.
+				 */
+				index++;
+				return new AtomicNode(new RepetitionNode(new AtomicNode(node),
+						min, max, false));
+			} else {
+				return new RepetitionNode(node, min, max, false);
+			}
+		}
+
+		private int parseNumber() {
+			int start = index;
+			while (index < regex.length()
+					&& Character.isDigit(regex.charAt(index))) {
+				index++;
+			}
+			if (start == index) {
+				throw error("Number expected");
+			} else {
+				try {
+					return Integer.parseInt(regex.substring(start, index));
+				} catch (NumberFormatException e) {
+					throw error("Number too big");
+				}
+			}
+		}
+
+		private Node parseAtom() {
+			char character = regex.charAt(index);
+			switch (character) {
+			case '(':
+				index++;
+				Node node;
+				if (regex.startsWith("?:", index)) {
+					index += 2;
+					node = parseAlternation();
+				} else if (regex.startsWith("?>", index)) {
+					index += 2;
+					int groupsBefore = groups;
+					node = new AtomicNode(parseAlternation());
+					if (groups > groupsBefore) {
+						throw error("Unsupported capturing group "
+								+ "in an atomic group");
+					} else {
+						// no group to restore
+					}
+				} else if (isNext('?')) {
+					throw error("Unsupported group construct");
+				} else {
+					int group = ++groups;
+					node = new CaptureNode(group, parseAlternation());
+				}
+				if (!isNext(')')) {
+					throw error("Unclosed group");
+				} else {
+					index++;
+					return node;
+				}
+			case '[':
+				return new CharacterNode(parseClass());
+			case '.':
+				index++;
+				return new CharacterNode(CharClass.DOT);
+			case '^':
+				index++;
+				return new BoundaryNode(BEGIN_INPUT);
+			case '$':
+				index++;
+				return new BoundaryNode(END_LINE);
+			case '\\':
+				if (regex.startsWith("\\A", index)) {
+					index += 2;
+					return new BoundaryNode(BEGIN_INPUT);
+				} else if (regex.startsWith("\\z", index)) {
+					index += 2;
+					return new BoundaryNode(END_INPUT);
+				} else if (regex.startsWith("\\Z", index)) {
+					index += 2;
+					return new BoundaryNode(END_LINE);
+				} else {
+					return new CharacterNode(parseEscape());
+				}
+			case '*':
+			case '+':
+			case '?':
+			case '{':
+				throw error("Dangling meta character '" + character + "'");
+			default:
+				int codePoint = regex.codePointAt(index);
+				index += Character.charCount(codePoint);
+				return new CharacterNode(new CharClass(codePoint, codePoint));
+			}
+		}
+
+		private CharClass parseClass() {
+			index++;
+			boolean isNegated = isNext('^');
+			if (isNegated) {
+				index++;
+			} else {
+				// positive class
+			}
+			if (isNext(']')) {
+				throw error("Unsupported leading ']' in class");
+			} else {
+				// usual class
+			}
+			List<int[]> ranges = new ArrayList<int[]>();
+			while (true) {
+				if (index >= regex.length()) {
+					throw error("Unclosed character class");
+				} else if (isNext(']')) {
+					index++;
+					break;
+				} else if (isNext('[')) {
+					throw error("Unsupported class union");
+				} else if (regex.startsWith("&&", index)) {
+					throw error("Unsupported class intersection");
+				} else {
+					CharClass item = parseClassItem();
+					if (item.ranges.length == 2
+							&& item.ranges[0] == item.ranges[1]
+							&& isNext('-') && index + 1 < regex.length()
+							&& regex.charAt(index + 1) != ']') {
+						index++;
+						CharClass upper = parseClassItem();
+						if (upper.ranges.length != 2
+								|| upper.ranges[0] != upper.ranges[1]) {
+							throw error("Illegal character range");
+						} else if (upper.ranges[0] < item.ranges[0]) {
+							throw error("Illegal character range");
+						} else {
+							ranges.add(new int[] { item.ranges[0],
+									upper.ranges[0] });
+						}
+					} else {
+						item.addTo(ranges);
+					}
+				}
+			}
+			CharClass charClass = CharClass.union(ranges);
+			return isNegated ? charClass.complement() : charClass;
+		}
+
+		private CharClass parseClassItem() {
+			if (isNext('\\')) {
+				return parseEscape();
+			} else {
+				int codePoint = regex.codePointAt(index);
+				index += Character.charCount(codePoint);
+				return new CharClass(codePoint, codePoint);
+			}
+		}
+
+		private CharClass parseEscape() {
+			index++;
+			if (index >= regex.length()) {
+				throw error("Unexpected end of regex");
+			} else {
+				char character = regex.charAt(index++);
+				switch (character) {
+				case 'd':
+					return CharClass.DIGITS;
+				case 'D':
+					return CharClass.DIGITS.complement();
+				case 's':
+					return CharClass.SPACES;
+				case 'S':
+					return CharClass.SPACES.complement();
+				case 'w':
+					return CharClass.WORDS;
+				case 'W':
+					return CharClass.WORDS.complement();
+				case 't':
+					return single('\t');
+				case 'n':
+					return single('\n');
+				case 'r':
+					return single('\r');
+				case 'f':
+					return single('\f');
+				case 'a':
+					return single('\u0007');
+				case 'e':
+					return single('\u001B');
+				case '0':
+					return single(parseOctal());
+				case 'x':
+					return single(parseHexadecimal());
+				case 'u':
+					return single(parseHexadecimal(4));
+				default:
+					if (character < 128 && Character.isLetterOrDigit(character)) {
+						index--;
+						throw error("Unsupported escape sequence '\\"
+								+ character + "'");
+					} else {
+						index--;
+						int codePoint = regex.codePointAt(index);
+						index += Character.charCount(codePoint);
+						return single(codePoint);
+					}
+				}
+			}
+		}
+
+		private CharClass single(int codePoint) {
+			return new CharClass(codePoint, codePoint);
+		}
+
+		private int parseOctal() {
+			int value = 0;
+			int digits = 0;
+			while (digits < 3 && index < regex.length()) {
+				int digit = regex.charAt(index) - '0';
+				if (digit < 0 || digit > 7 || value * 8 + digit > 0377) {
+					break;
+				} else {
+					value = value * 8 + digit;
+					digits++;
+					index++;
+				}
+			}
+			if (digits == 0) {
+				throw error("Illegal octal escape sequence");
+			} else {
+				return value;
+			}
+		}
+
+		private int parseHexadecimal() {
+			if (isNext('{')) {
+				index++;
+				int end = regex.indexOf('}', index);
+				if (end < 0) {
+					throw error("Unclosed hexadecimal escape sequence");
+				} else {
+					int value = parseHexadecimal(end - index);
+					index++;
+					if (value > Character.MAX_CODE_POINT) {
+						throw error("Hexadecimal codepoint is too big");
+					} else {
+						return value;
+					}
+				}
+			} else {
+				return parseHexadecimal(2);
+			}
+		}
+
+		private int parseHexadecimal(int digits) {
+			if (digits == 0 || index + digits > regex.length()) {
+				throw error("Illegal hexadecimal escape sequence");
+			} else {
+				try {
+					int value = Integer.parseInt(
+							regex.substring(index, index + digits), 16);
+					index += digits;
+					return value;
+				} catch (NumberFormatException e) {
+					throw error("Illegal hexadecimal escape sequence");
+				}
+			}
+		}
+	}
+}
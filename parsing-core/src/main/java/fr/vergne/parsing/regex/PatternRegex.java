@@ -0,0 +1,78 @@
+package fr.vergne.parsing.regex;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link PatternRegex} is a {@link Regex} relying on a {@link Pattern}, as
+ * compiled by {@link RegexEngine#PATTERN}.
+ * 
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ * 
+ */
+public final class PatternRegex implements Regex {
+
+	private final Pattern pattern;
+
+	public PatternRegex(Pattern pattern) {
+		this.pattern = pattern;
+	}
+
+	/**
+	 * 
+	 * @return the {@link Pattern} used by this {@link PatternRegex}
+	 */
+	public Pattern getPattern() {
+		return pattern;
+	}
+
+	@Override
+	public String getRegex() {
+		return pattern.pattern();
+	}
+
+	@Override
+	public int groupCount() {
+		return pattern.matcher("").groupCount();
+	}
+
+	@Override
+	public boolean matches(CharSequence content) {
+		return pattern.matcher(content).matches();
+	}
+
+	@Override
+	public int lookingAt(CharSequence content, int offset) {
+		Matcher matcher = pattern.matcher(content);
+		matcher.useTransparentBounds(true);
+		matcher.useAnchoringBounds(false);
+		if (matcher.region(offset, content.length()).lookingAt()) {
+			return matcher.end();
+		} else {
+			return -1;
+		}
+	}
+
+	@Override
+	public int[] match(CharSequence content, int offset, boolean isToEnd) {
+		Matcher matcher = pattern.matcher(content);
+		matcher.useTransparentBounds(true);
+		matcher.useAnchoringBounds(false);
+		matcher.region(offset, content.length());
+		if (isToEnd ? matcher.matches() : matcher.lookingAt()) {
+			int[] groups = new int[2 * (matcher.groupCount() + 1)];
+			for (int i = 0; i <= matcher.groupCount(); i++) {
+				groups[2 * i] = matcher.start(i);
+				groups[2 * i + 1] = matcher.end(i);
+			}
+			return groups;
+		} else {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return pattern.pattern();
+	}
+}
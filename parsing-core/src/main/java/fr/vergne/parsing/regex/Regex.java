@@ -0,0 +1,64 @@
+package fr.vergne.parsing.regex;
+
+/**
+ * A {@link Regex} is a regular expression compiled by a {@link RegexEngine},
+ * which provides the matching operations used by the layers.
+ * 
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ * 
+ */
+public interface Regex {
+
+	/**
+	 * 
+	 * @return the regex compiled in this {@link Regex}
+	 */
+	public String getRegex();
+
+	/**
+	 * 
+	 * @return the number of capturing groups of the regex
+	 */
+	public int groupCount();
+
+	/**
+	 * 
+	 * @param content
+	 *            the content to match
+	 * @return <code>true</code> if the whole content matches the regex,
+	 *         <code>false</code> otherwise
+	 */
+	public boolean matches(CharSequence content);
+
+	/**
+	 * This method tells where a match of the regex starting at a given offset
+	 * ends. The rest of the content remains visible to the lookarounds, and
+	 * the boundaries matchers (e.g. "^" and "$") only match at the boundaries
+	 * of the whole content.
+	 * 
+	 * @param content
+	 *            the content to match
+	 * @param offset
+	 *            the position where the match should start
+	 * @return the position where the match ends, -1 if there is no match
+	 */
+	public int lookingAt(CharSequence content, int offset);
+
+	/**
+	 * This method matches the regex from a given offset and provides the
+	 * positions of its capturing groups.
+	 * 
+	 * @param content
+	 *            the content to match
+	 * @param offset
+	 *            the position where the match should start
+	 * @param isToEnd
+	 *            <code>true</code> if the match should end at the end of the
+	 *            content, <code>false</code> if it can end anywhere
+	 * @return an array containing the start and end of each group, the
+	 *         complete match being the group 0, or <code>null</code> if there
+	 *         is no match. A group which does not participate to the match
+	 *         has -1 as start and end.
+	 */
+	public int[] match(CharSequence content, int offset, boolean isToEnd);
+}
@@ -0,0 +1,62 @@
+package fr.vergne.parsing.regex;
+
+import java.util.regex.Pattern;
+
+/**
+ * A {@link RegexEngine} compiles the regex of the layers into {@link Regex}s.
+ * Two engines are provided:
+ * <ul>
+ * <li>{@link #PATTERN}: the regex are compiled into {@link Pattern}s, so any
+ * regex supported by Java can be used, but {@link Pattern} backtracks, so
+ * ambiguous regex can take an exponential time to match.</li>
+ * <li>{@link #AUTOMATON}: the regex are compiled into {@link Automaton}s,
+ * which match in a linear time, but do not support all the constructs of
+ * {@link Pattern}.</li>
+ * </ul>
+ * Other engines can be implemented, like hand-written matchers for specific
+ * regex. An engine which does not support a regex should throw an
+ * {@link IllegalArgumentException}, in which case the layers use
+ * {@link #PATTERN} for this regex.
+ * 
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ * 
+ */
+public interface RegexEngine {
+
+	public static final RegexEngine PATTERN = new RegexEngine() {
+
+		@Override
+		public Regex compile(String regex) {
+			return new PatternRegex(Pattern.compile(regex));
+		}
+
+		@Override
+		public String toString() {
+			return "PATTERN";
+		}
+	};
+
+	public static final RegexEngine AUTOMATON = new RegexEngine() {
+
+		@Override
+		public Regex compile(String regex) {
+			return Automaton.compile(regex);
+		}
+
+		@Override
+		public String toString() {
+			return "AUTOMATON";
+		}
+	};
+
+	/**
+	 * 
+	 * @param regex
+	 *            the regex to compile
+	 * @return the {@link Regex} matching this regex
+	 * @throws IllegalArgumentException
+	 *             if the regex is invalid or not supported by this
+	 *             {@link RegexEngine}
+	 */
+	public Regex compile(String regex);
+}
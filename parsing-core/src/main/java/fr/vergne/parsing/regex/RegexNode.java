@@ -0,0 +1,238 @@
+package fr.vergne.parsing.regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link RegexNode} is a piece of regular expression represented as a tree.
+ * Building a big regex by concatenating {@link String}s copies again and again
+ * the same sub-regex, each time they are included in a bigger one. By building
+ * a tree of {@link RegexNode}s instead, each sub-regex is written only once,
+ * when the final regex is rendered through {@link #toString()}. Because the
+ * length of each {@link RegexNode} is known in advance, this rendering is made
+ * in a single buffer of the right size.<br/>
+ * <br/>
+ * A {@link RegexNode} is immutable, so the same instance can be used in
+ * several trees.
+ *
+ * @author Matthieu Vergne <matthieu.vergne@gmail.com>
+ *
+ */
+public abstract class RegexNode {
+
+	private int length = -1;
+
+	/**
+	 *
+	 * @return the number of characters of the regex represented by this
+	 *         {@link RegexNode}
+	 */
+	public int length() {
+		if (length < 0) {
+			length = computeLength();
+		} else {
+			// reuse the computed one
+		}
+		return length;
+	}
+
+	protected abstract int computeLength();
+
+	/**
+	 * This method writes the regex represented by this {@link RegexNode} at the
+	 * end of the given {@link StringBuilder}.
+	 *
+	 * @param builder
+	 *            the {@link StringBuilder} to write in
+	 */
+	public abstract void appendTo(StringBuilder builder);
+
+	/**
+	 * @return the regex represented by this {@link RegexNode}
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder(length());
+		appendTo(builder);
+		return builder.toString();
+	}
+
+	/**
+	 *
+	 * @param regex
+	 *            a regex
+	 * @return a {@link RegexNode} representing this regex as-is
+	 */
+	public static RegexNode literal(String regex) {
+		return new Literal(regex);
+	}
+
+	/**
+	 *
+	 * @param nodes
+	 *            the {@link RegexNode}s to concatenate
+	 * @return a {@link RegexNode} representing the concatenation of the
+	 *         {@link RegexNode}s, like "XYZ"
+	 */
+	public static RegexNode sequence(List<? extends RegexNode> nodes) {
+		return new Sequence(nodes);
+	}
+
+	/**
+	 * Same as {@link #sequence(List)} with an array.
+	 */
+	public static RegexNode sequence(RegexNode... nodes) {
+		return sequence(Arrays.asList(nodes));
+	}
+
+	/**
+	 *
+	 * @param nodes
+	 *            the alternatives
+	 * @return a {@link RegexNode} representing the alternatives separated by
+	 *         pipes, like "X|Y|Z"
+	 */
+	public static RegexNode alternation(List<? extends RegexNode> nodes) {
+		return new Alternation(nodes);
+	}
+
+	/**
+	 *
+	 * @param node
+	 *            the {@link RegexNode} to group
+	 * @return a {@link RegexNode} representing a non-capturing group on the
+	 *         given {@link RegexNode}, like "(?:X)"
+	 */
+	public static RegexNode group(RegexNode node) {
+		return new Group("(?:", node, ")");
+	}
+
+	/**
+	 *
+	 * @param node
+	 *            the {@link RegexNode} to capture
+	 * @return a {@link RegexNode} representing a capturing group on the given
+	 *         {@link RegexNode}, like "(X)"
+	 */
+	public static RegexNode capture(RegexNode node) {
+		return new Group("(", node, ")");
+	}
+
+	/**
+	 *
+	 * @param node
+	 *            the {@link RegexNode} to repeat
+	 * @param quantifier
+	 *            the quantifier to apply, like "*", "{2,5}" or "++"
+	 * @return a {@link RegexNode} representing a non-capturing group on the
+	 *         given {@link RegexNode} followed by the quantifier, like "(?:X)*"
+	 */
+	public static RegexNode repetition(RegexNode node, String quantifier) {
+		return new Group("(?:", node, ")" + quantifier);
+	}
+
+	private static class Literal extends RegexNode {
+		private final String regex;
+
+		public Literal(String regex) {
+			this.regex = regex;
+		}
+
+		@Override
+		protected int computeLength() {
+			return regex.length();
+		}
+
+		@Override
+		public void appendTo(StringBuilder builder) {
+			builder.append(regex);
+		}
+
+		@Override
+		public String toString() {
+			return regex;
+		}
+	}
+
+	private static class Sequence extends RegexNode {
+		private final List<RegexNode> nodes;
+
+		public Sequence(List<? extends RegexNode> nodes) {
+			this.nodes = Collections.unmodifiableList(new ArrayList<RegexNode>(
+					nodes));
+		}
+
+		@Override
+		protected int computeLength() {
+			int length = 0;
+			for (RegexNode node : nodes) {
+				length += node.length();
+			}
+			return length;
+		}
+
+		@Override
+		public void appendTo(StringBuilder builder) {
+			for (RegexNode node : nodes) {
+				node.appendTo(builder);
+			}
+		}
+	}
+
+	private static class Alternation extends RegexNode {
+		private final List<RegexNode> nodes;
+
+		public Alternation(List<? extends RegexNode> nodes) {
+			this.nodes = Collections.unmodifiableList(new ArrayList<RegexNode>(
+					nodes));
+		}
+
+		@Override
+		protected int computeLength() {
+			int length = Math.max(nodes.size() - 1, 0);
+			for (RegexNode node : nodes) {
+				length += node.length();
+			}
+			return length;
+		}
+
+		@Override
+		public void appendTo(StringBuilder builder) {
+			boolean isFirst = true;
+			for (RegexNode node : nodes) {
+				if (isFirst) {
+					isFirst = false;
+				} else {
+					builder.append('|');
+				}
+				node.appendTo(builder);
+			}
+		}
+	}
+
+	private static class Group extends RegexNode {
+		private final String prefix;
+		private final RegexNode node;
+		private final String suffix;
+
+		public Group(String prefix, RegexNode node, String suffix) {
+			this.prefix = prefix;
+			this.node = node;
+			this.suffix = suffix;
+		}
+
+		@Override
+		protected int computeLength() {
+			return prefix.length() + node.length() + suffix.length();
+		}
+
+		@Override
+		public void appendTo(StringBuilder builder) {
+			builder.append(prefix);
+			node.appendTo(builder);
+			builder.append(suffix);
+		}
+	}
+}
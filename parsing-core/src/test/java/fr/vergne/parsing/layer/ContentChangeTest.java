@@ -0,0 +1,75 @@
+package fr.vergne.parsing.layer;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import fr.vergne.parsing.layer.standard.Atom;
+import fr.vergne.parsing.layer.standard.Formula;
+
+public class ContentChangeTest {
+
+	@Test
+	public void testGetNewContentRetrievesModifiedPart() {
+		Formula formula = new Formula("[a-z]+");
+		formula.setContent("abcdef");
+		ContentChange change = new ContentChange(formula, 2, 1, 3);
+		assertEquals("cde", change.getNewContent());
+	}
+
+	@Test
+	public void testShiftMovesOffsetToContainer() {
+		Formula formula = new Formula("[a-z]+");
+		Atom container = new Atom("xyz");
+		ContentChange change = new ContentChange(formula, 2, 1, 3).shift(
+				container, 5);
+		assertSame(container, change.getLayer());
+		assertEquals(7, change.getOffset());
+		assertEquals(1, change.getOldLength());
+		assertEquals(3, change.getNewLength());
+	}
+
+	@Test
+	public void testMergeCoversBothChanges() {
+		String original = "0123456789";
+		// first change: "23" -> "abc" => "01abc456789"
+		// second change: "c45" -> "" => "01ab6789"
+		Formula formula = new Formula("[\\s\\S]*");
+		ContentChange first = new ContentChange(formula, 2, 2, 3);
+		ContentChange second = new ContentChange(formula, 4, 3, 0);
+		ContentChange merged = ContentChange.merge(first, second);
+
+		String expected = "01ab6789";
+		String result = original.substring(0, merged.getOffset())
+				+ expected.substring(merged.getOffset(), merged.getOffset()
+						+ merged.getNewLength())
+				+ original.substring(merged.getOffset()
+						+ merged.getOldLength());
+		assertEquals(expected, result);
+		assertEquals(2, merged.getOffset());
+		assertEquals(4, merged.getOldLength());
+		assertEquals(2, merged.getNewLength());
+	}
+
+	@Test
+	public void testMergeOfDisjointChanges() {
+		Formula formula = new Formula("[\\s\\S]*");
+		ContentChange first = new ContentChange(formula, 8, 1, 1);
+		ContentChange second = new ContentChange(formula, 1, 0, 2);
+		ContentChange merged = ContentChange.merge(first, second);
+		assertEquals(1, merged.getOffset());
+		assertEquals(8, merged.getOldLength());
+		assertEquals(10, merged.getNewLength());
+	}
+
+	@Test
+	public void testMergeRejectsDifferentLayers() {
+		ContentChange first = new ContentChange(new Formula("a"), 0, 1, 1);
+		ContentChange second = new ContentChange(new Formula("a"), 0, 1, 1);
+		try {
+			ContentChange.merge(first, second);
+			fail("No exception thrown");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
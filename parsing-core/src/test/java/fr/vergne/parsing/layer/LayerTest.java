@@ -3,6 +3,7 @@ package fr.vergne.parsing.layer;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
@@ -13,7 +14,9 @@ import java.util.Map.Entry;
 import org.junit.Test;
 
 import fr.vergne.ioutils.StringUtils;
+import fr.vergne.parsing.layer.Layer.ChangeListener;
 import fr.vergne.parsing.layer.Layer.ContentListener;
+import fr.vergne.parsing.layer.standard.AbstractLayer;
 
 public abstract class LayerTest {
 
@@ -38,6 +41,26 @@ public abstract class LayerTest {
 	protected abstract Map<String, Layer> instantiateLayers(
 			Collection<String> specialCharacters);
 
+	/**
+	 * This method checks that nothing refers to an object anymore, by
+	 * requesting the garbage collector until it is collected.
+	 * 
+	 * @param reference
+	 *            a {@link WeakReference} to the object which should be
+	 *            released
+	 */
+	protected static void assertReleased(WeakReference<?> reference) {
+		for (int i = 0; i < 20 && reference.get() != null; i++) {
+			System.gc();
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		assertNull("Still referenced: " + reference.get(), reference.get());
+	}
+
 	private Collection<String> getSpecialCharactersToManage() {
 		return Arrays.asList("ê", "\n", "\r", "Σ", "δ");
 	}
@@ -124,6 +147,47 @@ public abstract class LayerTest {
 		}
 	}
 
+	@Test
+	public void testSetContentProperlyNotifiesChangeListeners() {
+		final ContentChange[] value = new ContentChange[] { null };
+		ChangeListener listener = new ChangeListener() {
+
+			@Override
+			public void contentChanged(ContentChange change) {
+				value[0] = change;
+			}
+		};
+
+		Map<String, Layer> map = instantiateLayers(getSpecialCharactersToManage());
+		for (Entry<String, Layer> entry : map.entrySet()) {
+			String content = entry.getKey();
+			Layer layer = entry.getValue();
+
+			if (layer == null) {
+				// irrelevant test
+			} else {
+				AbstractLayer.addChangeListener(layer, listener);
+
+				value[0] = null;
+				layer.setContent(content);
+				assertNotNull(layer.toString(), value[0]);
+				assertSame(layer.toString(), layer, value[0].getLayer());
+				assertEquals(layer.toString(), 0, value[0].getOffset());
+				assertEquals(layer.toString(), content.length(),
+						value[0].getNewLength());
+				assertEquals(layer.toString(), content,
+						value[0].getNewContent());
+
+				value[0] = null;
+				layer.setContent(content);
+				assertEquals(layer.toString(), content.length(),
+						value[0].getOldLength());
+
+				AbstractLayer.removeChangeListener(layer, listener);
+			}
+		}
+	}
+
 	@Test
 	public void testInputStreamPreservesContent() throws IOException {
 		Map<String, Layer> map = instantiateLayers(getSpecialCharactersToManage());
@@ -143,6 +207,44 @@ public abstract class LayerTest {
 		}
 	}
 
+	@Test
+	public void testAppendToPreservesContent() throws IOException {
+		Map<String, Layer> map = instantiateLayers(getSpecialCharactersToManage());
+
+		for (Entry<String, Layer> entry : map.entrySet()) {
+			String content = entry.getKey();
+			Layer layer = entry.getValue();
+
+			if (layer == null) {
+				// irrelevant test
+			} else {
+				layer.setContent(content);
+				StringBuilder builder = new StringBuilder("prefix:");
+				AbstractLayer.appendTo(layer, builder);
+				assertEquals(layer.toString(), "prefix:" + content,
+						builder.toString());
+			}
+		}
+	}
+
+	@Test
+	public void testContentLengthCorrespondsToContent() {
+		Map<String, Layer> map = instantiateLayers(getSpecialCharactersToManage());
+
+		for (Entry<String, Layer> entry : map.entrySet()) {
+			String content = entry.getKey();
+			Layer layer = entry.getValue();
+
+			if (layer == null) {
+				// irrelevant test
+			} else {
+				layer.setContent(content);
+				assertEquals(layer.toString(), content.length(),
+						AbstractLayer.getContentLength(layer));
+			}
+		}
+	}
+
 	@Test
 	public void testCloneableInstanceGeneratesProperClone() throws IOException {
 		Map<String, Layer> map = instantiateLayers(getSpecialCharactersToManage());
@@ -161,4 +263,42 @@ public abstract class LayerTest {
 			}
 		}
 	}
+
+	@Test
+	public void testCloneIsIndependentFromOriginal() {
+		Map<String, Layer> map = instantiateLayers(getSpecialCharactersToManage());
+		for (Entry<String, Layer> entry : map.entrySet()) {
+			String content = entry.getKey();
+			Layer layer = entry.getValue();
+			if (layer == null) {
+				// irrelevant test
+			} else {
+				layer.setContent(content);
+				Layer clone;
+				try {
+					clone = (Layer) layer.getClass().getMethod("clone")
+							.invoke(layer);
+				} catch (Exception e) {
+					// not cloneable
+					continue;
+				}
+				assertEquals(layer.toString(), content, clone.getContent());
+				assertEquals(layer.toString(), content.length(),
+						AbstractLayer.getContentLength(clone));
+
+				final Collection<ContentChange> changes = new HashSet<ContentChange>();
+				ChangeListener listener = new ChangeListener() {
+
+					@Override
+					public void contentChanged(ContentChange change) {
+						changes.add(change);
+					}
+				};
+				AbstractLayer.addChangeListener(layer, listener);
+				clone.setContent(content);
+				AbstractLayer.removeChangeListener(layer, listener);
+				assertTrue(layer.toString(), changes.isEmpty());
+			}
+		}
+	}
 }
@@ -4,6 +4,10 @@ import static org.junit.Assert.*;
 
 import org.junit.Test;
 
+import fr.vergne.parsing.layer.standard.Atom;
+import fr.vergne.parsing.layer.standard.Formula;
+import fr.vergne.parsing.layer.standard.Suite;
+
 public class ParsingExceptionTest {
 
 	@Test
@@ -41,4 +45,57 @@ public class ParsingExceptionTest {
 		assertEquals("(3,1)", ParsingException.formatStart(content, 20));
 	}
 
+	@Test
+	public void testStacklessExceptionsMaterialized() {
+		assertTrue(new ParsingException("a", "b").getStackTrace().length > 0);
+
+		ParsingException.setStackless(true);
+		ParsingException cause;
+		ParsingException ex;
+		try {
+			cause = new ParsingException("a", "b");
+			ex = new ParsingException("c", "d", cause);
+		} finally {
+			ParsingException.setStackless(false);
+		}
+		assertEquals(0, cause.getStackTrace().length);
+		assertEquals(0, ex.getStackTrace().length);
+
+		assertSame(ex, ex.materialize());
+		assertTrue(ex.getStackTrace().length > 0);
+		assertTrue(cause.getStackTrace().length > 0);
+	}
+
+	@Test
+	public void testEscapingExceptionHasStackTrace() {
+		Suite suite = new Suite(new Formula("[a-z]+"), new Atom("!"));
+		try {
+			suite.setContent("abc?");
+			fail("No exception thrown");
+		} catch (ParsingException e) {
+			boolean isCallerFound = false;
+			for (StackTraceElement element : e.getStackTrace()) {
+				isCallerFound |= element.getClassName().equals(
+						getClass().getName());
+			}
+			assertTrue(isCallerFound);
+		}
+	}
+
+	@Test
+	public void testMessageFormattedOnDemand() {
+		Formula formula = new Formula("[a-z]+");
+		ParsingException ex = new ParsingException(formula, null, "ab\ncd",
+				2, 5);
+		assertEquals("Nothing expected for Formula[[a-z]+] from (1,3): \"\\ncd\"",
+				ex.getMessage());
+		assertSame(ex.getMessage(), ex.getMessage());
+
+		try {
+			new ParsingException(formula, formula, "abc", 2, 4);
+			fail("No exception thrown");
+		} catch (StringIndexOutOfBoundsException e) {
+		}
+	}
+
 }
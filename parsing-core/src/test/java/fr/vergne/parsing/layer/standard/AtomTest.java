@@ -2,6 +2,7 @@ package fr.vergne.parsing.layer.standard;
 
 import static org.junit.Assert.*;
 
+import java.lang.ref.WeakReference;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
@@ -320,4 +321,39 @@ public class AtomTest extends LayerTest {
 			}
 		}
 	}
+
+	@Test
+	public void testMatchComparesCharactersLiterally() {
+		Atom atom = new Atom("a.b");
+		assertEquals(4, atom.match("xa.by", 1));
+		assertEquals(-1, atom.match("xa.by", 0));
+		assertEquals(-1, atom.match("xaxby", 1));
+		assertEquals(-1, atom.match("xa.", 1));
+		assertEquals(3, atom.match(new StringBuilder("a.b"), 0));
+		assertEquals(-1, atom.match(new StringBuilder("axb"), 0));
+	}
+
+	@Test
+	public void testAtomsOfSameContentShareContentAndRegex() {
+		Atom atom1 = new Atom(new String("a.b"));
+		Atom atom2 = new Atom(new String("a.b"));
+		assertSame(atom1.getContent(), atom2.getContent());
+		assertSame(atom1.getRegex(), atom2.getRegex());
+		assertSame(atom1.getPattern(), atom2.getPattern());
+	}
+
+	@Test
+	public void testParsedAtomDoesNotKeepSource() {
+		Atom atom = new Atom(";");
+		Suite suite = new Suite(new Formula("[a-z]+"), atom);
+		String source = new String("abc;");
+		suite.setContent(source);
+		suite.get(0).setContent("xyz");
+		WeakReference<String> reference = new WeakReference<String>(source);
+		source = null;
+
+		assertReleased(reference);
+		assertEquals(";", atom.getContent());
+		assertEquals("xyz;", suite.getContent());
+	}
 }
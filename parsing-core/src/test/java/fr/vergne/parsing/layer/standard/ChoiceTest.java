@@ -253,4 +253,53 @@ public class ChoiceTest extends LayerTest {
 		}
 	}
 
+	@Test
+	public void testParentNotifiedOfModificationInCurrentAlternative() {
+		Formula lower = new Formula("[a-z]+");
+		Formula upper = new Formula("[A-Z]+");
+		Choice choice = new Choice(lower, upper);
+		Suite suite = new Suite(new Atom("<"), choice, new Atom(">"));
+		suite.setContent("<abc>");
+		assertEquals("<abc>", suite.getContent());
+
+		lower.setContent("def");
+		assertEquals("<def>", suite.getContent());
+
+		suite.setContent("<ABC>");
+		assertEquals("<ABC>", suite.getContent());
+		lower.setContent("ghi");
+		assertEquals("<ABC>", suite.getContent());
+		upper.setContent("DEF");
+		assertEquals("<DEF>", suite.getContent());
+	}
+
+
+	@Test
+	public void testLazyMaterializationFillsCurrentOnRequest() {
+		for (ParsingEngine engine : ParsingEngine.values()) {
+			ParsingEngine previousEngine = AbstractLayer.parsingEngine;
+			boolean previousLazy = AbstractLayer.lazyMaterialization;
+			try {
+				AbstractLayer.parsingEngine = engine;
+				AbstractLayer.lazyMaterialization = true;
+				Formula word = new Formula("[a-z]+");
+				Formula number = new Formula("[0-9]+");
+				Choice choice = new Choice(word, number);
+				choice.setContent("123");
+				assertNull(engine.toString(), number.getContent());
+				assertEquals(engine.toString(), "123", choice.getContent());
+				assertSame(engine.toString(), number, choice.getCurrent());
+				assertEquals(engine.toString(), "123", number.getContent());
+
+				try {
+					choice.setContent("12a");
+					fail("No exception thrown");
+				} catch (ParsingException e) {
+				}
+			} finally {
+				AbstractLayer.parsingEngine = previousEngine;
+				AbstractLayer.lazyMaterialization = previousLazy;
+			}
+		}
+	}
 }
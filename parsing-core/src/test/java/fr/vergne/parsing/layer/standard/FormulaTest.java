@@ -2,6 +2,7 @@ package fr.vergne.parsing.layer.standard;
 
 import static org.junit.Assert.*;
 
+import java.lang.ref.WeakReference;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
@@ -335,4 +336,66 @@ public class FormulaTest extends LayerTest {
 			assertEquals(regex, new Formula(regex).getRegex());
 		}
 	}
+
+	@Test
+	public void testPatternSharedBetweenSimilarFormulas() {
+		Formula formula = new Formula("[a-z]+", "abc");
+		Formula clone = (Formula) formula.clone();
+		assertSame(formula.getPattern(), clone.getPattern());
+		assertSame(formula.getPattern(), new Formula("[a-z]+").getPattern());
+		assertTrue(AbstractLayer.getPatternsCacheSize() > 0);
+	}
+
+	@Test
+	public void testCheckedContentNotKeptAfterCheck() {
+		Formula formula = new Formula("[a-z]+", "abc");
+		String rejected = new String("ABC");
+		try {
+			formula.setContent(rejected);
+			fail("No exception thrown");
+		} catch (ParsingException e) {
+		}
+		WeakReference<String> reference = new WeakReference<String>(rejected);
+		rejected = null;
+
+		assertEquals("abc", formula.getContent());
+		assertReleased(reference);
+	}
+
+	@Test
+	public void testContentSetThroughParent() {
+		for (ParsingEngine engine : ParsingEngine.values()) {
+			ParsingEngine previous = AbstractLayer.parsingEngine;
+			try {
+				AbstractLayer.parsingEngine = engine;
+				Formula word = new Formula("[a-z]+");
+				Formula number = new Formula("[0-9]+");
+				Suite suite = new Suite(word, new Atom(","), number);
+				Loop<Suite> loop = new Loop<Suite>(suite);
+				loop.setContent("abc,123def,45");
+				Suite second = loop.get(1);
+				Formula secondWord = second.get(0);
+				Formula secondNumber = second.get(2);
+				assertEquals(engine.toString(), "def", secondWord.getContent());
+				assertEquals(engine.toString(), 2,
+						secondNumber.getContentLength());
+				assertEquals(engine.toString(), "45",
+						secondNumber.getContent());
+
+				secondWord.setContent("gh");
+				assertEquals(engine.toString(), "gh", secondWord.getContent());
+				assertEquals(engine.toString(), "abc,123gh,45",
+						loop.getContent());
+
+				try {
+					loop.setContent("abc,123de!,45");
+					fail("No exception thrown");
+				} catch (ParsingException e) {
+					assertEquals(engine.toString(), 9, e.getStart());
+				}
+			} finally {
+				AbstractLayer.parsingEngine = previous;
+			}
+		}
+	}
 }
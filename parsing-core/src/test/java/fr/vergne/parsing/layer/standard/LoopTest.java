@@ -2,23 +2,33 @@ package fr.vergne.parsing.layer.standard;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
 import org.junit.Test;
 
+import fr.vergne.parsing.layer.ContentChange;
 import fr.vergne.parsing.layer.Layer;
+import fr.vergne.parsing.layer.Layer.ChangeListener;
 import fr.vergne.parsing.layer.Layer.ContentListener;
 import fr.vergne.parsing.layer.LayerTest;
 import fr.vergne.parsing.layer.exception.ParsingException;
 import fr.vergne.parsing.layer.standard.Loop.BoundException;
 import fr.vergne.parsing.layer.standard.Loop.Generator;
+import fr.vergne.parsing.layer.util.Time;
+import fr.vergne.parsing.regex.RegexEngine;
 
 public class LoopTest extends LayerTest {
 
@@ -118,6 +128,189 @@ public class LoopTest extends LayerTest {
 		assertTrue(clones.contains(loop.get(2)));
 	}
 
+	@Test
+	public void testSetContentAgainReusesOccurrences() {
+		Loop<Suite> loop = new Loop<Suite>(new Suite(new Formula("[a-z]+"),
+				new Atom(";")));
+		loop.setContent("a;b;c;");
+		Suite a = loop.get(0);
+		Suite b = loop.get(1);
+		Suite c = loop.get(2);
+
+		loop.setContent("a;x;c;d;");
+		assertSame(a, loop.get(0));
+		assertSame(b, loop.get(1));
+		assertSame(c, loop.get(2));
+		assertEquals("x;", b.getContent());
+		assertEquals("d;", loop.get(3).getContent());
+
+		loop.setContent("n;a;x;c;d;");
+		assertNotSame(a, loop.get(0));
+		assertEquals("n;", loop.get(0).getContent());
+		assertSame(a, loop.get(1));
+		assertSame(b, loop.get(2));
+		assertSame(c, loop.get(3));
+
+		b.<Formula> get(0).setContent("y");
+		assertEquals("n;a;y;c;d;", loop.getContent());
+	}
+
+	@Test
+	public void testSetContentAgainWithRejectedMiddleOccurrence() {
+		Loop<Formula> loop = new Loop<Formula>(new Generator<Formula>() {
+
+			@Override
+			public Formula generates() {
+				return new Formula("[a-z]+;") {
+					@Override
+					protected void setInternalContent(String source,
+							int start, int end) {
+						if (source.startsWith("x;", start)) {
+							throw new ParsingException(getRegex(), "x;");
+						} else {
+							super.setInternalContent(source, start, end);
+						}
+					}
+				};
+			}
+		});
+		loop.setContent("a;b;c;");
+		Formula middle = loop.get(1);
+		try {
+			loop.setContent("a;x;c;");
+			fail("No exception thrown");
+		} catch (ParsingException e) {
+		}
+		assertEquals(0, loop.size());
+		assertEquals("", loop.getContent());
+
+		final List<Integer> starts = new LinkedList<Integer>();
+		loop.setContent("a;b;c;");
+		loop.addChangeListener(new ChangeListener() {
+
+			@Override
+			public void contentChanged(ContentChange change) {
+				starts.add(change.getOffset());
+			}
+		});
+		assertNotSame(middle, loop.get(1));
+		loop.get(1).setContent("d;");
+		loop.get(2).setContent("e;");
+		assertEquals("a;d;e;", loop.getContent());
+		assertEquals(Arrays.asList(2, 4), starts);
+	}
+
+	@Test
+	public void testSetContentAgainReleasesPreviousContent() {
+		Loop<Suite> loop = new Loop<Suite>(new Suite(new Formula("[a-z]+"),
+				new Atom(";")));
+		String previous = new String("abc;def;ghi;");
+		loop.setContent(previous);
+		Suite first = loop.get(0);
+		Suite last = loop.get(2);
+		WeakReference<String> reference = new WeakReference<String>(previous);
+		previous = null;
+
+		loop.setContent("abc;xyz;ghi;");
+		assertSame(first, loop.get(0));
+		assertSame(last, loop.get(2));
+		assertReleased(reference);
+		assertEquals("abc;xyz;ghi;", loop.getContent());
+		assertEquals("ghi", last.get(0).getContent());
+	}
+
+	@Test
+	public void testSetContentAgainReleasesPreviousContentOfPendingParts() {
+		Loop<Suite> loop = new Loop<Suite>(new Suite(new Formula("[a-z]+"),
+				new Atom(";")));
+		String previous = new String("abc;def;ghi;");
+		boolean previousLazy = AbstractLayer.lazyMaterialization;
+		try {
+			AbstractLayer.lazyMaterialization = true;
+			loop.setContent(previous);
+			loop.get(0);
+			loop.get(2);
+		} finally {
+			AbstractLayer.lazyMaterialization = previousLazy;
+		}
+		Suite first = loop.get(0);
+		Suite last = loop.get(2);
+		WeakReference<String> reference = new WeakReference<String>(previous);
+		previous = null;
+
+		loop.setContent("abc;xyz;ghi;");
+		assertSame(first, loop.get(0));
+		assertSame(last, loop.get(2));
+		assertReleased(reference);
+		assertEquals("abc", first.get(0).getContent());
+		assertEquals("ghi", last.get(0).getContent());
+	}
+
+	@Test
+	public void testSetContentAgainNotifiesChangedOccurrencesOnly() {
+		Loop<Formula> loop = new Loop<Formula>(new Formula("[a-z]"));
+		loop.setContent("abc");
+		final Collection<Layer> notified = new HashSet<Layer>();
+		ChangeListener listener = new ChangeListener() {
+
+			@Override
+			public void contentChanged(ContentChange change) {
+				notified.add(change.getLayer());
+			}
+		};
+		Formula a = loop.get(0);
+		Formula b = loop.get(1);
+		Formula c = loop.get(2);
+		a.addChangeListener(listener);
+		b.addChangeListener(listener);
+		c.addChangeListener(listener);
+
+		loop.setContent("axc");
+		assertEquals(new HashSet<Layer>(Arrays.asList(b)), notified);
+
+		loop.setContent("ax");
+		c.setContent("z");
+		assertEquals("ax", loop.getContent());
+	}
+
+	@Test
+	public void testModificationsAfterAdditionsAndRemovalsNotifyRightPositions() {
+		Loop<Suite> loop = new Loop<Suite>(new Suite(new Formula("[a-z]+"),
+				new Atom(";")));
+		loop.setContent("a;bb;ccc;");
+		final List<Integer> changes = new LinkedList<Integer>();
+		loop.addChangeListener(new ChangeListener() {
+
+			@Override
+			public void contentChanged(ContentChange change) {
+				changes.add(change.getOffset());
+				changes.add(change.getOldLength());
+				changes.add(change.getNewLength());
+			}
+		});
+
+		loop.get(1).get(0).setContent("bbbb");
+		loop.get(2).get(0).setContent("c");
+		loop.remove(0);
+		loop.get(1).get(0).setContent("cc");
+		loop.add(0, "x;");
+		loop.get(2).get(0).setContent("d");
+		loop.get(0).get(0).setContent("xyz");
+		assertEquals("xyz;bbbb;d;", loop.getContent());
+		assertEquals(Arrays.asList(2, 2, 4, 7, 3, 1, 0, 2, 0, 5, 1, 2, 0, 0,
+				2, 7, 2, 1, 0, 1, 3), changes);
+	}
+
+	@Test
+	public void testContentNotKeptAfterRequest() {
+		Loop<Formula> loop = new Loop<Formula>(new Formula("[a-z]"));
+		loop.setContent("abc");
+		WeakReference<String> reference = new WeakReference<String>(
+				loop.getContent());
+		assertReleased(reference);
+		assertEquals("abc", loop.getContent());
+	}
+
 	@Test
 	public void testTemplateInstanceThrowsExceptionOnNullTemplate() {
 		try {
@@ -127,6 +320,15 @@ public class LoopTest extends LayerTest {
 		}
 	}
 
+	@Test
+	public void testTemplateInstanceThrowsExceptionOnInheritedClone() {
+		try {
+			new Loop<Time>(new Time());
+			fail("No exception thrown");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
 	@Test
 	public void testInvalidContentForRegexThrowsParsingException() {
 		Loop<Formula> loop = new Loop<Formula>(new Formula("[a-zA-Z\n]"));
@@ -1004,4 +1206,460 @@ public class LoopTest extends LayerTest {
 		loop.setContent(content);
 		assertEquals(content, loop.getContent());
 	}
+
+	@Test
+	public void testPossessiveLoopWithBoundedCountRejectsTooFewOccurrences() {
+		Loop<Formula> loop = new Loop<Formula>(Quantifier.POSSESSIVE,
+				new Formula("b+"), 2, 2);
+		try {
+			loop.setContent("bb");
+			fail("No exception thrown");
+		} catch (ParsingException e) {
+			assertEquals(0, loop.size());
+		}
+
+		loop = new Loop<Formula>(Quantifier.POSSESSIVE, new Formula("b+"), 2,
+				3);
+		try {
+			loop.setContent("bbb");
+			fail("No exception thrown");
+		} catch (ParsingException e) {
+			assertEquals(0, loop.size());
+		}
+
+		loop = new Loop<Formula>(Quantifier.POSSESSIVE, new Formula("b"), 2, 3);
+		loop.setContent("bbb");
+		assertEquals(3, loop.size());
+	}
+
+	@Test
+	public void testCachedContentUpdatedOnDeepModification() {
+		Loop<Formula> loop = new Loop<Formula>(new Generator<Formula>() {
+
+			@Override
+			public Formula generates() {
+				return new Formula("[a-z]");
+			}
+		});
+		loop.setContent("abc");
+		assertEquals("abc", loop.getContent());
+		assertEquals(3, loop.getContentLength());
+
+		loop.get(1).setContent("x");
+		assertEquals("axc", loop.getContent());
+
+		loop.add(3, "d");
+		assertEquals("axcd", loop.getContent());
+		assertEquals(4, loop.getContentLength());
+
+		loop.remove(0);
+		assertEquals("xcd", loop.getContent());
+
+		loop.clear();
+		assertEquals("", loop.getContent());
+		assertEquals(0, loop.getContentLength());
+	}
+
+	@Test
+	public void testChangesAllowToFollowContent() {
+		Loop<Formula> loop = new Loop<Formula>(new Generator<Formula>() {
+
+			@Override
+			public Formula generates() {
+				return new Formula("[a-z]");
+			}
+		});
+		loop.setContent("abcdef");
+		final StringBuilder mirror = new StringBuilder(loop.getContent());
+		loop.addChangeListener(new ChangeListener() {
+
+			@Override
+			public void contentChanged(ContentChange change) {
+				mirror.replace(change.getOffset(), change.getOffset()
+						+ change.getOldLength(), change.getNewContent());
+			}
+		});
+
+		loop.get(2).setContent("x");
+		assertEquals(loop.getContent(), mirror.toString());
+		loop.add(4, "y");
+		assertEquals(loop.getContent(), mirror.toString());
+		loop.addAllContents(1, Arrays.asList("u", "v"));
+		assertEquals(loop.getContent(), mirror.toString());
+		loop.remove(3);
+		assertEquals(loop.getContent(), mirror.toString());
+		Iterator<Formula> iterator = loop.iterator();
+		iterator.next();
+		iterator.next();
+		iterator.remove();
+		assertEquals(loop.getContent(), mirror.toString());
+		loop.setContent("gh");
+		assertEquals(loop.getContent(), mirror.toString());
+		loop.clear();
+		assertEquals("", mirror.toString());
+	}
+
+	@Test
+	public void testOccurrencesFoundWhenFirstMatchIsNotTheRightOne() {
+		Loop<Formula> loop = new Loop<Formula>(new Formula("a|ab"));
+		loop.setContent("abaab");
+		assertEquals(3, loop.size());
+		assertEquals("ab", loop.get(0).getContent());
+		assertEquals("a", loop.get(1).getContent());
+		assertEquals("ab", loop.get(2).getContent());
+	}
+
+	@Test
+	public void testOccurrencesFoundWhenTemplateAcceptsEmptyContent() {
+		Loop<Formula> loop = new Loop<Formula>(new Formula("a*"));
+		loop.setContent("aaa");
+		assertEquals("aaa", loop.getContent());
+		assertEquals("aaa", loop.get(0).getContent());
+	}
+
+	@Test
+	public void testBigLoopWithManyOccurrences() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 200000; i++) {
+			builder.append("abc");
+		}
+		String content = builder.toString();
+		Loop<Formula> loop = new Loop<Formula>(new Formula("abc|ab|a|bc|c"));
+		loop.setContent(content);
+		assertEquals(200000, loop.size());
+		assertEquals(content, loop.getContent());
+	}
+
+	@Test
+	public void testFailureOnBigLoopLocated() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 200000; i++) {
+			builder.append("abc;");
+		}
+		int position = builder.length();
+		builder.append("ab!;abc;");
+		Loop<Suite> loop = new Loop<Suite>(new Suite(new Formula("[a-z]+"),
+				new Atom(";")));
+		try {
+			loop.setContent(builder.toString());
+			fail("No exception thrown");
+		} catch (ParsingException e) {
+			assertEquals(position + 2, e.getStart());
+		}
+	}
+
+	private static Reader createSlowReader(final String content) {
+		return new Reader() {
+			private int position = 0;
+
+			@Override
+			public int read(char[] buffer, int offset, int length) {
+				if (position == content.length()) {
+					return -1;
+				} else {
+					buffer[offset] = content.charAt(position++);
+					return 1;
+				}
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	@Test
+	public void testParseFromReader() throws IOException {
+		final int lines = 200000;
+		Reader reader = new Reader() {
+			private int line = 0;
+			private String remaining = "";
+
+			@Override
+			public int read(char[] buffer, int offset, int length) {
+				if (remaining.isEmpty()) {
+					if (line == lines) {
+						return -1;
+					} else {
+						remaining = "line" + line + ";" + (line % 7) + "\n";
+						line++;
+					}
+				} else {
+					// continue the current line
+				}
+				int read = Math.min(length, remaining.length());
+				remaining.getChars(0, read, buffer, offset);
+				remaining = remaining.substring(read);
+				return read;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		final Formula name = new Formula("[a-z0-9]+");
+		Loop<Suite> loop = new Loop<Suite>(new Suite(name, new Atom(";"),
+				new Formula("[0-9]+"), new Atom("\n")));
+		final int[] count = { 0 };
+		int parsed = loop.parse(reader, new Loop.Consumer<Suite>() {
+
+			@Override
+			public void consume(Suite occurrence) {
+				assertEquals("line" + count[0] + ";" + (count[0] % 7) + "\n",
+						occurrence.getContent());
+				assertNotSame(name, occurrence.get(0));
+				count[0]++;
+			}
+		});
+		assertEquals(lines, parsed);
+		assertEquals(lines, count[0]);
+	}
+
+	@Test
+	public void testParseFromReaderWaitsForLookahead() throws IOException {
+		Loop<Formula> loop = new Loop<Formula>(new Formula("[a-z]+\\s*"));
+		final List<String> contents = new LinkedList<String>();
+		Loop.Consumer<Formula> consumer = new Loop.Consumer<Formula>() {
+
+			@Override
+			public void consume(Formula occurrence) {
+				contents.add(occurrence.getContent());
+			}
+		};
+
+		assertEquals(3, loop.parse(createSlowReader("abc def ghi"), consumer));
+		assertEquals(Arrays.asList("abc ", "def ", "ghi"), contents);
+
+		contents.clear();
+		assertEquals(3,
+				loop.parse(createSlowReader("abc def ghi"), consumer, 1));
+		assertEquals(Arrays.asList("abc ", "def ", "ghi"), contents);
+
+		contents.clear();
+		assertEquals(3, loop.parse(createSlowReader("abc"), consumer, 0));
+		assertEquals(Arrays.asList("a", "b", "c"), contents);
+	}
+
+	@Test
+	public void testParseFromReaderFailures() throws IOException {
+		Loop.Consumer<Formula> consumer = new Loop.Consumer<Formula>() {
+
+			@Override
+			public void consume(Formula occurrence) {
+			}
+		};
+
+		Loop<Formula> loop = new Loop<Formula>(new Formula("[a-z]+;"));
+		try {
+			loop.parse(new StringReader("abc;def;gh!;ij;"), consumer);
+			fail("No exception thrown");
+		} catch (ParsingException e) {
+			assertEquals("gh!;ij;", e.getContent());
+			assertEquals(0, e.getStart());
+		}
+
+		loop = new Loop<Formula>(new Formula("[a-z]+;"), 3, 5);
+		try {
+			loop.parse(new StringReader("abc;def;"), consumer);
+			fail("No exception thrown");
+		} catch (ParsingException e) {
+		}
+		assertEquals(3, loop.parse(new StringReader("abc;def;ghi;"), consumer));
+		try {
+			loop.parse(new StringReader("a;b;c;d;e;f;g;"), consumer);
+			fail("No exception thrown");
+		} catch (ParsingException e) {
+			assertEquals("f;g;", e.getContent());
+		}
+		assertEquals(0, new Loop<Formula>(new Formula("[a-z]+;")).parse(
+				new StringReader(""), consumer));
+	}
+
+	@Test
+	public void testParseFromReaderFailsWithoutReadingTheRest()
+			throws IOException {
+		final int[] read = { 0 };
+		Reader reader = new Reader() {
+			private final String content = "ab!;";
+			private final String line = "abc;";
+
+			@Override
+			public int read(char[] buffer, int offset, int length) {
+				for (int i = 0; i < length; i++) {
+					int position = read[0]++;
+					buffer[offset + i] = position < content.length() ? content
+							.charAt(position) : line.charAt(position
+							% line.length());
+				}
+				return length;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		Loop<Formula> loop = new Loop<Formula>(new Formula("[a-z]+;"));
+		try {
+			loop.parse(reader, new Loop.Consumer<Formula>() {
+
+				@Override
+				public void consume(Formula occurrence) {
+					fail("Occurrence consumed: " + occurrence.getContent());
+				}
+			}, 1, 1000);
+			fail("No exception thrown");
+		} catch (ParsingException e) {
+			assertTrue(e.getContent().startsWith("ab!;abc;"));
+			assertTrue("Length: " + e.getContent().length(), e.getContent()
+					.length() < 100000);
+		}
+		assertTrue("Read: " + read[0], read[0] < 100000);
+	}
+
+	@Test
+	public void testParseFromReaderRejectsTooLongOccurrences()
+			throws IOException {
+		Loop.Consumer<Formula> consumer = new Loop.Consumer<Formula>() {
+
+			@Override
+			public void consume(Formula occurrence) {
+			}
+		};
+		Loop<Formula> loop = new Loop<Formula>(new Formula("[a-z]+;"));
+		assertEquals(2, loop.parse(new StringReader("abc;defgh;"), consumer,
+				1, 6));
+		try {
+			loop.parse(new StringReader("abc;defghij;"), consumer, 1, 6);
+			fail("No exception thrown");
+		} catch (ParsingException e) {
+		}
+	}
+
+	@Test
+	public void testParseFromReaderDelimitsLikeParsingEngine()
+			throws IOException {
+		Loop.Consumer<Suite> consumer = new Loop.Consumer<Suite>() {
+
+			@Override
+			public void consume(Suite occurrence) {
+			}
+		};
+		Loop<Suite> loop = new Loop<Suite>(new Suite(new Formula("a+"),
+				new Atom("a"), new Atom(";")));
+		ParsingEngine previousEngine = AbstractLayer.parsingEngine;
+		try {
+			AbstractLayer.parsingEngine = ParsingEngine.REGEX;
+			assertEquals(2, loop.parse(new StringReader("aa;aaa;"), consumer));
+			assertEquals(2, loop.parse("aa;aaa;", consumer));
+
+			AbstractLayer.parsingEngine = ParsingEngine.DESCENT;
+			try {
+				loop.parse(new StringReader("aa;aaa;"), consumer);
+				fail("No exception thrown");
+			} catch (ParsingException e) {
+			}
+		} finally {
+			AbstractLayer.parsingEngine = previousEngine;
+		}
+	}
+
+	@Test
+	public void testParseFromInputStream() throws IOException {
+		Loop<Formula> loop = new Loop<Formula>(new Formula("[^;]+;"));
+		final List<String> contents = new LinkedList<String>();
+		byte[] bytes = "\u00E9t\u00E9;\u20AC;".getBytes("UTF-8");
+		loop.parse(new ByteArrayInputStream(bytes),
+				new Loop.Consumer<Formula>() {
+
+					@Override
+					public void consume(Formula occurrence) {
+						contents.add(occurrence.getContent());
+					}
+				});
+		assertEquals(Arrays.asList("\u00E9t\u00E9;", "\u20AC;"), contents);
+	}
+
+	@Test
+	public void testAutomatonEngineRejectsAmbiguousLoops() {
+		RegexEngine engine = AbstractLayer.regexEngine;
+		try {
+			AbstractLayer.regexEngine = RegexEngine.AUTOMATON;
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i < 10000; i++) {
+				builder.append("a");
+			}
+			Loop<Formula> loop = new Loop<Formula>(new Formula("a|aa"));
+			try {
+				loop.setContent(builder + "b");
+				fail("No exception thrown");
+			} catch (ParsingException e) {
+			}
+
+			loop = new Loop<Formula>(new Formula("a|ab"));
+			loop.setContent("abaab");
+			assertEquals(3, loop.size());
+			assertEquals("a", loop.get(1).getContent());
+		} finally {
+			AbstractLayer.regexEngine = engine;
+		}
+	}
+
+	@Test
+	public void testLazyMaterializationGeneratesRequestedOccurrencesOnly() {
+		for (ParsingEngine engine : ParsingEngine.values()) {
+			ParsingEngine previousEngine = AbstractLayer.parsingEngine;
+			boolean previousLazy = AbstractLayer.lazyMaterialization;
+			try {
+				AbstractLayer.parsingEngine = engine;
+				AbstractLayer.lazyMaterialization = true;
+				final int[] generated = { 0 };
+				Loop<Formula> loop = new Loop<Formula>(
+						new Generator<Formula>() {
+
+							@Override
+							public Formula generates() {
+								generated[0]++;
+								return new Formula("[a-z]+,");
+							}
+						});
+				loop.setContent("abc,def,ghi,jkl,");
+				int initial = generated[0];
+				assertEquals(engine.toString(), 4, loop.size());
+				assertEquals(engine.toString(), 16, loop.getContentLength());
+				assertEquals(engine.toString(), "abc,def,ghi,jkl,",
+						loop.getContent());
+				assertEquals(engine.toString(), initial, generated[0]);
+
+				assertEquals(engine.toString(), "ghi,", loop.get(2)
+						.getContent());
+				assertEquals(engine.toString(), initial + 1, generated[0]);
+				assertSame(engine.toString(), loop.get(2), loop.get(2));
+				assertEquals(engine.toString(), initial + 1, generated[0]);
+
+				loop.get(2).setContent("xy,");
+				assertEquals(engine.toString(), "abc,def,xy,jkl,",
+						loop.getContent());
+				loop.remove(0);
+				assertEquals(engine.toString(), "def,xy,jkl,",
+						loop.getContent());
+
+				List<String> contents = new LinkedList<String>();
+				for (Formula occurrence : loop) {
+					contents.add(occurrence.getContent());
+				}
+				assertEquals(engine.toString(), "[def,, xy,, jkl,]",
+						contents.toString());
+
+				try {
+					loop.setContent("abc,de!,");
+					fail("No exception thrown");
+				} catch (ParsingException e) {
+					assertEquals(engine.toString(), 4, e.getStart());
+				}
+			} finally {
+				AbstractLayer.parsingEngine = previousEngine;
+				AbstractLayer.lazyMaterialization = previousLazy;
+			}
+		}
+	}
 }
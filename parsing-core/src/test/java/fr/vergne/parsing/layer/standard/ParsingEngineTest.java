@@ -0,0 +1,306 @@
+package fr.vergne.parsing.layer.standard;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import fr.vergne.parsing.layer.exception.ParsingException;
+
+public class ParsingEngineTest {
+
+	private class Brackets extends Loop<Suite> {
+		public Brackets() {
+			super(new Generator<Suite>() {
+
+				@Override
+				public Suite generates() {
+					return new Suite(new Atom("["), new Brackets(), new Atom(
+							"]"));
+				}
+			});
+		}
+	}
+
+	private int matchings = 0;
+
+	private class SharedBrackets extends Loop<Suite> {
+		public SharedBrackets() {
+			super(new Generator<Suite>() {
+
+				@Override
+				public Suite generates() {
+					return new Suite(new Atom("["), new SharedBrackets(),
+							new Atom("]"));
+				}
+			});
+		}
+
+		@Override
+		protected int matchContent(CharSequence content, int offset) {
+			matchings++;
+			return super.matchContent(content, offset);
+		}
+
+		@Override
+		protected Object getMemoKey() {
+			return SharedBrackets.class;
+		}
+	}
+
+	@Test
+	public void testMatchReturnsEndOfLayer() {
+		Suite suite = new Suite(new Formula("[a-z]+"), new Atom("!"));
+		assertEquals(6, suite.match("--abc!def", 2));
+		assertEquals(-1, suite.match("--abc?def", 2));
+
+		Loop<Formula> loop = new Loop<Formula>(new Formula("[a-z]"), 1, 3);
+		assertEquals(3, loop.match("abcdef", 0));
+		assertEquals(-1, loop.match("123", 0));
+
+		Choice choice = new Choice(new Formula("[0-9]+"), new Formula("[a-z]+"));
+		assertEquals(3, choice.match("abc123", 0));
+		assertEquals(6, choice.match("abc123", 3));
+
+		Option<Atom> option = new Option<Atom>(new Atom("x"));
+		assertEquals(1, option.match("xy", 0));
+		assertEquals(1, option.match("xy", 1));
+	}
+
+	@Test
+	public void testMatchDoesNotChangeContent() {
+		Formula formula = new Formula("[a-z]+", "abc");
+		Suite suite = new Suite(formula, new Atom("!"));
+		suite.setContent("abc!");
+		suite.match("def!", 0);
+		assertEquals("abc!", suite.getContent());
+	}
+
+	@Test
+	public void testDescentParsesDeepRecursiveLayers() {
+		ParsingEngine engine = AbstractLayer.parsingEngine;
+		try {
+			AbstractLayer.parsingEngine = ParsingEngine.DESCENT;
+			StringBuilder builder = new StringBuilder();
+			int depth = 200;
+			for (int i = 0; i < depth; i++) {
+				builder.append("[");
+			}
+			for (int i = 0; i < depth; i++) {
+				builder.append("]");
+			}
+			String content = builder.toString() + builder.toString();
+
+			Brackets brackets = new Brackets();
+			brackets.setContent(content);
+			assertEquals(content, brackets.getContent());
+			assertEquals(2, brackets.size());
+
+			Brackets deepest = brackets;
+			for (int i = 0; i < depth; i++) {
+				deepest = deepest.get(0).get(1);
+			}
+			assertTrue(deepest.isEmpty());
+		} finally {
+			AbstractLayer.parsingEngine = engine;
+		}
+	}
+
+	@Test
+	public void testDescentSetsSameContentsThanRegex() {
+		ParsingEngine engine = AbstractLayer.parsingEngine;
+		try {
+			AbstractLayer.parsingEngine = ParsingEngine.DESCENT;
+			Formula word = new Formula("[a-z]+");
+			Loop<Formula> numbers = new Loop<Formula>(new Formula("[0-9]"));
+			Choice choice = new Choice(new Atom("?"), new Atom("!"));
+			Suite suite = new Suite(word, new Atom(":"), numbers, choice);
+
+			suite.setContent("abc:123!");
+			assertEquals("abc", word.getContent());
+			assertEquals(3, numbers.size());
+			assertEquals("2", numbers.get(1).getContent());
+			assertEquals("!", choice.getCurrent().getContent());
+		} finally {
+			AbstractLayer.parsingEngine = engine;
+		}
+	}
+
+	@Test
+	public void testDescentDoesNotBacktrack() {
+		ParsingEngine engine = AbstractLayer.parsingEngine;
+		try {
+			AbstractLayer.parsingEngine = ParsingEngine.DESCENT;
+			Suite suite = new Suite(new Formula("a+"), new Atom("a"));
+			try {
+				suite.setContent("aaa");
+				fail("No exception thrown");
+			} catch (ParsingException e) {
+			}
+
+			AbstractLayer.parsingEngine = ParsingEngine.REGEX;
+			suite.setContent("aaa");
+			assertEquals("aaa", suite.getContent());
+		} finally {
+			AbstractLayer.parsingEngine = engine;
+		}
+	}
+
+	@Test
+	public void testDescentIgnoresQuantifiers() {
+		ParsingEngine engine = AbstractLayer.parsingEngine;
+		try {
+			Option<Atom> option = new Option<Atom>(new Atom("a"),
+					Quantifier.LAZY);
+			Loop<Atom> loop = new Loop<Atom>(Quantifier.LAZY, new Atom("b"));
+			Suite suite = new Suite(option, new Formula("a*"), loop,
+					new Formula("b*"));
+
+			AbstractLayer.parsingEngine = ParsingEngine.REGEX;
+			suite.setContent("aabb");
+			assertFalse(option.isPresent());
+			assertEquals(0, loop.size());
+
+			AbstractLayer.parsingEngine = ParsingEngine.DESCENT;
+			suite.setContent("aabb");
+			assertTrue(option.isPresent());
+			assertEquals(2, loop.size());
+		} finally {
+			AbstractLayer.parsingEngine = engine;
+		}
+	}
+
+	@Test
+	public void testDescentReportsFailurePosition() {
+		ParsingEngine engine = AbstractLayer.parsingEngine;
+		try {
+			AbstractLayer.parsingEngine = ParsingEngine.DESCENT;
+			Suite suite = new Suite(new Formula("[a-z]+"), new Atom(":"),
+					new Formula("[0-9]+"));
+			try {
+				suite.setContent("abc:12x");
+				fail("No exception thrown");
+			} catch (ParsingException e) {
+				assertEquals(6, e.getStart());
+			}
+			try {
+				suite.setContent("abc;12");
+				fail("No exception thrown");
+			} catch (ParsingException e) {
+				assertEquals(3, e.getStart());
+			}
+		} finally {
+			AbstractLayer.parsingEngine = engine;
+		}
+	}
+
+	@Test
+	public void testPackratSetsSameContentsThanDescent() {
+		ParsingEngine engine = AbstractLayer.parsingEngine;
+		try {
+			AbstractLayer.parsingEngine = ParsingEngine.PACKRAT;
+			Formula word = new Formula("[a-z]+");
+			Loop<Formula> numbers = new Loop<Formula>(new Formula("[0-9]"));
+			Choice choice = new Choice(new Atom("?"), new Atom("!"));
+			Suite suite = new Suite(word, new Atom(":"), numbers, choice);
+
+			suite.setContent("abc:123!");
+			assertEquals("abc", word.getContent());
+			assertEquals(3, numbers.size());
+			assertEquals("2", numbers.get(1).getContent());
+			assertEquals("!", choice.getCurrent().getContent());
+
+			Brackets brackets = new Brackets();
+			brackets.setContent("[[][[]]][]");
+			assertEquals(2, brackets.size());
+			Brackets inner = brackets.get(0).get(1);
+			assertEquals("[][[]]", inner.getContent());
+			assertEquals("[[]]", inner.get(1).getContent());
+		} finally {
+			AbstractLayer.parsingEngine = engine;
+		}
+	}
+
+	@Test
+	public void testPackratMatchesFormulasOnceAtEachPosition() {
+		final int[] matchings = { 0 };
+		class CountedFormula extends Formula {
+			public CountedFormula() {
+				super("[a-z]+");
+			}
+
+			@Override
+			protected int matchContent(CharSequence content, int offset) {
+				matchings[0]++;
+				return super.matchContent(content, offset);
+			}
+		}
+		ParsingEngine engine = AbstractLayer.parsingEngine;
+		try {
+			Choice choice = new Choice(new Suite(new CountedFormula(),
+					new Atom("!")), new Suite(new CountedFormula(), new Atom(
+					"?")));
+
+			AbstractLayer.parsingEngine = ParsingEngine.DESCENT;
+			choice.setContent("abc?");
+			assertEquals(3, matchings[0]);
+
+			matchings[0] = 0;
+			AbstractLayer.parsingEngine = ParsingEngine.PACKRAT;
+			choice.setContent("abc?");
+			assertEquals(1, matchings[0]);
+			assertEquals("abc?", choice.getContent());
+		} finally {
+			AbstractLayer.parsingEngine = engine;
+		}
+	}
+
+	@Test
+	public void testPackratReusesMatchesOfLayersWithSameKey() {
+		StringBuilder builder = new StringBuilder();
+		int depth = 100;
+		for (int i = 0; i < depth; i++) {
+			builder.append("[");
+		}
+		for (int i = 0; i < depth; i++) {
+			builder.append("]");
+		}
+		String content = builder.toString();
+
+		ParsingEngine engine = AbstractLayer.parsingEngine;
+		try {
+			AbstractLayer.parsingEngine = ParsingEngine.DESCENT;
+			matchings = 0;
+			new SharedBrackets().setContent(content);
+			int descentMatchings = matchings;
+
+			AbstractLayer.parsingEngine = ParsingEngine.PACKRAT;
+			matchings = 0;
+			SharedBrackets brackets = new SharedBrackets();
+			brackets.setContent(content);
+			assertEquals(content, brackets.getContent());
+			assertTrue(matchings + " matchings", matchings <= 2 * depth + 2);
+			assertTrue(descentMatchings + " matchings",
+					descentMatchings > depth * depth / 2);
+		} finally {
+			AbstractLayer.parsingEngine = engine;
+		}
+	}
+
+	@Test
+	public void testMemoCapacityDoesNotChangeResult() {
+		ParsingEngine engine = AbstractLayer.parsingEngine;
+		int capacity = AbstractLayer.memoCapacity;
+		try {
+			AbstractLayer.parsingEngine = ParsingEngine.PACKRAT;
+			AbstractLayer.memoCapacity = 1;
+			Brackets brackets = new Brackets();
+			brackets.setContent("[[][[]]][]");
+			Brackets inner = brackets.get(0).get(1);
+			assertEquals("[[][[]]][]", brackets.getContent());
+			assertEquals("[[]]", inner.get(1).getContent());
+		} finally {
+			AbstractLayer.parsingEngine = engine;
+			AbstractLayer.memoCapacity = capacity;
+		}
+	}
+}
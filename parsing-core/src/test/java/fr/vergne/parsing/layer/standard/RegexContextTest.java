@@ -0,0 +1,123 @@
+package fr.vergne.parsing.layer.standard;
+
+import static org.junit.Assert.*;
+
+import java.util.Collection;
+import java.util.LinkedList;
+
+import org.junit.Test;
+
+import fr.vergne.parsing.layer.util.Any;
+
+public class RegexContextTest {
+
+	private class Recursive extends Loop<Suite> {
+		public Recursive() {
+			super(new Generator<Suite>() {
+
+				@Override
+				public Suite generates() {
+					return new Suite(new Atom("["), new Recursive(), new Atom(
+							"]"));
+				}
+			});
+		}
+	}
+
+	@Test
+	public void testRecursivityDepthStopsRecursiveLayers() {
+		int depth = AbstractLayer.recursivityDepth;
+		try {
+			AbstractLayer.recursivityDepth = 1;
+			String regex1 = new Recursive().getRegex();
+			assertTrue(regex1, regex1.contains(new Any().getRegex()));
+
+			AbstractLayer.recursivityDepth = 2;
+			String regex2 = new Recursive().getRegex();
+			assertTrue(regex2, regex2.contains(regex1));
+			assertFalse(regex2, regex2.equals(regex1));
+		} finally {
+			AbstractLayer.recursivityDepth = depth;
+		}
+	}
+
+	@Test
+	public void testContextReleasedAfterBuilding() {
+		new Recursive().getRegex();
+		RegexContext context1 = RegexContext.open();
+		context1.close();
+		RegexContext context2 = RegexContext.open();
+		context2.close();
+		assertNotSame(context1, context2);
+	}
+
+	@Test
+	public void testConcurrentBuildingsDoNotInterfere() throws Exception {
+		final String expected = new Recursive().getRegex();
+		final Collection<String> failures = new LinkedList<String>();
+		Collection<Thread> threads = new LinkedList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			Thread thread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int j = 0; j < 20; j++) {
+						String regex = new Recursive().getRegex();
+						if (!regex.equals(expected)) {
+							synchronized (failures) {
+								failures.add(regex);
+							}
+						} else {
+							// as expected
+						}
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(failures.size() + " wrong regex built", failures.isEmpty());
+	}
+
+	@Test
+	public void testRegexBuiltOnlyOnce() {
+		final int[] buildings = { 0 };
+		Formula formula = new Formula("[a-z]+") {
+			@Override
+			protected String buildRegex() {
+				buildings[0]++;
+				return super.buildRegex();
+			}
+		};
+		Suite suite = new Suite(formula, new Atom("!"));
+
+		String regex = suite.getRegex();
+		assertEquals(1, buildings[0]);
+		assertSame(regex, suite.getRegex());
+		assertEquals("[a-z]+", formula.getRegex());
+		assertEquals(1, buildings[0]);
+	}
+
+	@Test
+	public void testClonesReuseBuiltRegex() {
+		Suite suite = new Suite(new Formula("[a-z]+"), new Atom("!"));
+		String regex = suite.getRegex();
+		assertSame(regex, ((Suite) suite.clone()).getRegex());
+	}
+
+	@Test
+	public void testRecursiveRegexIndependentOfPreviousBuildings() {
+		Recursive recursive = new Recursive();
+		String regex = recursive.getRegex();
+		assertEquals(regex, recursive.getRegex());
+		assertEquals(regex, new Recursive().getRegex());
+
+		Suite suite = new Suite(new Atom("["), recursive, new Atom("]"));
+		Recursive fresh = new Recursive();
+		Suite freshSuite = new Suite(new Atom("["), fresh, new Atom("]"));
+		assertEquals(freshSuite.getRegex(), suite.getRegex());
+	}
+}
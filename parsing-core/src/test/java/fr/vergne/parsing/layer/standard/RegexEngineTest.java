@@ -0,0 +1,270 @@
+package fr.vergne.parsing.layer.standard;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import fr.vergne.parsing.layer.exception.ParsingException;
+import fr.vergne.parsing.layer.util.Csv;
+import fr.vergne.parsing.layer.util.Newline;
+import fr.vergne.parsing.regex.Regex;
+import fr.vergne.parsing.regex.RegexEngine;
+
+public class RegexEngineTest {
+
+	private class CountingEngine implements RegexEngine {
+		private int calls = 0;
+
+		@Override
+		public Regex compile(String regex) {
+			final Regex delegate = RegexEngine.PATTERN.compile(regex);
+			return new Regex() {
+
+				@Override
+				public String getRegex() {
+					return delegate.getRegex();
+				}
+
+				@Override
+				public int groupCount() {
+					return delegate.groupCount();
+				}
+
+				@Override
+				public boolean matches(CharSequence content) {
+					calls++;
+					return delegate.matches(content);
+				}
+
+				@Override
+				public int lookingAt(CharSequence content, int offset) {
+					calls++;
+					return delegate.lookingAt(content, offset);
+				}
+
+				@Override
+				public int[] match(CharSequence content, int offset,
+						boolean isToEnd) {
+					calls++;
+					return delegate.match(content, offset, isToEnd);
+				}
+			};
+		}
+	}
+
+	@Test
+	public void testLayerUsesItsOwnEngine() {
+		CountingEngine engine = new CountingEngine();
+		Formula formula = new Formula("[a-z]+");
+		formula.setRegexEngine(engine);
+		assertSame(engine, formula.getRegexEngine());
+
+		formula.setContent("abc");
+		assertTrue(engine.calls > 0);
+
+		int calls = engine.calls;
+		assertEquals(3, formula.match("abc!", 0));
+		assertTrue(engine.calls > calls);
+
+		formula.setRegexEngine(null);
+		assertSame(AbstractLayer.regexEngine, formula.getRegexEngine());
+		calls = engine.calls;
+		formula.setContent("def");
+		assertEquals(calls, engine.calls);
+	}
+
+	@Test
+	public void testSubLayersUseEngineOfRoot() {
+		for (ParsingEngine parsingEngine : ParsingEngine.values()) {
+			ParsingEngine previous = AbstractLayer.parsingEngine;
+			try {
+				AbstractLayer.parsingEngine = parsingEngine;
+				CountingEngine engine = new CountingEngine();
+				Loop<Formula> loop = new Loop<Formula>(new Formula("[a-z]+"));
+				Suite suite = new Suite(new Atom("("), loop, new Atom(")"));
+				suite.setRegexEngine(engine);
+
+				suite.setContent("(abc)");
+				assertTrue(parsingEngine.toString(), engine.calls > 0);
+
+				int calls = engine.calls;
+				loop.setContent("def");
+				assertEquals(parsingEngine.toString(), calls, engine.calls);
+			} finally {
+				AbstractLayer.parsingEngine = previous;
+			}
+		}
+	}
+
+	@Test
+	public void testCloneUsesSameEngine() {
+		CountingEngine engine = new CountingEngine();
+		Formula formula = new Formula("[a-z]+");
+		formula.setRegexEngine(engine);
+		Formula clone = (Formula) formula.clone();
+		assertSame(engine, clone.getRegexEngine());
+	}
+
+	@Test
+	public void testUnsupportedRegexUsesPattern() {
+		RegexEngine engine = AbstractLayer.regexEngine;
+		try {
+			AbstractLayer.regexEngine = RegexEngine.AUTOMATON;
+			Newline newline = new Newline();
+			newline.setContent("\r\n");
+			assertEquals("\r\n", newline.getContent());
+			try {
+				newline.setContent("\r\r");
+				fail("No exception thrown");
+			} catch (ParsingException e) {
+			}
+		} finally {
+			AbstractLayer.regexEngine = engine;
+		}
+	}
+
+	@Test
+	public void testBigCsvParsedSameWayWithAllEngines() {
+		StringBuilder builder = new StringBuilder("H1,H2,H3,H4");
+		for (int i = 0; i < 10000; i++) {
+			builder.append("\nA" + i + ",B" + i + ",C" + i + ",D" + i);
+		}
+		String content = builder.toString();
+
+		RegexEngine previous = AbstractLayer.regexEngine;
+		try {
+			for (RegexEngine engine : new RegexEngine[] {
+					RegexEngine.PATTERN, RegexEngine.AUTOMATON }) {
+				AbstractLayer.regexEngine = engine;
+				Csv csv = new Csv();
+				csv.setContent(content);
+				assertEquals(engine.toString(), 10000, csv.getRecordsCount());
+				assertEquals(engine.toString(), "C1234", csv.getRecord(1234)
+						.get(2).getContent());
+				assertEquals(engine.toString(), content, csv.getContent());
+			}
+		} finally {
+			AbstractLayer.regexEngine = previous;
+		}
+	}
+
+	@Test
+	public void testCloneDoesNotMatchAgain() {
+		CountingEngine engine = new CountingEngine();
+		Loop<Suite> loop = new Loop<Suite>(new Suite(new Formula("[a-z]+"),
+				new Atom("="), new Formula("[0-9]+"), new Atom(";")));
+		loop.setRegexEngine(engine);
+		loop.setContent("a=1;bc=23;def=456;");
+
+		int calls = engine.calls;
+		@SuppressWarnings("unchecked")
+		Loop<Suite> clone = (Loop<Suite>) loop.clone();
+		assertEquals(calls, engine.calls);
+		assertEquals("a=1;bc=23;def=456;", clone.getContent());
+		assertEquals("23", clone.get(1).<Formula> get(2).getContent());
+
+		clone.get(1).<Formula> get(2).setContent("7");
+		assertEquals("a=1;bc=7;def=456;", clone.getContent());
+		assertEquals("a=1;bc=23;def=456;", loop.getContent());
+	}
+
+	@Test
+	public void testCachesSizesCountCompiledRegexes() {
+		AbstractLayer.clearCaches();
+		assertEquals(0, AbstractLayer.getTotalCacheSize());
+
+		AbstractLayer.compile("a+");
+		AbstractLayer.compile("b+");
+		AbstractLayer.compile("a+");
+		assertEquals(2, AbstractLayer.getPatternsCacheSize());
+		assertEquals(0, AbstractLayer.getRegexesCacheSize(RegexEngine.PATTERN));
+		assertEquals(2, AbstractLayer.getTotalCacheSize());
+
+		AbstractLayer.compile(RegexEngine.PATTERN, "a+");
+		AbstractLayer.compile(RegexEngine.PATTERN, "c+");
+		assertEquals(3, AbstractLayer.getPatternsCacheSize());
+		assertEquals(2, AbstractLayer.getRegexesCacheSize(RegexEngine.PATTERN));
+		assertEquals(5, AbstractLayer.getTotalCacheSize());
+
+		AbstractLayer.compile(RegexEngine.AUTOMATON, "a+");
+		AbstractLayer.compile(RegexEngine.AUTOMATON, "d+");
+		AbstractLayer.compile(RegexEngine.AUTOMATON, "d+");
+		assertEquals(3, AbstractLayer.getPatternsCacheSize());
+		assertEquals(2,
+				AbstractLayer.getRegexesCacheSize(RegexEngine.AUTOMATON));
+		assertEquals(7, AbstractLayer.getTotalCacheSize());
+
+		AbstractLayer.clearCaches();
+		assertEquals(0, AbstractLayer.getTotalCacheSize());
+	}
+
+	@Test
+	public void testCachesClearedWhenFull() {
+		AbstractLayer.clearCaches();
+		int limit = AbstractLayer.PATTERNS_LIMIT;
+		for (int i = 0; i < limit; i++) {
+			AbstractLayer.compile(RegexEngine.PATTERN, "x" + i);
+			AbstractLayer.compile(RegexEngine.AUTOMATON, "x" + i);
+		}
+		assertEquals(limit, AbstractLayer.getPatternsCacheSize());
+		assertEquals(limit,
+				AbstractLayer.getRegexesCacheSize(RegexEngine.PATTERN));
+		assertEquals(limit,
+				AbstractLayer.getRegexesCacheSize(RegexEngine.AUTOMATON));
+		assertEquals(3 * limit, AbstractLayer.getTotalCacheSize());
+
+		AbstractLayer.compile(RegexEngine.PATTERN, "y");
+		assertEquals(1, AbstractLayer.getPatternsCacheSize());
+		assertEquals(1, AbstractLayer.getRegexesCacheSize(RegexEngine.PATTERN));
+		assertEquals(limit,
+				AbstractLayer.getRegexesCacheSize(RegexEngine.AUTOMATON));
+
+		AbstractLayer.compile(RegexEngine.AUTOMATON, "y");
+		assertEquals(1, AbstractLayer.getRegexesCacheSize(RegexEngine.AUTOMATON));
+		assertEquals(3, AbstractLayer.getTotalCacheSize());
+		AbstractLayer.clearCaches();
+	}
+
+	@Test
+	public void testConcurrentCompilationsShareTheSameRegex()
+			throws InterruptedException {
+		AbstractLayer.clearCaches();
+		final RegexEngine engine = new CountingEngine();
+		final int regexCount = 100;
+		final Regex[][] results = new Regex[8][regexCount];
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[results.length];
+		for (int t = 0; t < threads.length; t++) {
+			final Regex[] compiled = results[t];
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+					for (int i = 0; i < regexCount; i++) {
+						compiled[i] = AbstractLayer.compile(engine, "x" + i);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(regexCount, AbstractLayer.getRegexesCacheSize(engine));
+		for (int i = 0; i < regexCount; i++) {
+			Regex regex = AbstractLayer.compile(engine, "x" + i);
+			for (Regex[] compiled : results) {
+				assertSame(regex, compiled[i]);
+			}
+		}
+		AbstractLayer.clearCaches();
+	}
+}
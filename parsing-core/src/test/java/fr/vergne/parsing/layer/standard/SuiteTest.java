@@ -2,6 +2,8 @@ package fr.vergne.parsing.layer.standard;
 
 import static org.junit.Assert.*;
 
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
@@ -11,10 +13,14 @@ import java.util.Map;
 
 import org.junit.Test;
 
+import fr.vergne.parsing.layer.ComposableLayer;
+import fr.vergne.parsing.layer.ContentChange;
 import fr.vergne.parsing.layer.Layer;
+import fr.vergne.parsing.layer.Layer.ChangeListener;
 import fr.vergne.parsing.layer.Layer.ContentListener;
 import fr.vergne.parsing.layer.LayerTest;
 import fr.vergne.parsing.layer.exception.ParsingException;
+import fr.vergne.parsing.layer.util.ContentInputStream;
 
 public class SuiteTest extends LayerTest {
 
@@ -466,6 +472,48 @@ public class SuiteTest extends LayerTest {
 		assertSame(dot, suite.get(5));
 	}
 
+	@Test
+	public void testSuccessiveModificationsNotifyRightPositions() {
+		Formula first = new Formula("[a-z]+");
+		Formula second = new Formula("[0-9]+");
+		Suite suite = new Suite(first, new Atom(";"), second);
+		suite.setContent("abc;123");
+		final List<Integer> changes = new LinkedList<Integer>();
+		suite.addChangeListener(new ChangeListener() {
+
+			@Override
+			public void contentChanged(ContentChange change) {
+				changes.add(change.getOffset());
+				changes.add(change.getOldLength());
+				changes.add(change.getNewLength());
+			}
+		});
+
+		second.setContent("4");
+		first.setContent("a");
+		second.setContent("56");
+		first.setContent("bcdef");
+		second.setContent("7");
+		assertEquals("bcdef;7", suite.getContent());
+		assertEquals(Arrays.asList(4, 3, 1, 0, 3, 1, 2, 1, 2, 0, 1, 5, 6, 2,
+				1), changes);
+
+		suite.setContent("z;0");
+		changes.clear();
+		second.setContent("89");
+		assertEquals(Arrays.asList(2, 1, 2), changes);
+	}
+
+	@Test
+	public void testContentNotKeptAfterRequest() {
+		Suite suite = new Suite(new Formula("[a-z]+"), new Atom(";"));
+		suite.setContent("abc;");
+		WeakReference<String> reference = new WeakReference<String>(
+				suite.getContent());
+		assertReleased(reference);
+		assertEquals("abc;", suite.getContent());
+	}
+
 	@Test
 	public void testInnerContentUpdateOfFilledSuiteNotifiesListeners() {
 		Formula word1 = new Formula("[a-zA-Z]+");
@@ -560,4 +608,179 @@ public class SuiteTest extends LayerTest {
 		assertEquals("?", suite.get(1).getContent());
 		assertEquals("def", suite.get(2).getContent());
 	}
+
+	@Test
+	public void testCachedContentUpdatedOnDeepModification() {
+		Formula word = new Formula("[a-z]+");
+		Suite inner = new Suite(word, new Atom("!"));
+		Suite suite = new Suite(new Atom("<"), inner, new Atom(">"));
+		suite.setContent("<abc!>");
+		assertEquals("<abc!>", suite.getContent());
+		assertEquals(6, suite.getContentLength());
+
+		word.setContent("defgh");
+		assertEquals("<defgh!>", suite.getContent());
+		assertEquals(8, suite.getContentLength());
+		assertEquals("defgh!", inner.getContent());
+	}
+
+	@Test
+	public void testFailureOnLongContentLocated() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			builder.append("abc;");
+		}
+		int position = builder.length();
+		builder.append("ab!;abc;");
+		Loop<Suite> records = new Loop<Suite>(new Suite(
+				new Formula("[a-z]+"), new Atom(";")));
+		Suite suite = new Suite(records, new Atom("END"));
+
+		try {
+			suite.setContent(builder + "END");
+			fail("Exception not thrown.");
+		} catch (ParsingException e) {
+			assertEquals(position + 2, e.getStart());
+		}
+
+		builder.setLength(position);
+		try {
+			suite.setContent(builder + "ENX");
+			fail("Exception not thrown.");
+		} catch (ParsingException e) {
+			assertEquals(position, e.getStart());
+		}
+	}
+
+	@Test
+	public void testLazyMaterializationFillsRequestedItemsOnly() {
+		for (ParsingEngine engine : ParsingEngine.values()) {
+			ParsingEngine previousEngine = AbstractLayer.parsingEngine;
+			boolean previousLazy = AbstractLayer.lazyMaterialization;
+			try {
+				AbstractLayer.parsingEngine = engine;
+				AbstractLayer.lazyMaterialization = true;
+				Formula name = new Formula("[a-z]+");
+				Formula value = new Formula("[0-9]+");
+				Suite suite = new Suite(name, new Atom("="), value);
+				suite.setContent("abc=123");
+				assertNull(engine.toString(), name.getContent());
+				assertEquals(engine.toString(), "abc=123", suite.getContent());
+				assertEquals(engine.toString(), 7, suite.getContentLength());
+				assertNull(engine.toString(), name.getContent());
+
+				assertEquals(engine.toString(), "123", suite.<Formula> get(2)
+						.getContent());
+				assertNull(engine.toString(), name.getContent());
+
+				suite.<Formula> get(2).setContent("45");
+				assertEquals(engine.toString(), "abc=45", suite.getContent());
+				assertEquals(engine.toString(), "abc", suite.<Formula> get(0)
+						.getContent());
+
+				try {
+					suite.setContent("abc=1x");
+					fail("No exception thrown");
+				} catch (ParsingException e) {
+					assertEquals(engine.toString(),
+							engine == ParsingEngine.REGEX ? 4 : 5, e.getStart());
+				}
+			} finally {
+				AbstractLayer.parsingEngine = previousEngine;
+				AbstractLayer.lazyMaterialization = previousLazy;
+			}
+		}
+	}
+
+	@Test
+	public void testLayerNotComposableUsedAsSubLayer() {
+		for (ParsingEngine engine : ParsingEngine.values()) {
+			ParsingEngine previousEngine = AbstractLayer.parsingEngine;
+			try {
+				AbstractLayer.parsingEngine = engine;
+				PlainLayer number = new PlainLayer("[0-9]+");
+				Suite suite = new Suite(new Formula("[a-z]+"), new Atom("="),
+						number);
+				suite.setContent("ab=12");
+				assertEquals(engine.toString(), "12", number.getContent());
+				assertEquals(engine.toString(), 5, suite.getContentLength());
+
+				final Collection<ContentChange> changes = new LinkedList<ContentChange>();
+				suite.addChangeListener(new ChangeListener() {
+
+					@Override
+					public void contentChanged(ContentChange change) {
+						changes.add(change);
+					}
+				});
+				number.setContent("345");
+				assertEquals(engine.toString(), "ab=345", suite.getContent());
+				assertEquals(engine.toString(), 1, changes.size());
+				ContentChange change = changes.iterator().next();
+				assertEquals(engine.toString(), 3, change.getOffset());
+				assertEquals(engine.toString(), 2, change.getOldLength());
+				assertEquals(engine.toString(), 3, change.getNewLength());
+
+				try {
+					suite.setContent("ab=cd");
+					fail("No exception thrown");
+				} catch (ParsingException e) {
+				}
+			} finally {
+				AbstractLayer.parsingEngine = previousEngine;
+			}
+		}
+	}
+
+	/**
+	 * A {@link Layer} implementing only the methods of {@link Layer}, like the
+	 * implementations written before {@link ComposableLayer}.
+	 */
+	private static class PlainLayer implements Layer {
+
+		private final String regex;
+		private final Collection<ContentListener> listeners = new LinkedList<ContentListener>();
+		private String content;
+
+		public PlainLayer(String regex) {
+			this.regex = regex;
+		}
+
+		@Override
+		public String getRegex() {
+			return regex;
+		}
+
+		@Override
+		public void setContent(String content) {
+			if (content.matches(regex)) {
+				this.content = content;
+				for (ContentListener listener : listeners) {
+					listener.contentSet(content);
+				}
+			} else {
+				throw new ParsingException(regex, content);
+			}
+		}
+
+		@Override
+		public String getContent() {
+			return content;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return new ContentInputStream(content);
+		}
+
+		@Override
+		public void addContentListener(ContentListener listener) {
+			listeners.add(listener);
+		}
+
+		@Override
+		public void removeContentListener(ContentListener listener) {
+			listeners.remove(listener);
+		}
+	}
 }
@@ -0,0 +1,105 @@
+package fr.vergne.parsing.layer.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import fr.vergne.parsing.layer.standard.Atom;
+import fr.vergne.parsing.layer.standard.Formula;
+import fr.vergne.parsing.layer.standard.Loop;
+import fr.vergne.parsing.layer.standard.Suite;
+
+public class CompositeInputStreamTest {
+
+	private CompositeInputStream createStream() {
+		return new CompositeInputStream(Arrays.asList(new ContentInputStream(
+				"abc"), new ContentInputStream(""), new ByteArrayInputStream(
+				"def".getBytes()), new CompositeInputStream(Arrays.asList(
+				new ContentInputStream("gh"), new ContentInputStream("i")))));
+	}
+
+	@Test
+	public void testSingleByteRead() throws IOException {
+		InputStream stream = createStream();
+		StringBuilder builder = new StringBuilder();
+		int character;
+		while ((character = stream.read()) != -1) {
+			builder.append((char) character);
+		}
+		stream.close();
+		assertEquals("abcdefghi", builder.toString());
+	}
+
+	@Test
+	public void testBulkRead() throws IOException {
+		InputStream stream = createStream();
+		byte[] buffer = new byte[20];
+		assertEquals(5, stream.read(buffer, 2, 5));
+		assertEquals("abcde", new String(buffer, 2, 5));
+		assertEquals(4, stream.read(buffer, 0, 20));
+		assertEquals("fghi", new String(buffer, 0, 4));
+		assertEquals(-1, stream.read(buffer, 0, 20));
+		assertEquals(0, stream.read(buffer, 0, 0));
+		stream.close();
+	}
+
+	@Test
+	public void testAvailable() throws IOException {
+		InputStream stream = createStream();
+		assertEquals(9, stream.available());
+		stream.read(new byte[4]);
+		assertEquals(5, stream.available());
+		stream.close();
+		assertEquals(0, stream.available());
+	}
+
+	@Test
+	public void testSkip() throws IOException {
+		InputStream stream = createStream();
+		assertEquals(4, stream.skip(4));
+		assertEquals('e', stream.read());
+		assertEquals(4, stream.skip(10));
+		assertEquals(-1, stream.read());
+		stream.close();
+	}
+
+	@Test
+	public void testTransferTo() throws IOException {
+		CompositeInputStream stream = createStream();
+		stream.read();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(8, stream.transferTo(out));
+		assertEquals("bcdefghi", out.toString());
+		assertEquals(-1, stream.read());
+		stream.close();
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		CompositeInputStream stream = new CompositeInputStream(
+				Collections.<InputStream> emptyList());
+		assertEquals(-1, stream.read());
+		assertEquals(-1, stream.read(new byte[5], 0, 5));
+		assertEquals(0, stream.available());
+		stream.close();
+	}
+
+	@Test
+	public void testLayersTransferTo() throws IOException {
+		String content = "Σ[abc][δδ][]ê";
+		Suite suite = new Suite(new Atom("Σ"), new Loop<Formula>(new Formula(
+				"\\[[^\\]]*\\]")), new Atom("ê"));
+		suite.setContent(content);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		((CompositeInputStream) suite.getInputStream()).transferTo(out);
+		assertEquals(content, out.toString("UTF-8"));
+	}
+}
@@ -144,6 +144,23 @@ public class CsvTest {
 				"src/test/resources/bigFile.csv")));
 	}
 
+	@Test
+	public void testBigFileRecordsIteration() throws IOException {
+		Csv csv = new Csv('\t');
+		csv.setContent(FileUtils.readFileToString(new File(
+				"src/test/resources/bigFile.csv")));
+
+		int count = 0;
+		for (Record record : csv.getRecords()) {
+			assertNotNull(record.get(0).getContent());
+			count++;
+		}
+		assertEquals(csv.getRecordsCount(), count);
+		for (int index = count - 1; index >= 0; index--) {
+			assertNotNull(csv.getRecord(index));
+		}
+	}
+
 	@Test
 	public void testInputStreamPreservesSpecialCharacters() throws IOException {
 		char sep = '\t';
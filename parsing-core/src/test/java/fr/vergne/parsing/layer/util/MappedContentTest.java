@@ -0,0 +1,215 @@
+package fr.vergne.parsing.layer.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import org.junit.Test;
+
+import fr.vergne.parsing.layer.exception.ParsingException;
+import fr.vergne.parsing.layer.standard.Atom;
+import fr.vergne.parsing.layer.standard.Formula;
+import fr.vergne.parsing.layer.standard.Loop;
+import fr.vergne.parsing.layer.standard.Suite;
+
+public class MappedContentTest {
+
+	private File write(String content, String charset) throws IOException {
+		File file = File.createTempFile("mapped", ".txt");
+		file.deleteOnExit();
+		FileOutputStream stream = new FileOutputStream(file);
+		try {
+			stream.write(content.getBytes(charset));
+		} finally {
+			stream.close();
+		}
+		return file;
+	}
+
+	private void assertSameContent(String expected, CharSequence actual) {
+		assertEquals(expected.length(), actual.length());
+		for (int i = 0; i < expected.length(); i++) {
+			assertEquals("At " + i, expected.charAt(i), actual.charAt(i));
+		}
+		assertEquals(expected, actual.toString());
+	}
+
+	@Test
+	public void testAsciiContent() throws IOException {
+		String content = "abc\ndef\n";
+		MappedContent mapped = MappedContent.map(write(content, "UTF-8"));
+		assertSameContent(content, mapped);
+		assertSameContent("c\nd", mapped.subSequence(2, 5));
+		assertSameContent("\n", mapped.subSequence(2, 5).subSequence(1, 2));
+	}
+
+	@Test
+	public void testLatin1Content() throws IOException {
+		String content = "d\u00E9j\u00E0 vu";
+		MappedContent mapped = MappedContent.map(
+				write(content, "ISO-8859-1"), Charset.forName("ISO-8859-1"));
+		assertSameContent(content, mapped);
+	}
+
+	@Test
+	public void testUtf8Content() throws IOException {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 50000; i++) {
+			builder.append("a\u00E9\u20AC\uD83D\uDE00;");
+		}
+		String content = builder.toString();
+		MappedContent mapped = MappedContent.map(write(content, "UTF-8"));
+		assertSameContent(content, mapped);
+		assertSameContent(content.substring(65530, 65600),
+				mapped.subSequence(65530, 65600));
+
+		for (int i = content.length() - 1; i >= 0; i -= 997) {
+			assertEquals("At " + i, content.charAt(i), mapped.charAt(i));
+		}
+	}
+
+	@Test
+	public void testUtf8ContentReadAroundBlocks() throws IOException {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			builder.append("\u00E9\uD83D\uDE00" + i);
+		}
+		String content = builder.toString();
+		MappedContent mapped = MappedContent.map(write(content, "UTF-8"));
+		Random random = new Random(0);
+		for (int i = 0; i < 10000; i++) {
+			int index = random.nextInt(content.length());
+			assertEquals("At " + index, content.charAt(index),
+					mapped.charAt(index));
+		}
+		for (int i = 0; i < 100; i++) {
+			for (int index : new int[] { 4090, 4100, 0, 65530, 65540,
+					content.length() - 1 }) {
+				assertEquals("At " + index, content.charAt(index),
+						mapped.charAt(index));
+			}
+		}
+	}
+
+	@Test
+	public void testInvalidUtf8ContentReplaced() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (int i = 0; i < 30000; i++) {
+			bytes.write(new byte[] { 'a', (byte) 0xC3, (byte) 0xA9, (byte) 0x80,
+					(byte) 0xC0, (byte) 0xAF, (byte) 0xED, (byte) 0xA0,
+					(byte) 0x80, (byte) 0xE2, (byte) 0x82 });
+		}
+		File file = File.createTempFile("mapped", ".txt");
+		file.deleteOnExit();
+		FileOutputStream stream = new FileOutputStream(file);
+		try {
+			bytes.writeTo(stream);
+		} finally {
+			stream.close();
+		}
+		String content = new String(bytes.toByteArray(), "UTF-8");
+		assertSameContent(content, MappedContent.map(file));
+	}
+
+	@Test
+	public void testUtf8ContentReadByConcurrentThreads() throws Exception {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			builder.append("\u00E9" + i);
+		}
+		final String content = builder.toString();
+		final MappedContent mapped = MappedContent.map(write(content,
+				"UTF-8"));
+		final List<Throwable> errors = new Vector<Throwable>();
+		List<Thread> threads = new LinkedList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final int seed = t;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						Random random = new Random(seed);
+						for (int i = 0; i < 10000; i++) {
+							int index = random.nextInt(content.length());
+							assertEquals(content.charAt(index),
+									mapped.charAt(index));
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(Collections.emptyList(), errors);
+	}
+
+	@Test
+	public void testEmptyFile() throws IOException {
+		MappedContent mapped = MappedContent.map(write("", "UTF-8"));
+		assertEquals(0, mapped.length());
+		assertEquals("", mapped.toString());
+	}
+
+	@Test
+	public void testUnsupportedEncodingRejected() throws IOException {
+		try {
+			MappedContent.map(write("abc", "UTF-16"), Charset.forName("UTF-16"));
+			fail("No exception thrown");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testLoopParsesMappedContent() throws IOException {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			builder.append("line" + i + ";" + (i % 7) + "\n");
+		}
+		MappedContent mapped = MappedContent.map(write(builder.toString(),
+				"UTF-8"));
+		Loop<Suite> loop = new Loop<Suite>(new Suite(new Formula("[a-z0-9]+"),
+				new Atom(";"), new Formula("[0-9]+"), new Atom("\n")));
+		final List<String> names = new LinkedList<String>();
+		int count = loop.parse(mapped, new Loop.Consumer<Suite>() {
+
+			@Override
+			public void consume(Suite occurrence) {
+				if (names.size() < 3) {
+					names.add(occurrence.get(0).getContent());
+				} else {
+					// enough names checked
+				}
+			}
+		});
+		assertEquals(100000, count);
+		assertEquals("[line0, line1, line2]", names.toString());
+
+		mapped = MappedContent.map(write("line0;1\nline1;x\n", "UTF-8"));
+		try {
+			loop.parse(mapped, new Loop.Consumer<Suite>() {
+
+				@Override
+				public void consume(Suite occurrence) {
+				}
+			});
+			fail("No exception thrown");
+		} catch (ParsingException e) {
+			assertEquals("line1;x\n", e.getContent());
+			assertEquals(6, e.getStart());
+		}
+	}
+}
@@ -12,7 +12,9 @@ import java.util.Map;
 
 import org.junit.Test;
 
+import fr.vergne.parsing.layer.ContentChange;
 import fr.vergne.parsing.layer.Layer;
+import fr.vergne.parsing.layer.Layer.ChangeListener;
 import fr.vergne.parsing.layer.Layer.ContentListener;
 import fr.vergne.parsing.layer.LayerTest;
 import fr.vergne.parsing.layer.exception.ParsingException;
@@ -1496,4 +1498,40 @@ public class SeparatedLoopTest extends LayerTest {
 		assertEquals(++operationCounter, values.size());
 		assertEquals(loop.getContent(), values.getFirst());
 	}
+
+	@Test
+	public void testChangesAllowToFollowContent() {
+		SeparatedLoop<Formula, Atom> loop = new SeparatedLoop<Formula, Atom>(
+				new Formula("[a-z]+"), new Atom(","));
+		loop.setContent("a,bc,def");
+		final StringBuilder mirror = new StringBuilder(loop.getContent());
+		final int[] notifications = { 0 };
+		loop.addChangeListener(new ChangeListener() {
+
+			@Override
+			public void contentChanged(ContentChange change) {
+				notifications[0]++;
+				mirror.replace(change.getOffset(), change.getOffset()
+						+ change.getOldLength(), change.getNewContent());
+			}
+		});
+
+		loop.get(1).setContent("xyz");
+		assertEquals(loop.getContent(), mirror.toString());
+		loop.add(0, "first");
+		assertEquals(loop.getContent(), mirror.toString());
+		loop.add(2, "middle");
+		assertEquals(loop.getContent(), mirror.toString());
+		loop.remove(0);
+		assertEquals(loop.getContent(), mirror.toString());
+		loop.remove(2);
+		assertEquals(loop.getContent(), mirror.toString());
+		assertEquals(5, notifications[0]);
+
+		loop.clear();
+		assertEquals("", mirror.toString());
+		loop.addAllContents(0, Arrays.asList("g", "h", "i"));
+		assertEquals(loop.getContent(), mirror.toString());
+		assertEquals(7, notifications[0]);
+	}
 }
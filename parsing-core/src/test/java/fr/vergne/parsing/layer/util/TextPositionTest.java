@@ -0,0 +1,94 @@
+package fr.vergne.parsing.layer.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TextPositionTest {
+
+	@Test
+	public void testLinesAndColumns() {
+		TextPosition position = new TextPosition("abc\ndef\n\nghi");
+		assertEquals(4, position.getLinesCount());
+		assertEquals(1, position.getLine(0));
+		assertEquals(1, position.getColumn(0));
+		assertEquals(1, position.getLine(3));
+		assertEquals(4, position.getColumn(3));
+		assertEquals(2, position.getLine(4));
+		assertEquals(1, position.getColumn(4));
+		assertEquals(3, position.getLine(8));
+		assertEquals(1, position.getColumn(8));
+		assertEquals(4, position.getLine(12));
+		assertEquals(4, position.getColumn(12));
+		assertEquals("(4,2)", position.format(10));
+	}
+
+	@Test
+	public void testTerminators() {
+		String content = "a\r\nb\n\rc\rd\n\r\ne";
+		TextPosition position = new TextPosition(content);
+		assertEquals(6, position.getLinesCount());
+		assertEquals(0, position.getLineStart(1));
+		assertEquals(3, position.getLineStart(2));
+		assertEquals(6, position.getLineStart(3));
+		assertEquals(8, position.getLineStart(4));
+		assertEquals(11, position.getLineStart(5));
+		assertEquals(12, position.getLineStart(6));
+		for (int offset = 0; offset <= content.length(); offset++) {
+			assertEquals("At " + offset, formatWithRegex(content, offset),
+					position.format(offset));
+		}
+	}
+
+	@Test
+	public void testSameFormatThanParsingException() {
+		String content = "012345678\n012345678\r\n0123\r4567\n\r89";
+		TextPosition position = new TextPosition(content);
+		for (int offset = 0; offset <= content.length(); offset++) {
+			assertEquals("At " + offset, formatWithRegex(content, offset),
+					position.format(offset));
+		}
+	}
+
+	@Test
+	public void testInvalidPositions() {
+		TextPosition position = new TextPosition("a\nb");
+		try {
+			position.getLine(4);
+			fail("No exception thrown");
+		} catch (StringIndexOutOfBoundsException e) {
+		}
+		try {
+			position.getColumn(-1);
+			fail("No exception thrown");
+		} catch (StringIndexOutOfBoundsException e) {
+		}
+		try {
+			position.getLineStart(3);
+			fail("No exception thrown");
+		} catch (IndexOutOfBoundsException e) {
+		}
+	}
+
+	@Test
+	public void testBigContent() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 1000000; i++) {
+			builder.append("line\n");
+		}
+		TextPosition position = new TextPosition(builder);
+		assertEquals(1000001, position.getLinesCount());
+		for (int i = 0; i < 1000000; i += 997) {
+			assertEquals(i + 1, position.getLine(5 * i + 2));
+			assertEquals(3, position.getColumn(5 * i + 2));
+		}
+	}
+
+	private String formatWithRegex(String content, int start) {
+		String prefix = content.substring(0, start);
+		prefix = prefix.replaceAll("(\n\r?)|(\r\n?)", "\n");
+		int line = prefix.replaceAll("[^\n]", "").length() + 1;
+		int position = prefix.replaceAll(".*\n", "").length() + 1;
+		return "(" + line + "," + position + ")";
+	}
+}
@@ -0,0 +1,197 @@
+package fr.vergne.parsing.regex;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class AutomatonTest {
+
+	private static final String[] REGEXES = { "", "a", "abc", "a*", "a+",
+			"a?", "a*?", "a+?", "a??", "a*+", "a++", "a?+", "a{2}", "a{2,}",
+			"a{1,3}", "a{1,3}?", "a{1,3}+", "a|b", "a|ab", "ab|a", "(a|ab)(c|bcd)",
+			"(a*)(a*)", "(a*?)(a*)", "(a)|b", "(a|b)*", "(?:a|b)*c",
+			"(?>a|ab)c", "(?:a+)+b", "[a-c]+", "[^a-c]+", "[abc-]", "[-a]",
+			"[\\d\\s]+", "\\w+", "\\W", "\\D+", "\\S+", ".*", ".+?b", "[\\s\\S]*",
+			"^a", "a$", "\\Aa", "a\\z", "a\\Z", "\\Qa.b\\E", "\\Qa*\\E*",
+			"x\\Q\\E*", "\\.", "\\t\\n", "\\x41", "\\u0041", "\\0101",
+			"[^,\\n\\r]++", "(?:[^,\\n\\r]++)(?:,(?:[^,\\n\\r]++))*+",
+			"\\s*<node(?:\\s+[a-z]+=\"[^\"]*\")*\\s*/>", "(a(b)?)+", "((a)|b)+",
+			"(?:ab|a)*?b", "(a|ab)*c", "[\\w.]+@\\w+", "(?:b{1,}){2}+",
+			"a(?:b+){2}+", "[a](?:(?:a)[ab]{2}|a){2}+", "(?:a|b){1,2}+b",
+			"(?>a+|b)+" };
+	private static final String[] CONTENTS = { "", "a", "aa", "aaa", "aaaa",
+			"b", "ab", "abc", "abcd", "abbcd", "aab", "ba", "cab", "a.b", "a*",
+			"a**", "x", "A", "1 2", "foo_1", "a\n", "a\r\n", "a\n\n", "\n",
+			"a ", "a,b,c", "a,,b", "ab\nc,d",
+			"  <node a=\"1\" bb=\"x y\"/>", "ababab", "\uD83D\uDE00a", "bb",
+			"abb", "aaaab" };
+
+	@Test
+	public void testSameMatchesThanPattern() {
+		for (String regex : REGEXES) {
+			assertSameMatches(regex, Automaton.compile(regex),
+					Arrays.asList(CONTENTS));
+		}
+	}
+
+	@Test
+	public void testSameMatchesThanPatternOnGeneratedRegexes() {
+		List<String> contents = new ArrayList<String>();
+		contents.add("");
+		for (int i = 0; i < contents.size(); i++) {
+			String content = contents.get(i);
+			if (content.length() < 4) {
+				for (char character : "abc".toCharArray()) {
+					contents.add(content + character);
+				}
+			} else {
+				// long enough
+			}
+		}
+		Random random = new Random(0);
+		int supported = 0;
+		for (int i = 0; i < 500; i++) {
+			String regex = generateAlternation(random, 2);
+			Automaton automaton;
+			try {
+				automaton = Automaton.compile(regex);
+			} catch (IllegalArgumentException e) {
+				// matched with Pattern instead
+				continue;
+			}
+			supported++;
+			assertSameMatches(regex, automaton, contents);
+		}
+		assertTrue("Only " + supported + " regexes supported", supported > 200);
+	}
+
+	private static void assertSameMatches(String regex, Automaton automaton,
+			Collection<String> contents) {
+		Pattern pattern = Pattern.compile(regex);
+		assertEquals(regex, pattern.matcher("").groupCount(),
+				automaton.groupCount());
+		for (String content : contents) {
+			String message = regex + " on " + content;
+			Matcher matcher = pattern.matcher(content);
+			assertEquals(message, matcher.matches(),
+					automaton.matches(content));
+
+			matcher.useTransparentBounds(true);
+			matcher.useAnchoringBounds(false);
+			for (int offset = 0; offset <= content.length(); offset++) {
+				int[] groups = automaton.match(content, offset, false);
+				if (matcher.region(offset, content.length()).lookingAt()) {
+					assertNotNull(message + " at " + offset, groups);
+					for (int i = 0; i <= matcher.groupCount(); i++) {
+						assertEquals(message + " at " + offset + " group " + i,
+								matcher.start(i), groups[2 * i]);
+						assertEquals(message + " at " + offset + " group " + i,
+								matcher.end(i), groups[2 * i + 1]);
+					}
+					assertEquals(message, matcher.end(),
+							automaton.lookingAt(content, offset));
+				} else {
+					assertNull(message + " at " + offset, groups);
+					assertEquals(message, -1,
+							automaton.lookingAt(content, offset));
+				}
+			}
+		}
+	}
+
+	private static String generateAlternation(Random random, int depth) {
+		String regex = generateSequence(random, depth);
+		if (random.nextInt(3) == 0) {
+			regex += "|" + generateSequence(random, depth);
+		} else {
+			// single alternative
+		}
+		return regex;
+	}
+
+	private static String generateSequence(Random random, int depth) {
+		StringBuilder builder = new StringBuilder();
+		int count = 1 + random.nextInt(3);
+		for (int i = 0; i < count; i++) {
+			builder.append(generateRepetition(random, depth));
+		}
+		return builder.toString();
+	}
+
+	private static String generateRepetition(Random random, int depth) {
+		String[] atoms = { "a", "b", "[ab]", ".", "(", "(?:", "(?>" };
+		String atom = atoms[random.nextInt(depth > 0 ? atoms.length : 4)];
+		if (atom.startsWith("(")) {
+			atom += generateAlternation(random, depth - 1) + ")";
+		} else {
+			// single character
+		}
+		String[] quantifiers = { "", "", "*", "+", "?", "{2}", "{0,2}", "{1,}",
+				"{2,3}" };
+		String quantifier = quantifiers[random.nextInt(quantifiers.length)];
+		if (quantifier.isEmpty()) {
+			return atom;
+		} else {
+			String[] modes = { "", "?", "+" };
+			return atom + quantifier + modes[random.nextInt(modes.length)];
+		}
+	}
+
+	@Test
+	public void testMatchToEndProvidesGroups() {
+		Automaton automaton = Automaton.compile("([a-z]+)(:)([0-9]*)");
+		int[] groups = automaton.match("abc:12", 0, true);
+		assertArrayEquals(new int[] { 0, 6, 0, 3, 3, 4, 4, 6 }, groups);
+		assertNull(automaton.match("abc:12!", 0, true));
+	}
+
+	@Test
+	public void testUnsupportedConstructsRejected() {
+		String[] regexes = { "a(?=b)", "a(?!b)", "(?<=a)b", "(?<!a)b",
+				"(a)\\1", "(?i)a", "\\ba", "\\p{Alpha}", "[a[b]]", "[a&&b]",
+				"(?<name>a)", "a**", "(a", "a)", "[a", "(a*)+", "(a*)*?b",
+				"(?:a?b?){2}", "(b{1,}){2}+", "a(b+){2}+",
+				"[a]((a)[ab]{2}|a){2}+", "((?:[ab]{0,2}?).{0,2})*",
+				"(?>(a)|b)" };
+		for (String regex : regexes) {
+			try {
+				Automaton.compile(regex);
+				fail("No exception thrown for " + regex);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+
+	@Test
+	public void testAmbiguousRepetitionsMatchedInLinearTime() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			builder.append('a');
+		}
+		String content = builder.toString();
+		assertFalse(Automaton.compile("(?:a|aa)*b").matches(content));
+		assertFalse(Automaton.compile("(?:a+)+b").matches(content));
+		assertFalse(Automaton.compile("(?:a|a?a)+b").matches(content));
+		assertTrue(Automaton.compile("(?:a|aa)*").matches(content));
+	}
+
+	@Test
+	public void testLongContentDoesNotOverflowStack() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 1000000; i++) {
+			builder.append("ab");
+		}
+		String content = builder.toString();
+		assertTrue(Automaton.compile("(?:a|b)*").matches(content));
+		assertEquals(content.length(),
+				Automaton.compile("[ab]*+").lookingAt(content, 0));
+	}
+}
@@ -0,0 +1,73 @@
+package fr.vergne.parsing.regex;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RegexNodeTest {
+
+	@Test
+	public void testLiteral() {
+		assertEquals("a+b", RegexNode.literal("a+b").toString());
+		assertEquals("", RegexNode.literal("").toString());
+	}
+
+	@Test
+	public void testSequence() {
+		RegexNode a = RegexNode.literal("a");
+		RegexNode b = RegexNode.literal("b+");
+		assertEquals("ab+", RegexNode.sequence(a, b).toString());
+		assertEquals("", RegexNode.sequence().toString());
+	}
+
+	@Test
+	public void testAlternation() {
+		RegexNode a = RegexNode.literal("a");
+		RegexNode b = RegexNode.literal("b+");
+		assertEquals("a|b+", RegexNode.alternation(Arrays.asList(a, b))
+				.toString());
+		assertEquals("a", RegexNode.alternation(Arrays.asList(a)).toString());
+	}
+
+	@Test
+	public void testGroups() {
+		RegexNode a = RegexNode.literal("a|b");
+		assertEquals("(?:a|b)", RegexNode.group(a).toString());
+		assertEquals("(a|b)", RegexNode.capture(a).toString());
+		assertEquals("(?:a|b){2,3}+", RegexNode.repetition(a, "{2,3}+")
+				.toString());
+	}
+
+	@Test
+	public void testLengthCorrespondsToRenderedRegex() {
+		RegexNode a = RegexNode.literal("a");
+		RegexNode b = RegexNode.literal("[bc]");
+		RegexNode node = RegexNode.sequence(RegexNode.capture(a),
+				RegexNode.repetition(RegexNode.alternation(Arrays.asList(
+						RegexNode.group(a), RegexNode.group(b))), "*?"), b);
+		assertEquals(node.toString().length(), node.length());
+	}
+
+	@Test
+	public void testSharedNodesRenderedAtEachUse() {
+		RegexNode a = RegexNode.literal("a");
+		RegexNode node = RegexNode.sequence(a, RegexNode.group(a), a);
+		assertEquals("a(?:a)a", node.toString());
+	}
+
+	@Test
+	public void testManyAlternatives() {
+		List<RegexNode> nodes = new LinkedList<RegexNode>();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			nodes.add(RegexNode.group(RegexNode.literal("" + i)));
+			expected.append(i == 0 ? "" : "|").append("(?:" + i + ")");
+		}
+		assertEquals(expected.toString(), RegexNode.alternation(nodes)
+				.toString());
+	}
+}
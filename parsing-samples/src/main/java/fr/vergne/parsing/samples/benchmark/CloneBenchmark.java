@@ -0,0 +1,89 @@
+package fr.vergne.parsing.samples.benchmark;
+
+import fr.vergne.parsing.layer.Layer;
+import fr.vergne.parsing.layer.standard.Atom;
+import fr.vergne.parsing.layer.standard.Formula;
+import fr.vergne.parsing.layer.standard.Loop;
+import fr.vergne.parsing.layer.standard.Loop.Generator;
+import fr.vergne.parsing.layer.standard.Suite;
+import fr.vergne.parsing.layer.util.Newline;
+
+/**
+ * This benchmark compares the two ways to copy a parsed {@link Layer}: the
+ * structural copy made by {@link Loop#clone()}, which clones the
+ * sub-{@link Layer}s one by one, and the parsing of the content of the
+ * original by a new {@link Layer}, which is what the clones used to do. It
+ * also measures the generation of occurrences from a filled template, which
+ * clones the template each time.
+ */
+public class CloneBenchmark {
+
+	private static final int RECORDS = 20000;
+	private static final int ROUNDS = 10;
+
+	public static void main(String[] args) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < RECORDS; i++) {
+			builder.append("name" + i + "=" + i * 7 + ";\n");
+		}
+		String content = builder.toString();
+		Loop<Suite> original = createLoop();
+		original.setContent(content);
+
+		System.out.println("Records: " + RECORDS + ", rounds: " + ROUNDS);
+		for (int warmup = 0; warmup < 2; warmup++) {
+			measure(original, warmup == 0);
+		}
+	}
+
+	private static void measure(Loop<Suite> original, boolean isWarmup) {
+		long clone = 0;
+		long parse = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			Layer copy = (Layer) original.clone();
+			clone += System.nanoTime() - start;
+			check(original, copy);
+
+			start = System.nanoTime();
+			copy = createLoop();
+			copy.setContent(original.getContent());
+			parse += System.nanoTime() - start;
+			check(original, copy);
+		}
+
+		Suite template = original.get(0);
+		Generator<Suite> generator = Loop.createGeneratorFromTemplate(template);
+		long start = System.nanoTime();
+		for (int i = 0; i < RECORDS; i++) {
+			generator.generates();
+		}
+		long generate = System.nanoTime() - start;
+
+		if (isWarmup) {
+			// results not representative
+		} else {
+			System.out.println("Structural clone: " + clone / ROUNDS / 1000000
+					+ " ms");
+			System.out.println("Parsing again: " + parse / ROUNDS / 1000000
+					+ " ms");
+			System.out.println("Generation of " + RECORDS
+					+ " occurrences from a filled template: " + generate
+					/ 1000000 + " ms");
+		}
+	}
+
+	private static Loop<Suite> createLoop() {
+		return new Loop<Suite>(new Suite(new Formula("[a-z0-9]+"),
+				new Atom("="), new Formula("[0-9]+"), new Atom(";"),
+				new Newline()));
+	}
+
+	private static void check(Layer original, Layer copy) {
+		if (!original.getContent().equals(copy.getContent())) {
+			throw new IllegalStateException("The copy differs from the original");
+		} else {
+			// valid copy
+		}
+	}
+}
@@ -13,6 +13,11 @@ public class Node extends Choice {
 		super(new LeafNode(), new RecursiveNode());
 	}
 
+	@Override
+	protected Object getMemoKey() {
+		return Node.class;
+	}
+
 	public Fields getFields() {
 		Layer node = getCurrent();
 		if (node instanceof LeafNode) {